@@ -0,0 +1,65 @@
+package hk.edu.polyu.comp.comp2021.cvfs.benchmarks;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating documents and directories in trees of different shapes and sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateBenchmark {
+    @Param({"WIDE", "DEEP", "BALANCED"})
+    private TreeShape shape;
+
+    @Param({"1000", "100000"})
+    private int treeSize;
+
+    private CVFS cvfs;
+    private int next;
+
+    /**
+     * Generate the tree the files are created in.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        Quiet.silence();
+        cvfs = new CVFS();
+        cvfs.newDisk(Long.MAX_VALUE / 2);
+        shape.generate(cvfs, treeSize);
+        next = 0;
+    }
+
+    /**
+     * Create a document in the working directory.
+     */
+    @Benchmark
+    public void newDocument() {
+        cvfs.newDocument("n" + next++, "txt", "benchmark");
+    }
+
+    /**
+     * Create a directory in the working directory.
+     */
+    @Benchmark
+    public void newDirectory() {
+        cvfs.newDirectory("n" + next++);
+    }
+}
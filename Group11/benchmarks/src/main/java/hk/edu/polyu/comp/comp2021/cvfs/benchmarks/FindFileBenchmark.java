@@ -0,0 +1,63 @@
+package hk.edu.polyu.comp.comp2021.cvfs.benchmarks;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+import hk.edu.polyu.comp.comp2021.cvfs.model.Directory;
+import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking files up by name in wide directories.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindFileBenchmark {
+    @Param({"100", "10000", "100000"})
+    private int width;
+
+    private CVFS cvfs;
+    private Directory directory;
+    private String[] names;
+    private int next;
+
+    /**
+     * Generate a directory with {@link #width} documents.
+     */
+    @Setup
+    public void setUp() {
+        Quiet.silence();
+        cvfs = new CVFS();
+        cvfs.newDisk(Long.MAX_VALUE / 2);
+        TreeShape.WIDE.generate(cvfs, width);
+        directory = cvfs.getVirtualDisk().getCurrentWorkingDirectory();
+
+        // look up names spread over the whole directory, and some that are not there.
+        names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = i % 8 == 0 ? "none" + i : "f" + (int) ((long) i * 7919 % width);
+        }
+    }
+
+    /**
+     * @return The file found, if any.
+     */
+    @Benchmark
+    public File findFile() {
+        return cvfs.findFile(directory, names[next++ & (names.length - 1)]);
+    }
+}
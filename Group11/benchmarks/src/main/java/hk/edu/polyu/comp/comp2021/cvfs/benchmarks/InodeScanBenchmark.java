@@ -0,0 +1,108 @@
+package hk.edu.polyu.comp.comp2021.cvfs.benchmarks;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks and recursive searches through the tree and through the inode table, on a tree that stays
+ * as it is and on one changed before every scan, so that the table is built again each time. Run
+ * with {@code -prof gc}: the bytes allocated per operation of the scans after a change, less those
+ * of the same scans through the tree, are the bytes of one table built.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InodeScanBenchmark {
+    @Param({"WIDE", "DEEP", "BALANCED"})
+    private TreeShape shape;
+
+    @Param({"1000", "100000"})
+    private int treeSize;
+
+    @Param({"TREE", "INODES"})
+    private String mode;
+
+    private CVFS cvfs;
+
+    // whether the document changed before each scan is on the disk.
+    private boolean changed;
+
+    /**
+     * Generate the tree, and the criterion to search it with.
+     */
+    @Setup
+    public void setUp() {
+        Quiet.silence();
+        cvfs = new CVFS();
+        cvfs.newDisk(Long.MAX_VALUE / 2);
+        shape.generate(cvfs, treeSize);
+        cvfs.createSimpleCriterion("ty", "type", "equals", "\"java\"");
+        if (mode.equals("INODES")) {
+            cvfs.enableInodeScans();
+        }
+    }
+
+    /**
+     * Stream every file to a consumer, reusing the table built by the previous walk.
+     * @param blackhole The consumer.
+     */
+    @Benchmark
+    public void walk(Blackhole blackhole) {
+        cvfs.walk((level, file) -> {
+            blackhole.consume(file);
+            return true;
+        });
+    }
+
+    /**
+     * Add or delete a document, then stream every file to a consumer.
+     * @param blackhole The consumer.
+     */
+    @Benchmark
+    public void changeThenWalk(Blackhole blackhole) {
+        change();
+        cvfs.walk((level, file) -> {
+            blackhole.consume(file);
+            return true;
+        });
+    }
+
+    /**
+     * Add or delete a document, then hand the files of one type to a consumer.
+     * @param blackhole The consumer.
+     */
+    @Benchmark
+    public void changeThenSearch(Blackhole blackhole) {
+        change();
+        cvfs.searchRecursivelyByCriterion("ty", (level, file) -> {
+            blackhole.consume(file);
+            return true;
+        });
+    }
+
+    // one change, keeping the size of the tree the same over two calls.
+    private void change() {
+        if (changed) {
+            cvfs.deleteFile("churn");
+        } else {
+            cvfs.newDocument("churn", "txt", "x");
+        }
+        changed = !changed;
+    }
+}
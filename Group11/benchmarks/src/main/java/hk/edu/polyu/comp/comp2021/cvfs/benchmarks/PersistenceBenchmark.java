@@ -0,0 +1,96 @@
+package hk.edu.polyu.comp.comp2021.cvfs.benchmarks;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing a disk to a disk image and loading it back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({"BALANCED"})
+    private TreeShape shape;
+
+    @Param({"1000", "100000"})
+    private int treeSize;
+
+    private CVFS cvfs;
+    private File image;
+    private int next;
+
+    /**
+     * Generate the tree to store.
+     * @throws Exception if the image cannot be created.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Quiet.silence();
+        cvfs = new CVFS();
+        cvfs.newDisk(Long.MAX_VALUE / 2);
+        shape.generate(cvfs, treeSize);
+        image = File.createTempFile("cvfs", ".img");
+        cvfs.store(image.getPath());
+    }
+
+    /**
+     * Delete the image.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        image.delete();
+    }
+
+    /**
+     * Write every page of the disk to a new image.
+     * @throws Exception if storing fails.
+     */
+    @Benchmark
+    public void storeFresh() throws Exception {
+        image.delete();
+        cvfs.store(image.getPath());
+    }
+
+    /**
+     * Change one document and store the disk over its previous image.
+     * @throws Exception if storing fails.
+     */
+    @Benchmark
+    public void storeIncremental() throws Exception {
+        cvfs.newDocument("n" + next++, "txt", "changed");
+        cvfs.store(image.getPath());
+    }
+
+    /**
+     * Store the disk, and load it back from its image into a new CVFS.
+     * @throws Exception if loading fails.
+     */
+    @Benchmark
+    public long storeAndLoad() throws Exception {
+        cvfs.store(image.getPath());
+        CVFS loaded = new CVFS();
+        loaded.load(image.getPath());
+        long total = loaded.getVirtualDisk().getUsedSize();
+        loaded.closeSession();
+        return total;
+    }
+}
@@ -0,0 +1,24 @@
+package hk.edu.polyu.comp.comp2021.cvfs.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Silences the messages the CVFS prints, so that printing is not what gets measured.
+ */
+final class Quiet {
+    private Quiet() {
+    }
+
+    static void silence() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
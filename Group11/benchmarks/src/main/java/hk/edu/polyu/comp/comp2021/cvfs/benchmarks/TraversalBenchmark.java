@@ -0,0 +1,109 @@
+package hk.edu.polyu.comp.comp2021.cvfs.benchmarks;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing and searching whole trees, with simple and composite criteria, on one thread,
+ * in parallel and using the indexes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraversalBenchmark {
+    @Param({"WIDE", "DEEP", "BALANCED"})
+    private TreeShape shape;
+
+    @Param({"1000", "100000"})
+    private int treeSize;
+
+    @Param({"SEQUENTIAL", "PARALLEL", "INDEXED"})
+    private String mode;
+
+    private CVFS cvfs;
+
+    /**
+     * Generate the tree, and the criteria to search it with.
+     */
+    @Setup
+    public void setUp() {
+        Quiet.silence();
+        cvfs = new CVFS();
+        cvfs.newDisk(Long.MAX_VALUE / 2);
+        shape.generate(cvfs, treeSize);
+
+        cvfs.createSimpleCriterion("ty", "type", "equals", "\"java\"");
+        cvfs.createSimpleCriterion("sz", "size", ">", "60");
+        cvfs.createSimpleCriterion("nm", "name", "contains", "\"f12\"");
+        cvfs.createBinaryCriterion("an", "ty", "sz", "&&");
+        cvfs.createNegationCriterion("nt", "nm");
+        cvfs.createBinaryCriterion("or", "an", "nt", "||");
+
+        if (mode.equals("PARALLEL")) {
+            cvfs.enableParallelTraversal(64 * 1024);
+        } else if (mode.equals("INDEXED")) {
+            cvfs.enableIndexes();
+        }
+    }
+
+    /**
+     * @return All the files, in buckets.
+     */
+    @Benchmark
+    public List<CVFS.Bucket> rList() {
+        return cvfs.rList();
+    }
+
+    /**
+     * Stream every file to a consumer, without collecting them.
+     * @param blackhole The consumer.
+     */
+    @Benchmark
+    public void walk(Blackhole blackhole) {
+        cvfs.walk((level, file) -> {
+            blackhole.consume(file);
+            return true;
+        });
+    }
+
+    /**
+     * @return The files of one type.
+     */
+    @Benchmark
+    public List<CVFS.Bucket> searchSimple() {
+        return cvfs.searchRecursivelyByCriterion("ty");
+    }
+
+    /**
+     * @return The files with a name containing some text.
+     */
+    @Benchmark
+    public List<CVFS.Bucket> searchName() {
+        return cvfs.searchRecursivelyByCriterion("nm");
+    }
+
+    /**
+     * @return The files matching a criterion made of others.
+     */
+    @Benchmark
+    public List<CVFS.Bucket> searchComposite() {
+        return cvfs.searchRecursivelyByCriterion("or");
+    }
+}
@@ -0,0 +1,111 @@
+package hk.edu.polyu.comp.comp2021.cvfs.benchmarks;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+
+/**
+ * Shapes of generated directory trees.
+ */
+public enum TreeShape {
+    /**
+     * Every document directly in the working directory.
+     */
+    WIDE {
+        @Override
+        void fill(CVFS cvfs, int documents, Counter counter) {
+            for (int i = 0; i < documents; i++) {
+                newDocument(cvfs, counter);
+            }
+        }
+    },
+
+    /**
+     * A chain of up to {@value #MAX_DEPTH} directories, each holding its share of the documents
+     * and the next directory.
+     */
+    DEEP {
+        @Override
+        void fill(CVFS cvfs, int documents, Counter counter) {
+            int depth = Math.min(documents, MAX_DEPTH);
+            for (int level = 0; level < depth; level++) {
+                int share = documents / depth + (level < documents % depth ? 1 : 0);
+                for (int i = 0; i < share; i++) {
+                    newDocument(cvfs, counter);
+                }
+                String name = "d" + counter.next();
+                cvfs.newDirectory(name);
+                cvfs.changeDir(name);
+            }
+            for (int level = 0; level < depth; level++) {
+                cvfs.changeDir("..");
+            }
+        }
+    },
+
+    /**
+     * Directories with {@value #FANOUT} subdirectories each, and the documents spread over the leaves.
+     */
+    BALANCED {
+        @Override
+        void fill(CVFS cvfs, int documents, Counter counter) {
+            if (documents <= FANOUT) {
+                for (int i = 0; i < documents; i++) {
+                    newDocument(cvfs, counter);
+                }
+                return;
+            }
+            for (int i = 0; i < FANOUT; i++) {
+                String name = "d" + counter.next();
+                cvfs.newDirectory(name);
+                cvfs.changeDir(name);
+                fill(cvfs, documents / FANOUT + (i < documents % FANOUT ? 1 : 0), counter);
+                cvfs.changeDir("..");
+            }
+        }
+    };
+
+    /**
+     * The number of subdirectories of each directory in a balanced tree.
+     */
+    public static final int FANOUT = 8;
+
+    /**
+     * The depth of a deep tree, at most.
+     */
+    public static final int MAX_DEPTH = 1000;
+
+    private static final String[] TYPES = {"txt", "java", "html", "css"};
+
+    /**
+     * Generate a tree in the working directory.
+     * @param cvfs The CVFS to generate the tree on. Its disk must be large enough.
+     * @param documents The number of documents in the tree.
+     */
+    public void generate(CVFS cvfs, int documents) {
+        fill(cvfs, documents, new Counter());
+    }
+
+    abstract void fill(CVFS cvfs, int documents, Counter counter);
+
+    private static void newDocument(CVFS cvfs, Counter counter) {
+        int n = counter.next();
+        int document = counter.documents++;
+        // a few sizes and all four types, so that criteria have something to tell apart.
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < document % 16; i++) {
+            content.append('x');
+        }
+        cvfs.newDocument("f" + n, TYPES[document % TYPES.length], content.toString());
+    }
+
+    /**
+     * Numbers the generated files, so that their names are unique.
+     */
+    static final class Counter {
+        private int next;
+        private int documents;
+
+        int next() {
+            return next++;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package hk.edu.polyu.comp.comp2021.cvfs.benchmarks;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Undoing and redoing long runs of commands.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UndoRedoBenchmark {
+    @Param({"100", "10000"})
+    private int commands;
+
+    private CVFS cvfs;
+
+    /**
+     * Run the commands to be undone and redone: creating, renaming and deleting files, and changing directory.
+     */
+    @Setup
+    public void setUp() {
+        Quiet.silence();
+        cvfs = new CVFS();
+        cvfs.newDisk(Long.MAX_VALUE / 2);
+        for (int i = 0; i < commands; i += 4) {
+            cvfs.newDirectory("d" + i);
+            cvfs.changeDir("d" + i);
+            cvfs.newDocument("f" + i, "java", "class A {}");
+            cvfs.renameFile("f" + i, "g" + i);
+        }
+    }
+
+    /**
+     * Undo every command, then redo them all, leaving the history as it was.
+     */
+    @Benchmark
+    public void undoRedoStorm() {
+        int undone = 0;
+        try {
+            while (true) {
+                cvfs.undo();
+                undone++;
+            }
+        } catch (IllegalStateException e) {
+            // nothing left to undo.
+        }
+        for (int i = 0; i < undone; i++) {
+            cvfs.redo();
+        }
+    }
+}
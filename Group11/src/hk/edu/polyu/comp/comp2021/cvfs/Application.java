@@ -4,6 +4,12 @@ import hk.edu.polyu.comp.comp2021.cvfs.controller.CommandController;
 import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
 import hk.edu.polyu.comp.comp2021.cvfs.view.UI;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 /**
  * Driver class to launch the CVFS application.
  */
@@ -11,7 +17,9 @@ public class Application {
 
     /**
      * Main function.
-     * @param args commandline args.
+     * @param args commandline args. Give '--batch fileName' to run a script of commands instead of
+     *             the interactive UI, or '--batch -' to read it from the standard input. Add
+     *             '--asOneUndo' to make the script a single undo unit.
      */
     public static void main(String[] args){
         //
@@ -25,6 +33,19 @@ public class Application {
         // create the cmmand controller object.
         CommandController commandController = new CommandController(cvfs);
 
+        // run a script of commands instead, if one is given.
+        if (args.length >= 2 && args[0].equals("--batch")) {
+            boolean asOneUndo = args.length >= 3 && args[2].equals("--asOneUndo");
+            try (BufferedReader script = args[1].equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in))
+                    : Files.newBufferedReader(Paths.get(args[1]))) {
+                commandController.executeBatch(script, asOneUndo);
+            } catch (IOException e) {
+                UI.printError("Could not read the script: " + e.getMessage());
+            }
+            return;
+        }
+
         // create the UI, and launch the program.
         UI ui = new UI(commandController);
         ui.displayUI();
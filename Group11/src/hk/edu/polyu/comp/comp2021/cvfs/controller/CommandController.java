@@ -1,10 +1,20 @@
 package hk.edu.polyu.comp.comp2021.cvfs.controller;
 
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.MetricsRegistry;
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.OperationMetrics;
 import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+import hk.edu.polyu.comp.comp2021.cvfs.model.Document;
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.StoreProgress;
 import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.FileCriterion;
+import hk.edu.polyu.comp.comp2021.cvfs.view.OutputFormat;
 import hk.edu.polyu.comp.comp2021.cvfs.view.UI;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -13,8 +23,61 @@ import java.util.List;
  * service from the CVFS.
  */
 public class CommandController {
+    // the commands, found by the hash of their name so that no string is made to look one up.
+    private static final Command[] COMMANDS = new Command[64];
+
+    private static final OutputFormat[] OUTPUT_FORMATS = OutputFormat.values();
+
+    // commands that are not in the table.
+    private static final OperationMetrics UNKNOWN_COMMAND = MetricsRegistry.getDefault().operation("command.unknown");
+
+    static {
+        // the words of each command count its name, and a word may be a quoted text with spaces.
+        register("newDisk", 2, 2, "Could not create disk due to bad command format. Try again with:" +
+                " newDisk <diskSize> where '<diskSize>' is the size of the disk", CommandController::newDisk);
+        register("newDoc", 4, Integer.MAX_VALUE, "Could not create new document due to a bad command format. Try again" +
+                " with: newDoc docName docType docContent", CommandController::newDoc);
+        register("newDir", 2, 2, "Could not create directory due to a bad command format. " +
+                "Try again with: newDir dirName", CommandController::newDir);
+        register("delete", 2, 2, "Could not delete file due a bad command format. " +
+                "Try again with: delete fileName", CommandController::delete);
+        register("rename", 3, 3, "Bad command format. Try again with: rename oldName newName", CommandController::rename);
+        register("changeDir", 2, 2, "Bad comand format. Try again with: changeDir dirName", CommandController::changeDir);
+        register("list", 1, 2, "Bad command format. Try again with: list [text|tsv|json]", CommandController::list);
+        register("rList", 1, 2, "Bad command format. Try again with: rList [text|tsv|json]", CommandController::rList);
+        register("newSimpleCri", 5, 5, "Bad command format. " +
+                "Try again with: newSimpleCri criName attrName op val", CommandController::newSimpleCri);
+        register("newNegation", 3, 3, "Bad command formt. Try again with: newNegation criName1 criName2",
+                CommandController::newNegation);
+        register("newBinaryCri", 5, 5, "Bad comand format. " +
+                "Try again with: newBinaryCri criName criName1 logicOp criName2", CommandController::newBinaryCri);
+        register("printAllCriteria", 1, Integer.MAX_VALUE, null, CommandController::printAllCriteria);
+        register("search", 2, 2, "Bad command format. Try again with: search criName", CommandController::search);
+        register("rSearch", 2, 2, "Bad command format. Try again with: rSearch criName", CommandController::rSearch);
+        register("undo", 1, 1, "Bad command format. Try again with: undo", CommandController::undo);
+        register("redo", 1, 1, "Bad command format. Try again with: redo", CommandController::redo);
+        register("store", 2, 3, "Bad command format. Try again with: store fileName [background]",
+                CommandController::store);
+        register("storeStatus", 1, 1, "Bad command format. Try again with: storeStatus", CommandController::storeStatus);
+        register("load", 2, 2, "Bad command format. Try again with: load fileName", CommandController::load);
+        register("stats", 1, 1, "Bad command format. Try again with: stats", CommandController::stats);
+        register("snapshot", 2, 2, "Bad command format. Try again with: snapshot snapshotName",
+                CommandController::snapshot);
+        register("dropSnapshot", 2, 2, "Bad command format. Try again with: dropSnapshot snapshotName",
+                CommandController::dropSnapshot);
+        register("rListSnapshot", 2, 2, "Bad command format. Try again with: rListSnapshot snapshotName",
+                CommandController::rListSnapshot);
+        register("rSearchSnapshot", 3, 3, "Bad command format. Try again with: rSearchSnapshot snapshotName criName",
+                CommandController::rSearchSnapshot);
+        register("batch", 2, 3, "Bad command format. Try again with: batch fileName [asOneUndo]",
+                CommandController::batch);
+    }
+
     private final CVFS cvfs;
 
+    // the words of the command being run, reused from one command to the next.
+    private final CommandTokenizer words = new CommandTokenizer();
+
     /**
      * Constructor.
      *
@@ -22,6 +85,7 @@ public class CommandController {
      */
     public CommandController(CVFS cvfs) {
         this.cvfs = cvfs;
+        cvfs.registerGauges(MetricsRegistry.getDefault());
     }
 
     /**
@@ -31,261 +95,534 @@ public class CommandController {
         return cvfs.getWorkingDirPath();
     }
 
-    private Long parseLongOrNull(String longStr) {
-        try {
-            return Long.parseLong(longStr);
-        } catch (Exception e) {
-            return null;
+    private static void register(String name, int minWords, int maxWords, String usage, Handler handler) {
+        int slot = name.hashCode() & (COMMANDS.length - 1);
+        while (COMMANDS[slot] != null) {
+            slot = (slot + 1) & (COMMANDS.length - 1);
         }
+        COMMANDS[slot] = new Command(name, minWords, maxWords, usage, handler);
+    }
+
+    /**
+     * @param words The words of a command.
+     * @return The command named by the first word, or null if there is none.
+     */
+    private static Command lookup(CommandTokenizer words) {
+        int slot = words.wordHash(0) & (COMMANDS.length - 1);
+        while (COMMANDS[slot] != null) {
+            if (words.wordEquals(0, COMMANDS[slot].name)) {
+                return COMMANDS[slot];
+            }
+            slot = (slot + 1) & (COMMANDS.length - 1);
+        }
+        return null;
     }
 
     /**
      * @param command The command to be executed.
      */
     public void executeCommand(String command) {
-        String[] commandSplit = command.split(" ");
-        switch (commandSplit[0]) {
-            case "newDisk":
-                // check the parts of the 'newDisk' command.
-                if (commandSplit.length != 2) {
-
-                    UI.printError("Could not create disk due " +
-                            "to bad command format. Try again with:" +
-                            " newDisk <diskSize> where '<diskSize>' is the size of the disk");
-                    return;
-                }
-
-                // check the value for the disksize.
-                Long diskSize = parseLongOrNull(commandSplit[1]);
-                if (diskSize == null) {
-                    UI.printError("Bad value for the the disksize: " + commandSplit[1]);
-                    return;
-                }
+        words.tokenize(command);
+        Command found = words.count() == 0 ? null : lookup(words);
 
-                // now execute the command.
-                cvfs.newDisk(diskSize);
-
-                UI.printSuccess("Created new disk successfully!");
-                break;
-            case "newDoc":
-                // check if the parts of the 'newDoc' command
-                if (commandSplit.length < 4) {
-                    System.out.println("\nCould not create new document due to a bad command format. Try again" +
-                            " with: newDoc docName docType docContent\n");
-                    return;
-                }
+        // time the command, whether or not it succeeds.
+        OperationMetrics metrics = found == null ? UNKNOWN_COMMAND : found.metrics;
+        long started = metrics.start();
+        boolean succeeded = false;
+        try {
+            if (found == null) {
+                UI.printError("Bad command. Check and try again.");
+            } else if (words.count() < found.minWords || words.count() > found.maxWords) {
+                UI.printError(found.usage);
+            } else {
+                succeeded = found.handler.handle(this, words);
+            }
+        } finally {
+            if (!succeeded) {
+                metrics.fail();
+            }
+            metrics.record(started);
+        }
+    }
 
+    /**
+     * Run a script of commands, one per line, as a batch. The whole script is checked before any of it
+     * runs: if a line is malformed, or the documents and directories it creates cannot fit on the disk,
+     * nothing is run. While it runs, success messages are left out and errors are kept for a summary
+     * at the end, together with the throughput of the batch. Blank lines and lines starting with '#'
+     * are skipped, and 'exit' ends the batch.
+     *
+     * @param script The script.
+     * @param asOneUndo Whether a single undo should undo the whole batch.
+     * @throws IOException if the script could not be read.
+     */
+    public void executeBatch(BufferedReader script, boolean asOneUndo) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = script.readLine()) != null) {
+            lines.add(line.trim());
+        }
 
-                // group the values from the third index all the way the last array index
-                StringBuilder builder = new StringBuilder();
-                for(int i = 3; i < commandSplit.length; i++){
-                    builder.append(commandSplit[i]);
-                }
+        // check the whole batch first, so that a bad line stops it before anything changes.
+        List<String> errors = validateBatch(lines);
+        if (!errors.isEmpty()) {
+            UI.printBatchReport(0, errors, 0);
+            return;
+        }
 
-                // execute the command
-                try {
-                    cvfs.newDocument(commandSplit[1], commandSplit[2], builder.toString());
-                    UI.printSuccess("The document was created successfully!");
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
+        long started = System.nanoTime();
+        long commands = 0;
+        UI.deferOutput();
+        if (asOneUndo) {
+            cvfs.beginUndoUnit();
+        }
+        try {
+            for (int i = 0; i < lines.size(); i++) {
+                String command = lines.get(i);
+                if (isSkipped(command)) {
+                    continue;
                 }
-                break;
-            case "newDir":
-                // check if the parts of the 'newDir' are okay
-                if (commandSplit.length != 2) {
-
-                    UI.printError("Could not create directory due to a bad command format. " +
-                            "Try again with: " + "newDir dirName");
-                    return;
+                if (command.equalsIgnoreCase("exit")) {
+                    break;
                 }
 
-                // execute the command
+                commands++;
                 try {
-                    cvfs.newDirectory(commandSplit[1]);
-                    UI.printSuccess("Created directory successfully!");
-                } catch (Exception e){
+                    executeCommand(command);
+                } catch (RuntimeException e) {
                     UI.printError(e.getMessage());
                 }
-                break;
-            case "delete":
-                // check if the parts of the 'delete' are okay
-                if (commandSplit.length != 2) {
-                    UI.printError("Could not delete file due a bad command format. " +
-                            "Try again with: delete fileName");
-                    return;
+                for (String error : UI.takeDeferredErrors()) {
+                    errors.add("Line " + (i + 1) + ": " + error);
                 }
+            }
+        } finally {
+            if (asOneUndo) {
+                cvfs.endUndoUnit();
+            }
+            UI.resumeOutput();
+        }
+        UI.printBatchReport(commands, errors, System.nanoTime() - started);
+    }
 
-                try {
-                    // execute the command
-                    cvfs.deleteFile(commandSplit[1]);
-                    UI.printSuccess("Deleted file successfully!");
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
-                }
+    /**
+     * Check the commands of a batch, and that the files they create fit on the disk.
+     * @param lines The lines of the script.
+     * @return The errors found, each prefixed with its line.
+     */
+    private List<String> validateBatch(List<String> lines) {
+        List<String> errors = new ArrayList<>();
+        CommandTokenizer words = new CommandTokenizer();
+
+        // the bytes the batch adds to the disk, as long as it does not free or replace any.
+        long addedBytes = 0;
+        boolean spaceKnown = true;
+        for (int i = 0; i < lines.size(); i++) {
+            String command = lines.get(i);
+            if (isSkipped(command)) {
+                continue;
+            }
+            if (command.equalsIgnoreCase("exit")) {
                 break;
-            case "rename":
-                // check if the parts of the 'rename' command are okay.
-                if (commandSplit.length != 3) {
-                    UI.printError("Bad command format. Try again with: rename oldName newName");
-                    return;
-                }
+            }
 
-                try {
-                    // execute the rename command
-                    cvfs.renameFile(commandSplit[1], commandSplit[2]);
-                    UI.printSuccess("Renamed file successfully");
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
+            try {
+                words.tokenize(command);
+                Command found = lookup(words);
+                if (found == null) {
+                    throw new IllegalArgumentException("Bad command: " + words.word(0));
                 }
-                break;
-            case "changeDir":
-                // check command format
-                if (commandSplit.length != 2) {
-                    UI.printError("Bad comand format. Try again with: changeDir dirName");
-                    return;
+                if (words.count() < found.minWords || words.count() > found.maxWords) {
+                    throw new IllegalArgumentException(found.usage);
                 }
-
-                try {
-                    // execute command
-                    cvfs.changeDir(commandSplit[1]);
-                    UI.printSuccess("Changed to new directory");
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
+                switch (found.name) {
+                    case "newDisk":
+                        spaceKnown = false;
+                        if (words.parseLong(1, -1) < 0) {
+                            throw new IllegalArgumentException("Bad value for the the disksize: " + words.word(1));
+                        }
+                        break;
+                    case "newDoc":
+                        File.validateFileName(words.word(1));
+                        Document.validateDocumentType(words.word(2));
+                        addedBytes = addedBytes + File.EMPTY_DIR_SIZE + words.rest(3).length() * 2L;
+                        break;
+                    case "newDir":
+                        File.validateFileName(words.word(1));
+                        addedBytes = addedBytes + File.EMPTY_DIR_SIZE;
+                        break;
+                    case "rename":
+                        File.validateFileName(words.word(2));
+                        break;
+                    case "batch":
+                        throw new IllegalArgumentException("A batch cannot run another batch");
+                    case "delete":
+                    case "load":
+                    case "undo":
+                    case "redo":
+                        spaceKnown = false;
+                        break;
+                    default:
                 }
+            } catch (IllegalArgumentException e) {
+                errors.add("Line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
 
-                break;
-            case "list":
-                // execute the list command
-                List<File> fileList = cvfs.list();
-                UI.printFileList(fileList);
-                break;
-            case "rList":
-                // execute the rList command
-                List<CVFS.Bucket> fileBuckets = cvfs.rList();
-                UI.printFilesRecursively(fileBuckets);
-                break;
-            case "newSimpleCri":
-                // check the command format
-                if (commandSplit.length != 5) {
+        // reserve the space for the whole batch at once, rather than find out it is full halfway.
+        if (spaceKnown) {
+            long freeBytes = cvfs.getVirtualDisk().getMaxSize() - cvfs.getVirtualDisk().getUsedSize();
+            if (addedBytes > freeBytes) {
+                errors.add("The batch needs " + addedBytes + " bytes, but only " + freeBytes + " bytes are free on the disk");
+            }
+        }
+        return errors;
+    }
 
-                    UI.printError("Bad command format. " +
-                            "Try again with: newSimpleCri criName attrName op val");
-                    return;
-                }
-                try {
-                    cvfs.createSimpleCriterion(commandSplit[1], commandSplit[2], commandSplit[3], commandSplit[4]);
-                    UI.printSuccess("Created criterion: " + commandSplit[1] + " successfully!");
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
-                }
-                break;
-            case "newNegation":
-                if (commandSplit.length != 3) {
-                    UI.printError("Bad command formt. Try again with: newNegation criName1 criName2");
-                    return;
-                }
+    private static boolean isSkipped(String line) {
+        return line.isEmpty() || line.startsWith("#");
+    }
 
-                try {
-                    cvfs.createNegationCriterion(commandSplit[1], commandSplit[2]);
-                    UI.printSuccess("Created criterion: " + commandSplit[1] + " successfully!");
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
-                }
-                break;
+    private boolean newDisk(CommandTokenizer words) {
+        // check the value for the disksize.
+        long diskSize = words.parseLong(1, -1);
+        if (diskSize < 0) {
+            UI.printError("Bad value for the the disksize: " + words.word(1));
+            return false;
+        }
 
-            case "newBinaryCri":
-                if (commandSplit.length != 5) {
-                    UI.printError("Bad comand format. " +
-                            "Try again with: newBinaryCri criName criName1 logicOp criName2");
-                    return;
-                }
-                try {
-                    cvfs.createBinaryCriterion(commandSplit[1], commandSplit[2], commandSplit[4], commandSplit[3]);
-                    UI.printSuccess("Created criterion: " + commandSplit[1] + " successfully");
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
-                }
-                break;
+        // now execute the command.
+        cvfs.newDisk(diskSize);
 
-            case "printAllCriteria":
-                List<FileCriterion> criteria = cvfs.getAllCriteria();
-                UI.printAllCriteria(criteria);
-                break;
+        UI.printSuccess("Created new disk successfully!");
+        return true;
+    }
 
-            case "search":
-                if(commandSplit.length != 2){
-                    UI.printError("Bad command format. Try again with: search criName");
-                    return;
-                }
+    private boolean newDoc(CommandTokenizer words) {
+        // the content is the rest of the command as typed, spaces and quotes included.
+        try {
+            cvfs.newDocument(words.word(1), words.word(2), words.rest(3));
+            UI.printSuccess("The document was created successfully!");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
 
-                try {
-                    List<File> files = cvfs.searchByCriterion(commandSplit[1]);
-                    UI.printFileList(files);
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
-                }
+    private boolean newDir(CommandTokenizer words) {
+        try {
+            cvfs.newDirectory(words.word(1));
+            UI.printSuccess("Created directory successfully!");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
 
-                break;
-            case "rSearch":
-                if(commandSplit.length != 2){
-                    UI.printError("Bad command format. Try again with: rSearch criName");
-                    return;
-                }
+    private boolean delete(CommandTokenizer words) {
+        try {
+            cvfs.deleteFile(words.word(1));
+            UI.printSuccess("Deleted file successfully!");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
 
-                try {
-                    List<CVFS.Bucket> files = cvfs.searchRecursivelyByCriterion(commandSplit[1]);
-                    UI.printFilesRecursively(files);
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
-                }
-                break;
-            case "undo":
+    private boolean rename(CommandTokenizer words) {
+        try {
+            cvfs.renameFile(words.word(1), words.word(2));
+            UI.printSuccess("Renamed file successfully");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
 
-                if(commandSplit.length != 1) {
-                    UI.printError("Bad command format. Try again with: undo");
-                    return;
-                }
+    private boolean changeDir(CommandTokenizer words) {
+        try {
+            cvfs.changeDir(words.word(1));
+            UI.printSuccess("Changed to new directory");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
 
-                try {
-                    cvfs.undo();
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
-                }
+    private boolean list(CommandTokenizer words) {
+        OutputFormat format = outputFormat(words);
+        if (format == null) {
+            UI.printError("Bad output format: " + words.word(1) + ". Try again with: list [text|tsv|json]");
+            return false;
+        }
+        List<File> fileList = cvfs.list();
+        UI.printFileList(fileList, format);
+        return true;
+    }
 
-                break;
-            case "redo":
-                if(commandSplit.length != 1){
-                    UI.printError("Bad command format. Try again with: redo");
-                    return;
-                }
-                cvfs.redo();
-                break;
-            case "store":
-                if(commandSplit.length != 2){
-                    UI.printError("Bad command format. Try again with: store fileName");
-                    return;
-                }
-                try {
-                    cvfs.store(commandSplit[1]);
-                } catch (Exception e) {
-                    UI.printError(e.getMessage());
-                }
-                break;
-            case "load":
-                if(commandSplit.length != 2){
-                    UI.printError("Bad command format. Try again with: load fileName");
-                    return;
-                }
+    private boolean rList(CommandTokenizer words) {
+        OutputFormat format = outputFormat(words);
+        if (format == null) {
+            UI.printError("Bad output format: " + words.word(1) + ". Try again with: rList [text|tsv|json]");
+            return false;
+        }
 
-                try {
-                    cvfs.load(commandSplit[1]);
-                } catch (Exception e){
-                    UI.printError(e.getMessage());
-                }
-                break;
-            default:
-                UI.printError("Bad command. Check and try again.");
+        // print the files as they are reached.
+        UI.printFilesRecursively(cvfs::walk, format);
+        return true;
+    }
+
+    /**
+     * @param words The words of a listing command.
+     * @return The output format named by the second word, text if there is none, or null if the word names no format.
+     */
+    private static OutputFormat outputFormat(CommandTokenizer words) {
+        if (words.count() == 1) {
+            return OutputFormat.TEXT;
+        }
+        for (OutputFormat format : OUTPUT_FORMATS) {
+            if (words.wordEquals(1, format.getName())) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private boolean newSimpleCri(CommandTokenizer words) {
+        String criterionName = words.word(1);
+        try {
+            cvfs.createSimpleCriterion(criterionName, words.word(2), words.word(3), words.raw(4));
+            UI.printSuccess("Created criterion: " + criterionName + " successfully!");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean newNegation(CommandTokenizer words) {
+        String criterionName = words.word(1);
+        try {
+            cvfs.createNegationCriterion(criterionName, words.word(2));
+            UI.printSuccess("Created criterion: " + criterionName + " successfully!");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean newBinaryCri(CommandTokenizer words) {
+        String criterionName = words.word(1);
+        try {
+            cvfs.createBinaryCriterion(criterionName, words.word(2), words.word(4), words.word(3));
+            UI.printSuccess("Created criterion: " + criterionName + " successfully");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean printAllCriteria(CommandTokenizer words) {
+        List<FileCriterion> criteria = cvfs.getAllCriteria();
+        UI.printAllCriteria(criteria);
+        return true;
+    }
+
+    private boolean search(CommandTokenizer words) {
+        try {
+            List<File> files = cvfs.searchByCriterion(words.word(1));
+            UI.printFileList(files);
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean rSearch(CommandTokenizer words) {
+        try {
+            String criterionName = words.word(1);
+            UI.printFilesRecursively(visitor -> cvfs.searchRecursivelyByCriterion(criterionName, visitor));
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean undo(CommandTokenizer words) {
+        try {
+            cvfs.undo();
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean redo(CommandTokenizer words) {
+        cvfs.redo();
+        return true;
+    }
+
+    private boolean store(CommandTokenizer words) {
+        if (words.count() == 3 && !words.wordEquals(2, "background")) {
+            UI.printError("Bad command format. Try again with: store fileName [background]");
+            return false;
+        }
+        try {
+            if (words.count() == 3) {
+                cvfs.storeInBackground(words.word(1));
+                UI.printSuccess("Storing the current virtual disk in the background. Check on it with: storeStatus");
+            } else {
+                cvfs.store(words.word(1));
+            }
+            return true;
+        } catch (Exception e) {
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean storeStatus(CommandTokenizer words) {
+        StoreProgress progress = cvfs.getBackgroundStore();
+        if (progress == null) {
+            UI.printSuccess("No store has run in the background");
+            return true;
+        }
+        long millis = progress.getElapsedNanos() / 1_000_000;
+        if (!progress.isDone()) {
+            UI.printSuccess("Storing to " + progress.getPath() + ": " + progress.getFilesWritten() + " of "
+                    + progress.getFileCount() + " files written, " + millis + " ms so far");
+        } else if (progress.getError() != null) {
+            UI.printError("Could not store to " + progress.getPath() + ": " + progress.getError().getMessage());
+        } else {
+            UI.printSuccess("Stored to " + progress.getPath() + " (" + progress.getResult() + ") in " + millis + " ms");
         }
 
+        // the status was reported, even if the store it reports on failed.
+        return true;
+    }
+
+    private boolean load(CommandTokenizer words) {
+        try {
+            cvfs.load(words.word(1));
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean stats(CommandTokenizer words) {
+        UI.printStats(MetricsRegistry.getDefault());
+        return true;
+    }
+
+    private boolean snapshot(CommandTokenizer words) {
+        String snapshotName = words.word(1);
+        try {
+            cvfs.takeSnapshot(snapshotName);
+            UI.printSuccess("Took snapshot: " + snapshotName + " successfully!");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean dropSnapshot(CommandTokenizer words) {
+        String snapshotName = words.word(1);
+        try {
+            cvfs.dropSnapshot(snapshotName);
+            UI.printSuccess("Dropped snapshot: " + snapshotName + " successfully!");
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean rListSnapshot(CommandTokenizer words) {
+        try {
+            String snapshotName = words.word(1);
+            UI.printFilesRecursively(visitor -> cvfs.searchSnapshot(snapshotName, null, visitor));
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean rSearchSnapshot(CommandTokenizer words) {
+        try {
+            String snapshotName = words.word(1);
+            String criterionName = words.word(2);
+            UI.printFilesRecursively(visitor -> cvfs.searchSnapshot(snapshotName, criterionName, visitor));
+            return true;
+        } catch (Exception e){
+            UI.printError(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean batch(CommandTokenizer words) {
+        if (words.count() == 3 && !words.wordEquals(2, "asOneUndo")) {
+            UI.printError("Bad command format. Try again with: batch fileName [asOneUndo]");
+            return false;
+        }
+
+        // read the words first, as the commands of the batch reuse them.
+        String fileName = words.word(1);
+        boolean asOneUndo = words.count() == 3;
+        try (BufferedReader script = Files.newBufferedReader(Paths.get(fileName))) {
+            executeBatch(script, asOneUndo);
+            return true;
+        } catch (IOException e) {
+            UI.printError("Could not read the script: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Runs a command, once its words have been counted.
+     */
+    private interface Handler {
+        /**
+         * @param controller The controller running the command.
+         * @param words The words of the command.
+         * @return Whether the command succeeded. Its errors are printed already.
+         */
+        boolean handle(CommandController controller, CommandTokenizer words);
+    }
+
+    /**
+     * An entry of the command table.
+     */
+    private static final class Command {
+        private final String name;
+        private final int minWords;
+        private final int maxWords;
+        private final String usage;
+        private final Handler handler;
+        private final OperationMetrics metrics;
+
+        Command(String name, int minWords, int maxWords, String usage, Handler handler) {
+            this.name = name;
+            this.minWords = minWords;
+            this.maxWords = maxWords;
+            this.usage = usage;
+            this.handler = handler;
+
+            // keep metrics for each command.
+            this.metrics = MetricsRegistry.getDefault().operation("command." + name);
+        }
     }
 }
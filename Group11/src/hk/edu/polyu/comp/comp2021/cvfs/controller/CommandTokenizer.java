@@ -0,0 +1,196 @@
+package hk.edu.polyu.comp.comp2021.cvfs.controller;
+
+import java.util.Arrays;
+
+/**
+ * Splits a command into words, reusing its buffers from one command to the next.
+ *
+ * Words are separated by any number of spaces or tabs. A word in double quotes may hold spaces,
+ * and a backslash in it escapes a double quote or another backslash; a quote that is not closed is
+ * kept as part of an ordinary word. The words are copied, with the quotes taken off, into a single
+ * character buffer, and only turned into strings when asked. Values that keep their quotes, such as
+ * the value of a criterion or the content of a document, are taken as typed instead.
+ */
+final class CommandTokenizer {
+    private char[] buffer = new char[128];
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+
+    // where each word starts and ends in the command, counting its quotes.
+    private int[] rawStarts = new int[8];
+    private int[] rawEnds = new int[8];
+
+    private CharSequence command;
+    private int count;
+
+    /**
+     * Split a command into words, forgetting the words of the previous command.
+     *
+     * @param command The command.
+     */
+    void tokenize(CharSequence command) {
+        this.command = command;
+        this.count = 0;
+        int length = command.length();
+        if (buffer.length < length) {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        }
+
+        int used = 0;
+        int i = 0;
+        while (true) {
+            // skip the spaces before the next word.
+            while (i < length && isSpace(command.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                return;
+            }
+
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                rawStarts = Arrays.copyOf(rawStarts, count * 2);
+                rawEnds = Arrays.copyOf(rawEnds, count * 2);
+            }
+            rawStarts[count] = i;
+            starts[count] = used;
+
+            int closed = command.charAt(i) == '"' ? closingQuote(command, i + 1) : -1;
+            if (closed >= 0) {
+                // copy up to the closing quote, dropping the escaping backslashes.
+                i++;
+                while (i < closed) {
+                    char c = command.charAt(i++);
+                    if (c == '\\' && i < closed && (command.charAt(i) == '"' || command.charAt(i) == '\\')) {
+                        c = command.charAt(i++);
+                    }
+                    buffer[used++] = c;
+                }
+                i++;
+            } else {
+                while (i < length && !isSpace(command.charAt(i))) {
+                    buffer[used++] = command.charAt(i++);
+                }
+            }
+            ends[count] = used;
+            rawEnds[count] = i;
+            count++;
+        }
+    }
+
+    /**
+     * @return The number of words in the command.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @param index The index of a word.
+     * @return The word.
+     */
+    String word(int index) {
+        return new String(buffer, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     * @param index The index of a word.
+     * @return The word as it was typed, quotes and backslashes included.
+     */
+    String raw(int index) {
+        return command.subSequence(rawStarts[index], rawEnds[index]).toString();
+    }
+
+    /**
+     * @param index The index of a word.
+     * @param text A text.
+     * @return Whether the word is the text, compared without making a string of the word.
+     */
+    boolean wordEquals(int index, String text) {
+        int length = ends[index] - starts[index];
+        if (length != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[starts[index] + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param index The index of a word.
+     * @return A hash of the word, the same as {@link String#hashCode()} of the word.
+     */
+    int wordHash(int index) {
+        int hash = 0;
+        for (int i = starts[index]; i < ends[index]; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        return hash;
+    }
+
+    /**
+     * @param index The index of a word.
+     * @param otherwise The value to return if the word is not a number.
+     * @return The word as a decimal number, or the given value if it is not one or does not fit in a long.
+     */
+    long parseLong(int index, long otherwise) {
+        int i = starts[index];
+        int end = ends[index];
+        boolean negative = i < end && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            return otherwise;
+        }
+
+        // accumulate negatively, as the negative range is the larger one.
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                return otherwise;
+            }
+            value = value * 10 - digit;
+        }
+        if (negative) {
+            return value;
+        }
+        return value == Long.MIN_VALUE ? otherwise : -value;
+    }
+
+    /**
+     * @param index The index of a word.
+     * @return The rest of the command from the word on, as it was typed, quotes and spaces included.
+     */
+    String rest(int index) {
+        return command.subSequence(rawStarts[index], rawEnds[count - 1]).toString();
+    }
+
+    /**
+     * @param command A command.
+     * @param from Where to look from, just after an opening quote.
+     * @return Where the quote is closed, or -1 if it is not closed.
+     */
+    private static int closingQuote(CharSequence command, int from) {
+        for (int i = from; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (c == '"') {
+                return i;
+            }
+            if (c == '\\' && i + 1 < command.length()
+                    && (command.charAt(i + 1) == '"' || command.charAt(i + 1) == '\\')) {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
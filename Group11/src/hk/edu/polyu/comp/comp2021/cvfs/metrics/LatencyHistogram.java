@@ -0,0 +1,99 @@
+package hk.edu.polyu.comp.comp2021.cvfs.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with log-linear buckets, in the style of HdrHistogram.
+ *
+ * Each power of two is split into {@value #SUB_BUCKETS} equal buckets, so a recorded value is
+ * known to within 12.5% however large it is, with a fixed 4 KiB of counts. Recording is a
+ * few shifts and one atomic increment, and takes no lock.
+ */
+public final class LatencyHistogram {
+    // buckets per power of two. A power of two itself, so the bucket is read off the value's bits.
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // enough buckets for every non-negative long.
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param value A latency in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(value, 0)));
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param quantile A quantile between 0 and 1, such as 0.99.
+     * @return The highest value equivalent to the value at the quantile, or 0 if nothing was recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValueAt(i);
+            }
+        }
+        return highestValueAt(BUCKETS - 1);
+    }
+
+    /**
+     * @return The highest value equivalent to the largest value recorded, or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestValueAt(i);
+            }
+        }
+        return 0;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // the position of the highest bit picks the power of two, the next bits the bucket within it.
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    static long highestValueAt(int index) {
+        return index == BUCKETS - 1 ? Long.MAX_VALUE : lowestValueAt(index + 1) - 1;
+    }
+}
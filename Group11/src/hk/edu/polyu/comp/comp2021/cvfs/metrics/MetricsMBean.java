@@ -0,0 +1,94 @@
+package hk.edu.polyu.comp.comp2021.cvfs.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes a metrics registry through JMX. Every operation has read-only attributes
+ * {@code <operation>.count}, {@code .errors}, {@code .meanMicros}, {@code .p50Micros},
+ * {@code .p99Micros} and {@code .maxMicros}, and every gauge an attribute of its own name.
+ */
+final class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @return Every attribute and its value. Operations appear as soon as they have metrics.
+     */
+    private SortedMap<String, Long> readAll() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        for (OperationMetrics operation : registry.getOperations().values()) {
+            String name = operation.getName();
+            LatencyHistogram latencies = operation.getLatencies();
+            values.put(name + ".count", operation.getCount());
+            values.put(name + ".errors", operation.getErrors());
+            values.put(name + ".meanMicros", TimeUnit.NANOSECONDS.toMicros(operation.getMeanNanos()));
+            values.put(name + ".p50Micros", TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtQuantile(0.5)));
+            values.put(name + ".p99Micros", TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtQuantile(0.99)));
+            values.put(name + ".maxMicros", TimeUnit.NANOSECONDS.toMicros(latencies.getMax()));
+        }
+        values.putAll(registry.readGauges());
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = readAll().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException("No such metric: " + attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = readAll();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("No operations: " + actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : readAll().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "CVFS metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,155 @@
+package hk.edu.polyu.comp.comp2021.cvfs.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and latencies of one operation.
+ *
+ * Used as:
+ * <pre>
+ *     return OPERATION.call(() -&gt; ...);
+ * </pre>
+ * or with {@link #run(Action)} if the operation returns nothing. An operation that finishes
+ * elsewhere, such as on another thread, is timed with {@link #start()}, {@link #fail()} and
+ * {@link #record(long)} instead.
+ */
+public final class OperationMetrics {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Run the operation, counting it and timing it, and counting it as failed if it throws.
+     *
+     * @param operation The operation.
+     * @param <T> The type of its result.
+     * @param <E> The type of the checked exception it throws.
+     * @return Its result.
+     * @throws E if the operation throws it.
+     */
+    public <T, E extends Exception> T call(Operation<T, E> operation) throws E {
+        long start = start();
+        try {
+            return operation.call();
+        } catch (Exception e) {
+            fail();
+            throw e;
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Run the operation, counting it and timing it, and counting it as failed if it throws.
+     *
+     * @param action The operation, returning nothing.
+     * @param <E> The type of the checked exception it throws.
+     * @throws E if the operation throws it.
+     */
+    public <E extends Exception> void run(Action<E> action) throws E {
+        long start = start();
+        try {
+            action.run();
+        } catch (Exception e) {
+            fail();
+            throw e;
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * @return The time an operation starts at, to pass to {@link #record(long)}.
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record an operation finishing.
+     * @param start The time returned by {@link #start()} when it started.
+     */
+    public void record(long start) {
+        long nanos = System.nanoTime() - start;
+        count.increment();
+        totalNanos.add(nanos);
+        latencies.record(nanos);
+    }
+
+    /**
+     * Count an operation failing. It still has to be recorded with {@link #record(long)}.
+     */
+    public void fail() {
+        errors.increment();
+    }
+
+    /**
+     * @return The name of the operation.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of times the operation ran.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The number of times the operation failed.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return The mean latency in nanoseconds, or 0 if the operation never ran.
+     */
+    public long getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+
+    /**
+     * @return The latencies of the operation.
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * An operation returning a result.
+     *
+     * @param <T> The type of its result.
+     * @param <E> The type of the checked exception it throws.
+     */
+    @FunctionalInterface
+    public interface Operation<T, E extends Exception> {
+        /**
+         * @return The result.
+         * @throws E if the operation fails.
+         */
+        T call() throws E;
+    }
+
+    /**
+     * An operation returning nothing.
+     *
+     * @param <E> The type of the checked exception it throws.
+     */
+    @FunctionalInterface
+    public interface Action<E extends Exception> {
+        /**
+         * @throws E if the operation fails.
+         */
+        void run() throws E;
+    }
+}
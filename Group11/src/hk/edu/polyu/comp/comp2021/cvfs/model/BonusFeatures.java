@@ -4,9 +4,22 @@ package hk.edu.polyu.comp.comp2021.cvfs.model;
  * Specifies an action that can be undone or redone.
  */
 public class BonusFeatures {
+    private static final Runnable NOTHING = () -> { };
+
     private final Runnable undoRunnable;
     private final Runnable redoRunnable;
 
+    // an estimate of the bytes, such as deleted files or a previous disk, only this action keeps reachable
+    // while it is done, and while it is undone.
+    private final long retainedBytes;
+    private final long undoneRetainedBytes;
+
+    // run once the state before the action can no longer be gone back to.
+    private final Runnable undoDiscarded;
+
+    // run once the state after the action can no longer be gone back to.
+    private final Runnable redoDiscarded;
+
     /**
      * Constructor.
      *
@@ -14,8 +27,43 @@ public class BonusFeatures {
      * @param redoRunnable Runnable to be executed upon a 'redo'.
      */
     public BonusFeatures(Runnable undoRunnable, Runnable redoRunnable){
+        this(undoRunnable, redoRunnable, 0, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param undoRunnable Runnable to be executed upon an 'undo'.
+     * @param redoRunnable Runnable to be executed upon a 'redo'.
+     * @param retainedBytes An estimate of the bytes, such as deleted files or a previous disk, only the action keeps
+     *                      reachable while it is done.
+     * @param undoneRetainedBytes An estimate of the bytes, such as created files, only the action keeps reachable
+     *                            once it is undone.
+     */
+    public BonusFeatures(Runnable undoRunnable, Runnable redoRunnable, long retainedBytes, long undoneRetainedBytes){
+        this(undoRunnable, redoRunnable, retainedBytes, undoneRetainedBytes, NOTHING, NOTHING);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param undoRunnable Runnable to be executed upon an 'undo'.
+     * @param redoRunnable Runnable to be executed upon a 'redo'.
+     * @param retainedBytes An estimate of the bytes, such as deleted files or a previous disk, only the action keeps
+     *                      reachable while it is done.
+     * @param undoneRetainedBytes An estimate of the bytes, such as created files, only the action keeps reachable
+     *                            once it is undone.
+     * @param undoDiscarded Runnable to be executed when the action drops out of the history before it is undone.
+     * @param redoDiscarded Runnable to be executed when the action drops out of the history after it is undone.
+     */
+    public BonusFeatures(Runnable undoRunnable, Runnable redoRunnable, long retainedBytes, long undoneRetainedBytes,
+                         Runnable undoDiscarded, Runnable redoDiscarded){
         this.undoRunnable = undoRunnable;
         this.redoRunnable = redoRunnable;
+        this.retainedBytes = retainedBytes;
+        this.undoneRetainedBytes = undoneRetainedBytes;
+        this.undoDiscarded = undoDiscarded;
+        this.redoDiscarded = redoDiscarded;
     }
 
     /**
@@ -31,4 +79,37 @@ public class BonusFeatures {
     void redo(){
         this.redoRunnable.run();
     }
+
+    /**
+     * @param undone Whether the action is undone.
+     * @return An estimate of the bytes only this action keeps reachable, and the file tree does not.
+     */
+    long getRetainedBytes(boolean undone) {
+        return undone ? undoneRetainedBytes : retainedBytes;
+    }
+
+    /**
+     * Let go of what only undoing this action needed, as it will not be undone any more.
+     */
+    void discardUndo() {
+        this.undoDiscarded.run();
+    }
+
+    /**
+     * Let go of what only redoing this action needed, as it will not be redone any more.
+     */
+    void discardRedo() {
+        this.redoDiscarded.run();
+    }
+
+    /**
+     * Combine this action with one done right after it into a single action, if undoing
+     * both at once loses nothing the user would want to go back to.
+     *
+     * @param next The action done right after this one.
+     * @return The combined action, or null if the actions are kept apart.
+     */
+    BonusFeatures mergeWith(BonusFeatures next) {
+        return null;
+    }
 }
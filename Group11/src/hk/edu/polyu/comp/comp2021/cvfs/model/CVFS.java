@@ -1,14 +1,18 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.MetricsRegistry;
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.OperationMetrics;
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.ContentStoreType;
 import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.*;
 import hk.edu.polyu.comp.comp2021.cvfs.view.UI;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
-
-import static hk.edu.polyu.comp.comp2021.cvfs.model.File.EMPTY_DIR_SIZE;
 
 /**
  * An implemntation of the CVFS interface.
@@ -19,25 +23,122 @@ public class CVFS {
      */
     public static final int DEFAULT_DISK_SIZE = 600;
 
+    // the metrics of the public operations.
+    private static final OperationMetrics NEW_DISK = MetricsRegistry.getDefault().operation("cvfs.newDisk");
+    private static final OperationMetrics NEW_DOCUMENT = MetricsRegistry.getDefault().operation("cvfs.newDocument");
+    private static final OperationMetrics FIND_FILE = MetricsRegistry.getDefault().operation("cvfs.findFile");
+    private static final OperationMetrics NEW_DIRECTORY = MetricsRegistry.getDefault().operation("cvfs.newDirectory");
+    private static final OperationMetrics DELETE_FILE = MetricsRegistry.getDefault().operation("cvfs.deleteFile");
+    private static final OperationMetrics RENAME_FILE = MetricsRegistry.getDefault().operation("cvfs.renameFile");
+    private static final OperationMetrics CHANGE_DIR = MetricsRegistry.getDefault().operation("cvfs.changeDir");
+    private static final OperationMetrics LIST = MetricsRegistry.getDefault().operation("cvfs.list");
+    private static final OperationMetrics R_LIST = MetricsRegistry.getDefault().operation("cvfs.rList");
+    private static final OperationMetrics CREATE_SIMPLE_CRITERION = MetricsRegistry.getDefault().operation("cvfs.createSimpleCriterion");
+    private static final OperationMetrics CREATE_NEGATION_CRITERION = MetricsRegistry.getDefault().operation("cvfs.createNegationCriterion");
+    private static final OperationMetrics CREATE_BINARY_CRITERION = MetricsRegistry.getDefault().operation("cvfs.createBinaryCriterion");
+    private static final OperationMetrics GET_ALL_CRITERIA = MetricsRegistry.getDefault().operation("cvfs.getAllCriteria");
+    private static final OperationMetrics SEARCH = MetricsRegistry.getDefault().operation("cvfs.searchByCriterion");
+    private static final OperationMetrics STORE = MetricsRegistry.getDefault().operation("cvfs.store");
+    private static final OperationMetrics LOAD = MetricsRegistry.getDefault().operation("cvfs.load");
+    private static final OperationMetrics WALK = MetricsRegistry.getDefault().operation("cvfs.walk");
+    private static final OperationMetrics SEARCH_RECURSIVELY = MetricsRegistry.getDefault().operation("cvfs.searchRecursivelyByCriterion");
+    private static final OperationMetrics TAKE_SNAPSHOT = MetricsRegistry.getDefault().operation("cvfs.takeSnapshot");
+    private static final OperationMetrics DROP_SNAPSHOT = MetricsRegistry.getDefault().operation("cvfs.dropSnapshot");
+    private static final OperationMetrics SEARCH_SNAPSHOT = MetricsRegistry.getDefault().operation("cvfs.searchSnapshot");
+    private static final OperationMetrics REDO = MetricsRegistry.getDefault().operation("cvfs.redo");
+    private static final OperationMetrics UNDO = MetricsRegistry.getDefault().operation("cvfs.undo");
+
+    // a recursive search uses the indexes if at most one in this many files on the disk is a candidate.
+    // Going through a candidate costs about as much as testing this many files in a scan.
+    private static final int INDEX_SCAN_RATIO = 16;
+
     // the current virtual disk the CVFS is working with.
-    private VirtualDisk virtualDisk;
+    private volatile VirtualDisk virtualDisk;
+
+    // the working directory of this session on the current virtual disk.
+    private WorkingDirectory workingDirectory;
+
+    // the kind of content store new disks are created with.
+    private ContentStoreType contentStoreType = ContentStoreType.HEAP;
+
+    // the number of write-ahead log records between syncs, or 0 if write-ahead logging is off.
+    private int writeAheadLogSyncInterval;
+
+    // whether disks keep secondary indexes for criterion searches.
+    private boolean indexesEnabled;
+
+    // the subtree size in bytes from which recursive listings and searches run in parallel, or 0 if they never do.
+    private long parallelThreshold;
+
+    // whether recursive walks and searches scan the inode table of the disk.
+    private boolean inodeScansEnabled;
+
+    // the length from which document content is compressed, or 0 if it never is.
+    private int compressionThreshold;
+
+    // the number of directories loaded disks keep in memory once read lazily, or 0 if disks are read whole.
+    private int maxLoadedDirectories;
+
+    // the number of deltas stored to an image before they are compacted, or 0 if stores write whole images.
+    private int maxDeltas;
 
-    // undo actions.
-    private final Stack<BonusFeatures> undoActions;
+    // the store running in the background, or the last one to finish, or null if there was none.
+    private volatile StoreProgress backgroundStore;
 
-    // redo actions
-    private final Stack<BonusFeatures> redoActions;
+    // the actions this session can undo and redo.
+    private final History history;
 
     /**
      * Constructor.
      */
     public CVFS() {
         // create a default virtual disk
-        virtualDisk = new VirtualDisk(DEFAULT_DISK_SIZE);
+        virtualDisk = new VirtualDisk(DEFAULT_DISK_SIZE, contentStoreType);
+        virtualDisk.acquire();
+        workingDirectory = virtualDisk.getWorkingDirectory();
 
-        // init the undo, redo stacks
-        undoActions = new Stack<>();
-        redoActions = new Stack<>();
+        // init the undo/redo history
+        history = new History();
+    }
+
+    /**
+     * Constructor for a new session on the disk of another session.
+     * @param other The session whose disk and settings to share.
+     */
+    private CVFS(CVFS other) {
+        virtualDisk = other.virtualDisk;
+        virtualDisk.acquire();
+        workingDirectory = new WorkingDirectory(virtualDisk.getRootDirectory());
+        contentStoreType = other.contentStoreType;
+        writeAheadLogSyncInterval = other.writeAheadLogSyncInterval;
+        indexesEnabled = other.indexesEnabled;
+        parallelThreshold = other.parallelThreshold;
+        inodeScansEnabled = other.inodeScansEnabled;
+        compressionThreshold = other.compressionThreshold;
+        maxLoadedDirectories = other.maxLoadedDirectories;
+        maxDeltas = other.maxDeltas;
+
+        // each session undoes and redoes its own commands only.
+        history = new History();
+    }
+
+    /**
+     * Open a new session on the current virtual disk. The session starts in the root directory and has
+     * its own working directory and undo/redo history, so it can be used from another thread while
+     * this session goes on working on the same disk.
+     *
+     * @return The new session.
+     */
+    public CVFS openSession() {
+        return new CVFS(this);
+    }
+
+    /**
+     * Close this session. The virtual disk is closed once no session is working on it.
+     */
+    public void closeSession() {
+        history.clear();
+        virtualDisk.release();
     }
 
     /**
@@ -48,51 +149,233 @@ public class CVFS {
     }
 
     /**
-     * Create a new virtual disk. Code should handle side effects such as
-     * closing a previous virtual disk.
-     * @param maxSize The max size of the virtual disk.
+     * Bound the undo/redo history. Once it holds more actions, or its actions keep more bytes reachable
+     * (deleted files, documents whose creation was undone, disks replaced by a new or loaded one), than
+     * allowed, the oldest actions are dropped and can no longer be undone. The last action is always kept.
+     *
+     * @param maxEntries The number of actions to keep.
+     * @param maxBytes The bytes the actions may keep reachable.
+     * @throws IllegalArgumentException if a bound is not positive.
      */
-    public void newDisk(long maxSize) {
-        // create new virtual disk, and set it to be the current one.
-        final VirtualDisk previousDisk = this.virtualDisk;
-        final VirtualDisk newDisk = new VirtualDisk(maxSize);
-        this.virtualDisk = newDisk;
+    public void setHistoryLimits(int maxEntries, long maxBytes) throws IllegalArgumentException {
+        history.setLimits(maxEntries, maxBytes);
+    }
 
-        // specify the 'undo' operation
-        Runnable undo = () -> {
-            this.virtualDisk = previousDisk;
-            UI.printSuccess("Undid Creation of Disk.");
-        };
+    /**
+     * Start a unit of commands that are undone and redone together, such as a batch run from a
+     * script. Nothing happens if a unit is started already.
+     */
+    public void beginUndoUnit() {
+        history.beginGroup();
+    }
 
-        // specify the 'redo' operation
-        Runnable redo = () -> {
-            this.virtualDisk = newDisk;
-            UI.printSuccess("Redid Creation of Disk");
-        };
+    /**
+     * End the unit of commands started by {@link #beginUndoUnit()}. From now on, one undo undoes all
+     * of its commands.
+     */
+    public void endUndoUnit() {
+        history.endGroup();
+    }
+
+    /**
+     * @param contentStoreType The kind of content store disks created from now on keep their documents in.
+     */
+    public void setContentStoreType(ContentStoreType contentStoreType) {
+        this.contentStoreType = contentStoreType;
+    }
 
-        // create and save the opration to the 'undo' stack
-        BonusFeatures action = new BonusFeatures(undo, redo);
-        undoActions.push(action);
+    /**
+     * Turn on write-ahead logging. From the next store or load on, every change to the disk is appended
+     * to a log next to its disk image, and replayed when the image is loaded again.
+     *
+     * @param syncInterval The number of log records to append between syncs to the storage device.
+     * @throws IllegalArgumentException if the sync interval is not positive.
+     */
+    public void enableWriteAheadLog(int syncInterval) throws IllegalArgumentException {
+        if (syncInterval <= 0) {
+            throw new IllegalArgumentException("The sync interval must be positive: " + syncInterval);
+        }
+        this.writeAheadLogSyncInterval = syncInterval;
     }
 
     /**
-     * Check if it is possible to add a new file to the system or not.
-     * @param testFile The file to be added.
+     * Turn on secondary indexes for criterion searches. The current disk, and every disk created or
+     * loaded from now on, keeps its documents indexed by type and size and its files by name, so that
+     * selective searches only test the files that may match.
      */
-    private void checkDiskSize(File testFile){
-        long currTotalSize = 0;
-        for (Bucket bucket : rList()) {
-            for (File file : bucket.getFiles()) {
-                currTotalSize = file.getSize() + currTotalSize;
-            }
+    public void enableIndexes() {
+        this.indexesEnabled = true;
+        virtualDisk.buildIndex();
+    }
+
+    /**
+     * Turn on parallel recursive listing and searching. Subtrees at least as large as the threshold are
+     * walked as separate fork/join tasks, and the criterion is tested on them in parallel. Smaller
+     * subtrees are walked on one thread, as splitting them costs more than it saves.
+     *
+     * @param threshold The subtree size in bytes from which to walk in parallel.
+     * @throws IllegalArgumentException if the threshold is not positive.
+     */
+    public void enableParallelTraversal(long threshold) throws IllegalArgumentException {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("The threshold must be positive: " + threshold);
         }
+        this.parallelThreshold = threshold;
+    }
 
-        currTotalSize = currTotalSize + EMPTY_DIR_SIZE;
-        long newTotalSize = currTotalSize + testFile.getSize();
+    /**
+     * Turn on inode scans. Walks and recursive searches handing files to a visitor run through an
+     * {@link InodeTable} of the disk: the files laid out in depth-first order in parallel arrays, so a
+     * scan reads consecutive entries, and names, types and sizes are tested without touching the files.
+     * The table is built again on the first scan after the tree changes, without stopping the sessions
+     * changing it, so this suits disks that are searched more often than they change.
+     *
+     * Off by default, as the table is not updated in place: a disk changed between every two scans
+     * lays out its whole tree again for each, and the table holds about 29 bytes per file besides
+     * the tree itself.
+     */
+    public void enableInodeScans() {
+        this.inodeScansEnabled = true;
+    }
 
-        if(newTotalSize > getVirtualDisk().getMaxSize()){
-            throw new IllegalStateException("Not enough space found on disk.");
+    /**
+     * Turn on compression of document content. On the current disk, and every disk created or loaded
+     * from now on, content at least as long as the threshold is deflated when it is stored and inflated
+     * when it is read, with the most recently read contents cached inflated. Sizes and the disk quota
+     * still count the content uncompressed.
+     *
+     * @param threshold The content length in bytes from which to compress.
+     * @throws IllegalArgumentException if the threshold is not positive.
+     */
+    public void enableCompression(int threshold) throws IllegalArgumentException {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("The compression threshold must be positive: " + threshold);
         }
+        this.compressionThreshold = threshold;
+        virtualDisk.enableCompression(threshold);
+    }
+
+    /**
+     * Turn on lazy loading. Disks loaded from now on are read from their image one directory at a
+     * time, as changing directory, listing or searching first reaches each directory, so loading reads
+     * the root directory only. After a recursive listing or search, or a store, the directories loaded
+     * last are let go of again until no more than the given number are loaded, as long as they are
+     * as in the image and no working directory has been in them. Directories are never let go of while
+     * another session works on the disk, or it has snapshots or indexes.
+     *
+     * @param maxLoadedDirectories The number of directories to keep loaded.
+     * @throws IllegalArgumentException if the number is not positive.
+     */
+    public void enableLazyLoading(int maxLoadedDirectories) throws IllegalArgumentException {
+        if (maxLoadedDirectories <= 0) {
+            throw new IllegalArgumentException("The number of loaded directories must be positive: " + maxLoadedDirectories);
+        }
+        this.maxLoadedDirectories = maxLoadedDirectories;
+    }
+
+    /**
+     * Turn on delta stores. After the next store or load, storing the disk to the same image again only
+     * writes the changes made since, as a delta next to the image, and loading the image applies its
+     * deltas in order. Once the given number of deltas are stored, they are folded back into the image in
+     * the background. Storing to another image writes it whole, and drops its deltas.
+     *
+     * @param maxDeltas The number of deltas to store before they are compacted.
+     * @throws IllegalArgumentException if the number is not positive.
+     */
+    public void enableDeltaStores(int maxDeltas) throws IllegalArgumentException {
+        if (maxDeltas <= 0) {
+            throw new IllegalArgumentException("The number of deltas must be positive: " + maxDeltas);
+        }
+        this.maxDeltas = maxDeltas;
+    }
+
+    /**
+     * Wait for the deltas of the image the current disk was last stored to or loaded from to be
+     * compacted, if they are being compacted in the background.
+     *
+     * @return The number of deltas folded into the image, or 0 if none were being compacted.
+     * @throws IOException if the compaction failed. The deltas are then left as they were.
+     */
+    public int awaitCompaction() throws IOException {
+        Path imagePath = virtualDisk.getDeltaImagePath();
+        return imagePath == null ? 0 : DeltaImage.awaitCompaction(imagePath);
+    }
+
+    /**
+     * Add gauges of this session and its disk to a metrics registry: the bytes used and available on
+     * the disk, its document and directory counts, the directories it has loaded from a lazily read
+     * image, the depth of the undo and redo history, the bytes it keeps reachable, the logical and
+     * physical bytes of document content, its compression ratio and the number of criteria. They
+     * follow the session to other disks.
+     *
+     * @param registry The registry.
+     */
+    public void registerGauges(MetricsRegistry registry) {
+        registry.registerGauge("disk.usedBytes", () -> virtualDisk.getUsedSize());
+        registry.registerGauge("disk.maxBytes", () -> virtualDisk.getMaxSize());
+        registry.registerGauge("disk.documents", () -> virtualDisk.getDocumentCount());
+        registry.registerGauge("disk.directories", () -> virtualDisk.getDirectoryCount());
+        registry.registerGauge("disk.loadedDirectories", () -> virtualDisk.getLoadedDirectoryCount());
+        registry.registerGauge("history.undoDepth", history::getUndoDepth);
+        registry.registerGauge("history.redoDepth", history::getRedoDepth);
+        registry.registerGauge("history.retainedBytes", history::getRetainedBytes);
+        registry.registerGauge("content.logicalBytes", () -> virtualDisk.getLogicalContentBytes());
+        registry.registerGauge("content.physicalBytes", () -> virtualDisk.getPhysicalContentBytes());
+        registry.registerGauge("content.compressionRatioPercent", () -> Math.round(virtualDisk.getCompressionRatio() * 100));
+        registry.registerGauge("criteria.count", () -> virtualDisk.getCriteriaMap().size());
+    }
+
+    /**
+     * Create a new virtual disk. Code should handle side effects such as
+     * closing a previous virtual disk.
+     * @param maxSize The max size of the virtual disk.
+     */
+    public void newDisk(long maxSize) {
+        NEW_DISK.run(() -> {
+            // create new virtual disk, and set it to be the current one.
+            final VirtualDisk previousDisk = this.virtualDisk;
+            final WorkingDirectory previousWorkingDirectory = this.workingDirectory;
+            final VirtualDisk newDisk = new VirtualDisk(maxSize, contentStoreType);
+            if (indexesEnabled) {
+                newDisk.buildIndex();
+            }
+            if (compressionThreshold > 0) {
+                newDisk.enableCompression(compressionThreshold);
+            }
+            switchDisk(previousDisk, newDisk, newDisk.getWorkingDirectory());
+
+            // specify the 'undo' operation
+            Runnable undo = () -> {
+                switchDisk(newDisk, previousDisk, previousWorkingDirectory);
+                UI.printSuccess("Undid Creation of Disk.");
+            };
+
+            // specify the 'redo' operation
+            Runnable redo = () -> {
+                switchDisk(previousDisk, newDisk, newDisk.getWorkingDirectory());
+                UI.printSuccess("Redid Creation of Disk");
+            };
+
+            // create and save the opration to the history. Once it drops out, the disk on the side
+            // that can no longer be switched back to is let go of.
+            BonusFeatures action = new BonusFeatures(undo, redo, previousDisk.getUsedSize(), newDisk.getUsedSize(),
+                    previousDisk::discard, newDisk::discard);
+            history.record(action);
+        });
+    }
+
+    /**
+     * Replace the working disk, releasing the disk being replaced. Its content store is
+     * closed if no other session is working on it.
+     * @param from The disk being replaced.
+     * @param to The disk to work with from now on.
+     * @param toWorkingDirectory The working directory on the disk to work with.
+     */
+    private void switchDisk(VirtualDisk from, VirtualDisk to, WorkingDirectory toWorkingDirectory) {
+        to.acquire();
+        from.release();
+        this.virtualDisk = to;
+        this.workingDirectory = toWorkingDirectory;
     }
 
     /**
@@ -104,38 +387,38 @@ public class CVFS {
      */
 
     public void newDocument(String docName, String docType, String docContent) throws IllegalArgumentException{
+        NEW_DOCUMENT.run(() -> {
+            // get the current working directory.
+            Directory currentWorkingDirectory = workingDirectory.getCurrentDirectory();
 
-        // get the current working directory.
-        Directory currentWorkingDirectory = virtualDisk.getCurrentWorkingDirectory();
-
-        // check if the file exists
-        if (fileExists(currentWorkingDirectory, docName)) {
-            throw new IllegalArgumentException("A file with the same name exists. Check and try again.");
-        }
-
-        // create a new document now
-        final Document document = new Document(docName, docType, docContent);
+            // check if the file exists
+            if (fileExists(currentWorkingDirectory, docName)) {
+                throw new IllegalArgumentException("A file with the same name exists. Check and try again.");
+            }
 
-        // check that we should not exceed max disk size
-        checkDiskSize(document);
+            // create a new document now
+            final Document document = new Document(docName, docType, docContent);
 
-        // save the document in the current working directory
-        currentWorkingDirectory.getFiles().add(document);
+            // save the document in the current working directory, if it still fits on the disk.
+            final VirtualDisk disk = virtualDisk;
+            disk.addNewFile(currentWorkingDirectory, document);
 
-        // specify the 'undo' operation
-        Runnable undo = () -> {
-            currentWorkingDirectory.getFiles().remove(document);
-            UI.printSuccess("Undid Creation of Document");
-        };
+            // specify the 'undo' operation
+            Runnable undo = () -> {
+                disk.removeFile(currentWorkingDirectory, document);
+                UI.printSuccess("Undid Creation of Document");
+            };
 
-        // 'redo' operation
-        Runnable redo = () -> {
-            currentWorkingDirectory.getFiles().add(document);
-            System.out.println("Redid Creation of Document");
-        };
+            // 'redo' operation
+            Runnable redo = () -> {
+                disk.addFile(currentWorkingDirectory, document);
+                UI.printSuccess("Redid Creation of Document");
+            };
 
-        // save action
-        undoActions.add(new BonusFeatures(undo, redo));
+            // save action
+            // the tree holds the document until the creation is undone.
+            history.record(new BonusFeatures(undo, redo, 0, document.getSize()));
+        });
     }
 
     /**
@@ -144,12 +427,43 @@ public class CVFS {
      * @return The file if found. Return null if no file is found.
      */
     public File findFile(Directory directory, String fileName) {
-        for (File file : directory.getFiles()) {
-            if (file.getName().equals(fileName)) {
-                return file;
+        return FIND_FILE.call(() -> {
+            Lock lock = DirectoryLocks.forDirectory(directory).readLock();
+            lock.lock();
+            try {
+                return directory.getFile(fileName);
+            } finally {
+                lock.unlock();
             }
+        });
+    }
+
+    /**
+     * @param directory The directory to list.
+     * @return A copy of the files in the directory, safe to use while other sessions change it.
+     */
+    static List<File> snapshotFiles(Directory directory) {
+        Lock lock = DirectoryLocks.forDirectory(directory).readLock();
+        lock.lock();
+        try {
+            return new ArrayList<>(directory.getFiles());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param directory The directory to count the files of.
+     * @return The number of files directly in the directory.
+     */
+    private static int fileCount(Directory directory) {
+        Lock lock = DirectoryLocks.forDirectory(directory).readLock();
+        lock.lock();
+        try {
+            return directory.getFiles().size();
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
     /**
@@ -168,34 +482,35 @@ public class CVFS {
      */
 
     public void newDirectory(String name) {
-        // get the current working directory.
-        Directory currentWorkingDirectory = virtualDisk.getCurrentWorkingDirectory();
+        NEW_DIRECTORY.run(() -> {
+            // get the current working directory.
+            Directory currentWorkingDirectory = workingDirectory.getCurrentDirectory();
 
-        // check if the file exists
-        if (fileExists(currentWorkingDirectory, name)) {
-            throw new IllegalArgumentException("A file with the same name exists. Check and try again.");
-        }
-
-        // create the directory.
-        final Directory directory = new Directory(name);
+            // check if the file exists
+            if (fileExists(currentWorkingDirectory, name)) {
+                throw new IllegalArgumentException("A file with the same name exists. Check and try again.");
+            }
 
-        checkDiskSize(directory);
+            // create the directory.
+            final Directory directory = new Directory(name);
 
-        // save the directory to the current working directory
-        currentWorkingDirectory.getFiles().add(directory);
+            // save the directory to the current working directory, if it still fits on the disk.
+            final VirtualDisk disk = virtualDisk;
+            disk.addNewFile(currentWorkingDirectory, directory);
 
-        // specify the undo, redo ops
-        Runnable undo = () -> {
-            currentWorkingDirectory.getFiles().remove(directory);
-            System.out.println("\nUndid Creation of Directory \n");
-        };
+            // specify the undo, redo ops
+            Runnable undo = () -> {
+                disk.removeFile(currentWorkingDirectory, directory);
+                UI.printSuccess("Undid Creation of Directory");
+            };
 
-        Runnable redo = () -> {
-            currentWorkingDirectory.getFiles().add(directory);
-            System.out.println("\nRedid Creation of Directory \n");
-        };
+            Runnable redo = () -> {
+                disk.addFile(currentWorkingDirectory, directory);
+                UI.printSuccess("Redid Creation of Directory");
+            };
 
-        undoActions.add(new BonusFeatures(undo, redo));
+            history.record(new BonusFeatures(undo, redo, 0, directory.getSize()));
+        });
     }
 
     /**
@@ -205,32 +520,38 @@ public class CVFS {
      */
 
     public void deleteFile(String name) throws IllegalArgumentException{
-        // get the current working dir
-        Directory currentWorkingDir = virtualDisk.getCurrentWorkingDirectory();
+        DELETE_FILE.run(() -> {
+            // get the current working dir
+            Directory currentWorkingDir = workingDirectory.getCurrentDirectory();
 
-        // pull out the target file to be deleted
-        File targetFile = findFile(currentWorkingDir, name);
+            // pull out the target file to be deleted
+            File targetFile = findFile(currentWorkingDir, name);
 
-        // ensure the file exists.
-        if (targetFile == null) {
-            throw new IllegalArgumentException("The file was not found. Check and try again.");
-        }
+            // ensure the file exists.
+            if (targetFile == null) {
+                throw new IllegalArgumentException("The file was not found. Check and try again.");
+            }
 
-        // delete the file
-        currentWorkingDir.getFiles().remove(targetFile);
+            // delete the file, and free the space its content took in the content store.
+            // another session may have deleted it since it was found.
+            final VirtualDisk disk = virtualDisk;
+            if (!disk.removeFile(currentWorkingDir, targetFile)) {
+                throw new IllegalArgumentException("The file was not found. Check and try again.");
+            }
 
-        // specify the undo, redo ops
-        Runnable undo = () -> {
-            currentWorkingDir.getFiles().add(targetFile);
-            UI.printSuccess("Undid delete file");
-        };
+            // specify the undo, redo ops
+            Runnable undo = () -> {
+                disk.addFile(currentWorkingDir, targetFile);
+                UI.printSuccess("Undid delete file");
+            };
 
-        Runnable redo = () -> {
-            currentWorkingDir.getFiles().remove(targetFile);
-            UI.printSuccess("Redid delete file");
-        };
+            Runnable redo = () -> {
+                disk.removeFile(currentWorkingDir, targetFile);
+                UI.printSuccess("Redid delete file");
+            };
 
-        undoActions.add(new BonusFeatures(undo, redo));
+            history.record(new BonusFeatures(undo, redo, targetFile.getSize(), 0));
+        });
     }
 
 
@@ -242,40 +563,43 @@ public class CVFS {
      */
 
     public void renameFile(String oldName, String newName) throws IllegalArgumentException{
-        // get the current working directory
-        Directory currentWorkingDir = virtualDisk.getCurrentWorkingDirectory();
+        RENAME_FILE.run(() -> {
+            // get the current working directory
+            Directory currentWorkingDir = workingDirectory.getCurrentDirectory();
 
-        // find the target
-        File targetFile = findFile(currentWorkingDir, oldName);
+            // find the target
+            File targetFile = findFile(currentWorkingDir, oldName);
 
-        // ensure the target file exists.
-        if (targetFile == null) {
-            throw new IllegalArgumentException("No file found with name: " + oldName);
-        }
+            // ensure the target file exists.
+            if (targetFile == null) {
+                throw new IllegalArgumentException("No file found with name: " + oldName);
+            }
 
-        // ensure the new name does not point to another existing ile
-        if (fileExists(currentWorkingDir, newName)) {
-            throw new IllegalArgumentException("A file already exists with the name: " + newName
-                    + ". Check and try again");
-        }
+            // ensure the new name does not point to another existing ile
+            if (fileExists(currentWorkingDir, newName)) {
+                throw new IllegalArgumentException("A file already exists with the name: " + newName
+                        + ". Check and try again");
+            }
 
-        String oldFileName = targetFile.getName();
+            String oldFileName = targetFile.getName();
 
-        // rename the file
-        targetFile.setName(newName);
+            // rename the file
+            final VirtualDisk disk = virtualDisk;
+            disk.renameFile(currentWorkingDir, targetFile, newName);
 
-        // specify the undo/redo ops
-        Runnable undo = () -> {
-            targetFile.setName(oldFileName);
-            UI.printSuccess("Undid Rename File");
-        };
+            // specify the undo/redo ops
+            Runnable undo = () -> {
+                disk.renameFile(currentWorkingDir, targetFile, oldFileName);
+                UI.printSuccess("Undid Rename File");
+            };
 
-        Runnable redo = () -> {
-            targetFile.setName(newName);
-            UI.printSuccess("Redid Rename File");
-        };
+            Runnable redo = () -> {
+                disk.renameFile(currentWorkingDir, targetFile, newName);
+                UI.printSuccess("Redid Rename File");
+            };
 
-        undoActions.add(new BonusFeatures(undo, redo));
+            history.record(new BonusFeatures(undo, redo));
+        });
     }
 
     /**
@@ -285,58 +609,35 @@ public class CVFS {
      */
 
     public void changeDir(String directoryName) throws IllegalArgumentException{
-        // get the current working directory
-        Directory currentWorkingDir = virtualDisk.getCurrentWorkingDirectory();
+        CHANGE_DIR.run(() -> {
+            // get the current working directory
+            final WorkingDirectory workDir = workingDirectory;
+            Directory currentWorkingDir = workDir.getCurrentDirectory();
+            List<Directory> before = workDir.getDirectories();
+
+            // check if the directory to switch to is not the parent of the current working directory.
+            if (!directoryName.trim().equals("..")) {
+                // get the target directory
+                File targetDirectory = findFile(currentWorkingDir, directoryName);
+                if (targetDirectory == null) {
+                    throw new IllegalArgumentException("No such directory was found");
+                }
 
-        // check if the directory to switch to is not the parent of the current working directory.
-        if (!directoryName.trim().equals("..")) {
-            // get the target directory
-            File targetDirectory = findFile(currentWorkingDir, directoryName);
-            if (targetDirectory == null) {
-                throw new IllegalArgumentException("No such directory was found");
-            }
+                // ensure the file found is a directory
+                if (!(targetDirectory instanceof Directory)) {
+                    throw new IllegalArgumentException("File given is not a directory");
+                }
 
-            // ensure the file found is a directory
-            if (!(targetDirectory instanceof Directory)) {
-                throw new IllegalArgumentException("File given is not a directory");
+                // switch over to the target directory
+                workDir.changeTo((Directory) targetDirectory);
+            } else {
+                // the directory to switch to is the parent of the current directory.
+                workDir.changeToParent();
             }
 
-            // cast to get the target directory
-            Directory targetDir = (Directory) targetDirectory;
-
-            // switch over to the target directory
-            virtualDisk.changeWorkingDirectory(targetDir);
-
-            // create the undo/redo ops
-            Runnable undo = () -> {
-                virtualDisk.changeWorkingDirectoryToPrevious();
-                UI.printSuccess("Undid change directory");
-            };
-
-            Runnable redo = () -> {
-                virtualDisk.changeWorkingDirectory(targetDir);
-                UI.printSuccess("Redid change directory");
-            };
-
-            undoActions.add(new BonusFeatures(undo, redo));
-        } else {
-            Directory prevWorkdir = virtualDisk.getCurrentWorkingDirectory();
-
-            // the directory to switch to is the parent of the current directory.
-            virtualDisk.changeWorkingDirectoryToParent();
-
-            Runnable undo = () -> {
-                virtualDisk.changeWorkingDirectory(prevWorkdir);
-                UI.printSuccess("Undid change directory");
-            };
-
-            Runnable redo = () -> {
-                virtualDisk.changeWorkingDirectoryToParent();
-                UI.printSuccess("Redid change directory");
-            };
-
-            undoActions.add(new BonusFeatures(undo, redo));
-        }
+            // save the directories before and after, so the change can be merged with the next one.
+            history.record(new DirectoryChange(workDir, before, workDir.getDirectories()));
+        });
     }
 
 
@@ -346,9 +647,10 @@ public class CVFS {
      */
 
     public List<File> list() {
-        // get the working dir
-        Directory workingDirectory = virtualDisk.getCurrentWorkingDirectory();
-        return workingDirectory.getFiles();
+        return LIST.call(() -> {
+            // get the working dir
+            return snapshotFiles(workingDirectory.getCurrentDirectory());
+        });
     }
 
 
@@ -357,22 +659,46 @@ public class CVFS {
      * @return The list of files to be returned recursively.
      */
     public List<Bucket> rList() {
-        // get the working dir
-        Directory workingDirectory = virtualDisk.getCurrentWorkingDirectory();
+        return R_LIST.call(() -> {
+            List<Bucket> buckets = walkWorkingDirectory(null);
+            // let go of the directories read lazily beyond those the disk keeps loaded.
+            virtualDisk.trimLoadedDirectories();
+            return buckets;
+        });
+    }
+
+    /**
+     * Walk the current working directory breadth first, in parallel if parallel traversal is on
+     * and the directory is large enough.
+     * @param filePredicate The files to keep, or null to keep every file.
+     * @return One bucket per directory walked. If filtering, buckets left empty are dropped.
+     */
+    private List<Bucket> walkWorkingDirectory(Predicate<File> filePredicate) {
+        Directory start = workingDirectory.getCurrentDirectory();
+        if (parallelThreshold > 0 && start.getSize() >= parallelThreshold) {
+            return ParallelTreeWalk.walk(start, filePredicate, parallelThreshold);
+        }
 
         List<Bucket> files = new ArrayList<>();
 
         Deque<Bucket> bucketQueue = new ArrayDeque<>();
-        Bucket firstBucket = new Bucket(0, workingDirectory.getFiles());
+        Bucket firstBucket = new Bucket(0, snapshotFiles(start));
         bucketQueue.add(firstBucket);
 
         while (!bucketQueue.isEmpty()) {
             Bucket targetBucket = bucketQueue.removeFirst();
-            files.add(targetBucket);
+            if (filePredicate == null) {
+                files.add(targetBucket);
+            } else {
+                List<File> filteredFiles = filterFilesByPredicate(targetBucket.getFiles(), filePredicate);
+                if (!filteredFiles.isEmpty()) {
+                    files.add(new Bucket(targetBucket.getLevel(), filteredFiles));
+                }
+            }
             for (File file : targetBucket.getFiles()) {
                 if (file instanceof Directory) {
                     Directory dir = (Directory) file;
-                    Bucket bucket = new Bucket(targetBucket.getLevel() + 1, dir.getFiles());
+                    Bucket bucket = new Bucket(targetBucket.getLevel() + 1, snapshotFiles(dir));
                     bucketQueue.add(bucket);
                 }
             }
@@ -420,7 +746,7 @@ public class CVFS {
      */
 
     public String getWorkingDirPath() {
-        return virtualDisk.getWorkkingDirPath();
+        return workingDirectory.getPath();
     }
 
     /**
@@ -433,20 +759,24 @@ public class CVFS {
      */
 
     public void createSimpleCriterion(String criName, String attrName, String op, String value) throws IllegalArgumentException{
-        Map<String, FileCriterion> criteriaMap = virtualDisk.getCriteriaMap();
-        switch (attrName) {
-            case "name":
-                criteriaMap.put(criName, new FileNameCriterion(criName, op, value));
-                break;
-            case "size":
-                criteriaMap.put(criName, new FileSizeCriterion(criName, op, value));
-                break;
-            case "type":
-                criteriaMap.put(criName, new FileTypeCriterion(criName, op, value));
-                break;
-        }
+        CREATE_SIMPLE_CRITERION.run(() -> {
+            switch (attrName) {
+                case "name":
+                    virtualDisk.putCriterion(new FileNameCriterion(criName, op, value));
+                    break;
+                case "size":
+                    virtualDisk.putCriterion(new FileSizeCriterion(criName, op, value));
+                    break;
+                case "type":
+                    virtualDisk.putCriterion(new FileTypeCriterion(criName, op, value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid attribute name: " + attrName
+                            + ". Only 'name', 'size' and 'type' are allowed");
+            }
 
-        createUndoRedoOpsForCreatedCriteria(criName);
+            createUndoRedoOpsForCreatedCriteria(criName);
+        });
     }
 
     /**
@@ -454,22 +784,22 @@ public class CVFS {
      * @param criName The name of the criterion to be created.
      */
     private void createUndoRedoOpsForCreatedCriteria(String criName) {
-        Map<String, FileCriterion> criteriaMap = virtualDisk.getCriteriaMap();
+        final VirtualDisk disk = virtualDisk;
 
-        FileCriterion createdCriterion = criteriaMap.get(criName);
+        FileCriterion createdCriterion = disk.getCriteriaMap().get(criName);
 
         // specify the undo/redo ops
         Runnable undo = () -> {
-            criteriaMap.remove(criName);
-            System.out.println("\nUndid creation of the criterion\n");
+            disk.removeCriterion(criName);
+            UI.printSuccess("Undid creation of the criterion");
         };
 
         Runnable redo = () -> {
-            criteriaMap.put(criName, createdCriterion);
-            System.out.println("\nRedid creation of the criterion\n");
+            disk.putCriterion(createdCriterion);
+            UI.printSuccess("Redid creation of the criterion");
         };
 
-        undoActions.add(new BonusFeatures(undo, redo));
+        history.record(new BonusFeatures(undo, redo));
     }
 
     /**
@@ -480,16 +810,18 @@ public class CVFS {
      */
 
     public void createNegationCriterion(String criName1, String criName2) {
-        Map<String, FileCriterion> criteriaMap = virtualDisk.getCriteriaMap();
-        if (!criteriaMap.containsKey(criName2)) {
-            throw new IllegalArgumentException("No criterion was found with name: " + criName2);
-        }
+        CREATE_NEGATION_CRITERION.run(() -> {
+            Map<String, FileCriterion> criteriaMap = virtualDisk.getCriteriaMap();
+            if (!criteriaMap.containsKey(criName2)) {
+                throw new IllegalArgumentException("No criterion was found with name: " + criName2);
+            }
 
-        FileCriterion targetFileCriterion = criteriaMap.get(criName2);
-        criteriaMap.put(criName1, new NegationCompositeCriterion(criName1, targetFileCriterion));
+            FileCriterion targetFileCriterion = criteriaMap.get(criName2);
+            virtualDisk.putCriterion(new NegationCompositeCriterion(criName1, targetFileCriterion));
 
-        // define the undo/redo ops
-        createUndoRedoOpsForCreatedCriteria(criName1);
+            // define the undo/redo ops
+            createUndoRedoOpsForCreatedCriteria(criName1);
+        });
     }
 
     /**
@@ -501,22 +833,24 @@ public class CVFS {
      */
 
     public void createBinaryCriterion(String criName, String criName1, String criName2, String operand) {
-        Map<String, FileCriterion> criteriaMap = virtualDisk.getCriteriaMap();
-        if (!criteriaMap.containsKey(criName1)) {
-            throw new IllegalArgumentException("Criterion not found: " + criName1);
-        }
+        CREATE_BINARY_CRITERION.run(() -> {
+            Map<String, FileCriterion> criteriaMap = virtualDisk.getCriteriaMap();
+            if (!criteriaMap.containsKey(criName1)) {
+                throw new IllegalArgumentException("Criterion not found: " + criName1);
+            }
 
-        if (!criteriaMap.containsKey(criName2)) {
-            throw new IllegalArgumentException("Criterion not found: " + criName2);
-        }
+            if (!criteriaMap.containsKey(criName2)) {
+                throw new IllegalArgumentException("Criterion not found: " + criName2);
+            }
 
-        FileCriterion criterion1 = criteriaMap.get(criName1);
-        FileCriterion criterion2 = criteriaMap.get(criName2);
+            FileCriterion criterion1 = criteriaMap.get(criName1);
+            FileCriterion criterion2 = criteriaMap.get(criName2);
 
-        criteriaMap.put(criName, new BinaryCompositeCriterion(criName, operand, criterion1, criterion2));
+            virtualDisk.putCriterion(new BinaryCompositeCriterion(criName, operand, criterion1, criterion2));
 
-        // define the undo/redo ops
-        createUndoRedoOpsForCreatedCriteria(criName);
+            // define the undo/redo ops
+            createUndoRedoOpsForCreatedCriteria(criName);
+        });
     }
 
     /**
@@ -527,15 +861,19 @@ public class CVFS {
      * @return Files placed in a bucket. The bucket also has how deep (the level) the files were found.
      */
     private List<Bucket> searchFiles(Directory directory, Predicate<File> filePredicate) {
-        List<File> files = directory.getFiles();
+        List<File> files = snapshotFiles(directory);
         List<File> filteredFiles = filterFilesByPredicate(files, filePredicate);
         return Collections.singletonList(new Bucket(0, filteredFiles));
     }
 
     private List<File> filterFilesByPredicate(List<File> files, Predicate<File> filePredicate) {
-        return files.stream()
-                .filter(filePredicate)
-                .collect(Collectors.toList());
+        List<File> filteredFiles = new ArrayList<>();
+        for (File file : files) {
+            if (filePredicate.test(file)) {
+                filteredFiles.add(file);
+            }
+        }
+        return filteredFiles;
     }
 
     /**
@@ -544,7 +882,9 @@ public class CVFS {
      */
 
     public List<FileCriterion> getAllCriteria() {
-        return new ArrayList<>(virtualDisk.getCriteriaMap().values());
+        return GET_ALL_CRITERIA.call(() -> {
+            return new ArrayList<>(virtualDisk.getCriteriaMap().values());
+        });
     }
 
     /**
@@ -555,14 +895,21 @@ public class CVFS {
      */
 
     public List<File> searchByCriterion(String criterionName) throws IllegalArgumentException {
-        // create the predicate.
-        Predicate<File> fileCriterionPredicate = getFilePredicateFromCriterionName(criterionName);
-
+        return SEARCH.call(() -> {
+            FileCriterion criterion = getCriterion(criterionName);
+            Directory directory = workingDirectory.getCurrentDirectory();
+
+            // use the indexes if they give fewer files to test than the directory has.
+            Set<File> candidates = findCandidates(criterion, fileCount(directory) - 1);
+            if (candidates != null) {
+                return searchIndexed(directory, candidates, criterion.compile(), false).get(0).getFiles();
+            }
 
-        // search the files in the current working dir that satisfy the predicate.
-        List<File> files = searchFiles(getVirtualDisk().getCurrentWorkingDirectory(), fileCriterionPredicate)
-                .get(0).getFiles();
-        return files;
+            // search the files in the current working dir that satisfy the predicate.
+            List<File> files = searchFiles(directory, criterion.compile())
+                    .get(0).getFiles();
+            return files;
+        });
     }
 
     /**
@@ -573,16 +920,153 @@ public class CVFS {
      */
 
     public void store(String name) throws Exception{
-        try (
-                // create output stream to store the virtual disk.
-                OutputStream outputStream = new FileOutputStream(name);
-                ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream)
-        ) {
-            // save the virtual disk to file system.
-            objectOutputStream.writeObject(virtualDisk);
-            objectOutputStream.flush();
-            UI.printSuccess("Stored the current virtual disk successfully");
+        STORE.run(() -> {
+            // stores are written in the order they are made.
+            awaitBackgroundStore();
+
+            Path path = Paths.get(name).toAbsolutePath();
+            String written = prepareStore(path, null).call();
+            virtualDisk.trimLoadedDirectories();
+            UI.printSuccess("Stored the current virtual disk successfully (" + written + ")");
+        });
+    }
+
+    /**
+     * Store the current virtual disk to file system on a background thread, while commands go on
+     * changing it. The disk is stored as it is when this is called: the store takes a snapshot, whose
+     * directories keep a copy of their files as they change from then on (see {@link Snapshot}), and
+     * writes it out on the other thread.
+     *
+     * @param name The name of the file to store the virtual disk.
+     * @return The progress of the store.
+     * @throws IllegalStateException if a store is running in the background already.
+     */
+    public StoreProgress storeInBackground(String name) throws IllegalStateException {
+        StoreProgress running = backgroundStore;
+        if (running != null && !running.isDone()) {
+            throw new IllegalStateException("A store is running in the background already: " + running.getPath());
+        }
+
+        long started = STORE.start();
+        try {
+            Path path = Paths.get(name).toAbsolutePath();
+            StoreProgress progress = new StoreProgress(path);
+            Callable<String> store = prepareStore(path, progress);
+            Thread thread = new Thread(() -> {
+                try {
+                    progress.succeed(store.call());
+                } catch (Exception e) {
+                    STORE.fail();
+                    progress.fail(e);
+                } finally {
+                    STORE.record(started);
+                }
+            }, "cvfs-store");
+            backgroundStore = progress;
+            thread.start();
+            return progress;
+        } catch (RuntimeException e) {
+            STORE.fail();
+            STORE.record(started);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The progress of the store running in the background, or of the last one to finish, or
+     * null if this session has not stored in the background.
+     */
+    public StoreProgress getBackgroundStore() {
+        return backgroundStore;
+    }
+
+    /**
+     * Wait for the store running in the background, if any, to finish.
+     *
+     * @return Its progress, or null if this session has not stored in the background.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public StoreProgress awaitBackgroundStore() throws InterruptedException {
+        StoreProgress progress = backgroundStore;
+        if (progress != null) {
+            progress.await();
         }
+        return progress;
+    }
+
+    /**
+     * Take the point in time a store of the current disk holds, and hand back the work of writing it
+     * out, which can run on another thread while the disk goes on changing. The disk stays open until
+     * the work is done.
+     *
+     * @param path The path of the image.
+     * @param progress Where to count the files written, or null.
+     * @return The work, returning what it wrote.
+     */
+    private Callable<String> prepareStore(Path path, StoreProgress progress) {
+        VirtualDisk disk = virtualDisk;
+        long checkpointId = new Random().nextLong();
+        Callable<String> write;
+        if (disk.canStoreDelta(path)) {
+            // write the changes since the last store as a delta chained to the image, and fold the
+            // deltas back into the image in the background once there are enough of them.
+            DeltaImage.Delta delta = disk.atStorePoint(() -> DeltaImage.take(disk, checkpointId));
+            write = () -> {
+                String written = DeltaImage.write(path, disk, delta) + " bytes of changes written";
+                disk.setDeltaCount(disk.getDeltaCount() + 1);
+                if (disk.getDeltaCount() >= maxDeltas) {
+                    DeltaImage.compactInBackground(path);
+                    disk.setDeltaCount(0);
+                }
+                return written;
+            };
+        } else {
+            // a compaction still running would move an older image in place of this one.
+            try {
+                DeltaImage.awaitCompaction(path);
+            } catch (IOException e) {
+                UI.printError("Could not compact the deltas of the disk image: " + e.getMessage());
+            }
+
+            // write a snapshot of the virtual disk to a disk image, only touching the pages that changed.
+            // the disk can go on changing meanwhile.
+            Snapshot snapshot = disk.atStorePoint(() -> {
+                if (maxDeltas > 0) {
+                    disk.startDeltas(path, 0);
+                }
+                return disk.snapshot();
+            });
+            write = () -> {
+                try (Snapshot frozen = snapshot) {
+                    String written = DiskImage.write(frozen, path, checkpointId, false, progress) + " pages written";
+                    DeltaImage.deleteAll(path);
+                    return written;
+                } catch (Exception e) {
+                    disk.stopDeltas();
+                    throw e;
+                }
+            };
+        }
+
+        disk.acquire();
+        return () -> {
+            try {
+                String written = write.call();
+                disk.setCheckpointId(checkpointId);
+
+                // the image holds the changes logged up to the snapshot now, so the log keeps the others only.
+                WriteAheadLog log = disk.getWriteAheadLog();
+                if (log != null) {
+                    log.rebase(WriteAheadLog.pathFor(path), checkpointId);
+                } else if (writeAheadLogSyncInterval > 0) {
+                    disk.setWriteAheadLog(WriteAheadLog.create(
+                            WriteAheadLog.pathFor(path), checkpointId, writeAheadLogSyncInterval));
+                }
+                return written;
+            } finally {
+                disk.release();
+            }
+        };
     }
 
     /**
@@ -592,46 +1076,341 @@ public class CVFS {
      */
 
     public void load(String fileName) throws Exception {
-        try (
-                InputStream inputStream = new FileInputStream(fileName);
-                ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)
-        ) {
+        LOAD.run(() -> {
+            // a store running in the background may be writing the image.
+            awaitBackgroundStore();
 
             VirtualDisk prevDisk = this.virtualDisk;
 
-            VirtualDisk newVirtualDisk = (VirtualDisk) objectInputStream.readObject();
-            this.virtualDisk = newVirtualDisk;
+            Path path = Paths.get(fileName).toAbsolutePath();
+
+            // map the disk image. Document content is only read from it when it is needed, and
+            // directories too if they are read lazily.
+            VirtualDisk newVirtualDisk = maxLoadedDirectories > 0
+                    ? DiskImage.readLazily(path, maxLoadedDirectories) : DiskImage.read(path);
+
+            // bring it up to date with the deltas stored since it was stored whole, and the changes logged since.
+            List<Path> deltas = DeltaImage.replay(path, newVirtualDisk);
+            if (maxDeltas > 0) {
+                newVirtualDisk.startDeltas(path, deltas.size());
+            }
+            if (writeAheadLogSyncInterval > 0) {
+                newVirtualDisk.setWriteAheadLog(WriteAheadLog.replay(
+                        WriteAheadLog.pathFor(path), newVirtualDisk, newVirtualDisk.getCheckpointId(), writeAheadLogSyncInterval));
+            }
+            if (indexesEnabled) {
+                newVirtualDisk.buildIndex();
+            }
+            if (compressionThreshold > 0) {
+                newVirtualDisk.enableCompression(compressionThreshold);
+            }
+            final WorkingDirectory prevWorkingDirectory = this.workingDirectory;
+            switchDisk(prevDisk, newVirtualDisk, newVirtualDisk.getWorkingDirectory());
 
             UI.printSuccess("Read virtual disk successfully!");
 
             // create the undo/redo ops
             Runnable undo = () -> {
-                this.virtualDisk = prevDisk;
+                switchDisk(newVirtualDisk, prevDisk, prevWorkingDirectory);
                 UI.printSuccess("Undid loading of virtual disk");
             };
 
             Runnable redo = () -> {
-                this.virtualDisk = newVirtualDisk;
+                switchDisk(prevDisk, newVirtualDisk, newVirtualDisk.getWorkingDirectory());
                 UI.printSuccess("Redid loading of virtual disk");
             };
 
-            undoActions.push(new BonusFeatures(undo, redo));
-        }
+            history.record(new BonusFeatures(undo, redo, prevDisk.getUsedSize(), newVirtualDisk.getUsedSize(),
+                    prevDisk::discard, newVirtualDisk::discard));
+        });
     }
 
 
-    private Predicate<File> getFilePredicateFromCriterionName(String criterionName){
-        Map<String, FileCriterion> criteriaMap = virtualDisk.getCriteriaMap();
+    private FileCriterion getCriterion(String criterionName){
+        // find the criterion
+        FileCriterion fileCriterion = virtualDisk.getCriteriaMap().get(criterionName);
 
-        if (!criteriaMap.containsKey(criterionName)) {
+        if (fileCriterion == null) {
             throw new IllegalArgumentException("No criterion found with name: " + criterionName);
         }
+        return fileCriterion;
+    }
 
-        // find the criterion
-        final FileCriterion fileCriterion = criteriaMap.get(criterionName);
+    /**
+     * @param criterion The criterion to search by.
+     * @param limit The most files worth testing from the indexes rather than scanning.
+     * @return The files on the disk that may match the criterion, or null if the disk keeps no
+     * indexes, or they cannot narrow the files down to the limit.
+     */
+    private Set<File> findCandidates(FileCriterion criterion, long limit) {
+        FileIndex index = virtualDisk.getIndex();
+        if (index == null) {
+            return null;
+        }
+        // the estimate never falls short of the candidates, so none are gathered only to be scanned past.
+        long estimate = criterion.estimateCandidates(index);
+        return estimate < 0 || estimate > limit ? null : criterion.findCandidates(index);
+    }
 
-        // create the predicate.
-        return fileCriterion::validateFile;
+    /**
+     * @return The most files worth testing from the indexes in a recursive search rather than
+     * walking the tree.
+     */
+    private long indexScanLimit() {
+        FileIndex index = virtualDisk.getIndex();
+        return index == null ? -1 : index.getFileCount() / INDEX_SCAN_RATIO;
+    }
+
+    /**
+     * Search the current working directory using candidates found in the indexes. Only the
+     * directories leading to a match are walked, in the same order as a full walk, so the
+     * result is the same as testing every file.
+     *
+     * @param start The directory to search in.
+     * @param candidates Files on the disk that may match.
+     * @param filePredicate The predicate.
+     * @param recursive Whether to search below the directory as well.
+     * @return The matching files in buckets. Empty buckets are dropped, except that a
+     * search which is not recursive always returns one bucket.
+     */
+    private List<Bucket> searchIndexed(Directory start, Set<File> candidates,
+                                       Predicate<File> filePredicate, boolean recursive) {
+        Set<Directory> relevantDirectories = new HashSet<>();
+        Set<File> matches = matchCandidates(start, candidates, filePredicate, recursive, relevantDirectories);
+
+        List<Bucket> files = new ArrayList<>();
+        Deque<Directory> directoryQueue = new ArrayDeque<>();
+        Deque<Integer> levelQueue = new ArrayDeque<>();
+        directoryQueue.add(start);
+        levelQueue.add(0);
+        while (!directoryQueue.isEmpty()) {
+            Directory directory = directoryQueue.removeFirst();
+            int level = levelQueue.removeFirst();
+            List<File> filteredFiles = new ArrayList<>();
+            for (File file : snapshotFiles(directory)) {
+                if (matches.contains(file)) {
+                    filteredFiles.add(file);
+                }
+                if (recursive && relevantDirectories.contains(file)) {
+                    directoryQueue.add((Directory) file);
+                    levelQueue.add(level + 1);
+                }
+            }
+            if (!filteredFiles.isEmpty() || !recursive) {
+                files.add(new Bucket(level, filteredFiles));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Keep the candidates that match and lie in or below a directory.
+     *
+     * @param start The directory to search in.
+     * @param candidates Files on the disk that may match.
+     * @param filePredicate The predicate.
+     * @param recursive Whether to keep matches below the directory as well.
+     * @param relevantDirectories Filled with the directories leading from the start to a match, including the start.
+     * @return The matches.
+     */
+    private Set<File> matchCandidates(Directory start, Set<File> candidates, Predicate<File> filePredicate,
+                                      boolean recursive, Set<Directory> relevantDirectories) {
+        Set<File> matches = new HashSet<>();
+        relevantDirectories.add(start);
+
+        // directories found not to be below the start. Going up stops at any directory already
+        // known to be below it or not, so each directory is only walked through once.
+        Set<Directory> outsideDirectories = new HashSet<>();
+        List<Directory> path = new ArrayList<>();
+        for (File candidate : candidates) {
+            Directory parent = candidate.getParent();
+            if (parent == null || (!recursive && parent != start) || !filePredicate.test(candidate)) {
+                continue;
+            }
+            path.clear();
+            while (parent != null && !relevantDirectories.contains(parent) && !outsideDirectories.contains(parent)) {
+                path.add(parent);
+                parent = parent.getParent();
+            }
+            if (parent != null && relevantDirectories.contains(parent)) {
+                matches.add(candidate);
+                relevantDirectories.addAll(path);
+            } else {
+                outsideDirectories.addAll(path);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Walk the files below the current working directory depth first, handing them to a visitor as
+     * they are reached. Nothing is collected, so memory grows only with the depth of the tree, and
+     * the visitor can stop the walk at any file.
+     *
+     * @param visitor The visitor.
+     * @return False if the visitor stopped the walk early, true otherwise.
+     */
+    public boolean walk(FileVisitor visitor) {
+        return WALK.call(() -> {
+            boolean completed = scanWorkingDirectory(null, visitor);
+            virtualDisk.trimLoadedDirectories();
+            return completed;
+        });
+    }
+
+    /**
+     * Search recursively by criterion name, handing matching files to a visitor as they are found,
+     * depth first.
+     *
+     * @param criterionName The criterion name.
+     * @param visitor The visitor.
+     * @return False if the visitor stopped the search early, true otherwise.
+     * @throws IllegalArgumentException if the criterion specified isn't found.
+     */
+    public boolean searchRecursivelyByCriterion(String criterionName, FileVisitor visitor)
+            throws IllegalArgumentException {
+        return SEARCH_RECURSIVELY.call(() -> {
+            FileCriterion criterion = getCriterion(criterionName);
+            Directory start = workingDirectory.getCurrentDirectory();
+
+            // use the indexes if the criterion is selective, only going down to the files they give.
+            Set<File> candidates = findCandidates(criterion, indexScanLimit());
+            if (candidates != null) {
+                Set<Directory> relevantDirectories = new HashSet<>();
+                Set<File> matches = matchCandidates(start, candidates, criterion.compile(), true, relevantDirectories);
+                return walkDepthFirst(start, matches::contains, relevantDirectories::contains, visitor);
+            }
+            boolean completed = scanWorkingDirectory(criterion, visitor);
+            virtualDisk.trimLoadedDirectories();
+            return completed;
+        });
+    }
+
+    /**
+     * Take a snapshot of the current virtual disk and keep it under a name. Taking it does not copy
+     * the disk; the files are only copied as they change afterwards.
+     *
+     * @param name The name of the snapshot.
+     * @throws IllegalArgumentException if the disk already has a snapshot with the name.
+     */
+    public void takeSnapshot(String name) throws IllegalArgumentException {
+        TAKE_SNAPSHOT.run(() -> {
+            virtualDisk.addSnapshot(name);
+        });
+    }
+
+    /**
+     * Drop a snapshot of the current virtual disk, letting go of the files kept only for it.
+     *
+     * @param name The name of the snapshot.
+     * @throws IllegalArgumentException if the disk has no snapshot with the name.
+     */
+    public void dropSnapshot(String name) throws IllegalArgumentException {
+        DROP_SNAPSHOT.run(() -> {
+            virtualDisk.removeSnapshot(name);
+        });
+    }
+
+    /**
+     * Search a snapshot of the current virtual disk from its root directory, handing the matching files,
+     * as they were when the snapshot was taken, to a visitor depth first. The disk can go on changing
+     * meanwhile, without the search waiting for it or seeing the changes.
+     *
+     * @param snapshotName The name of the snapshot.
+     * @param criterionName The criterion name, or null to hand over every file.
+     * @param visitor The visitor.
+     * @throws IllegalArgumentException if the snapshot or the criterion isn't found.
+     */
+    public void searchSnapshot(String snapshotName, String criterionName, FileVisitor visitor)
+            throws IllegalArgumentException {
+        SEARCH_SNAPSHOT.run(() -> {
+            Snapshot snapshot = virtualDisk.getSnapshot(snapshotName);
+            if (snapshot == null) {
+                throw new IllegalArgumentException("No snapshot found with name: " + snapshotName);
+            }
+            if (criterionName == null) {
+                snapshot.walk(visitor);
+                return;
+            }
+            Predicate<File> predicate = getCriterion(criterionName).compile();
+            snapshot.walk((level, file) -> !predicate.test(file) || visitor.visit(level, file));
+        });
+    }
+
+    /**
+     * Hand the files below the working directory that match a criterion to a visitor, depth first,
+     * through the inode table of the disk if inode scans are on and it holds the working directory.
+     *
+     * @param criterion The criterion, or null to hand over every file.
+     * @param visitor The visitor.
+     * @return False if the visitor stopped the walk early, true otherwise.
+     */
+    private boolean scanWorkingDirectory(FileCriterion criterion, FileVisitor visitor) {
+        if (inodeScansEnabled) {
+            // the table is null if the tree changed while it was built, and the tree is walked instead.
+            InodeTable table = virtualDisk.getInodeTable();
+            int inode = table == null ? -1 : table.find(workingDirectory.getDirectories());
+            if (inode >= 0) {
+                return table.walk(inode, criterion == null ? null : criterion.compileForInodes(), visitor);
+            }
+        }
+        return walkDepthFirst(workingDirectory.getCurrentDirectory(),
+                criterion == null ? null : criterion.compile(), null, visitor);
+    }
+
+    /**
+     * Walk a directory tree depth first. Only the directories on the path to the current file are
+     * kept, with the position reached in each.
+     *
+     * @param start The directory to walk.
+     * @param filePredicate The files to hand to the visitor, or null for every file.
+     * @param directoryPredicate The directories to go down into, or null for every directory.
+     * @param visitor The visitor.
+     * @return False if the visitor stopped the walk early, true otherwise.
+     */
+    private static boolean walkDepthFirst(Directory start, Predicate<File> filePredicate,
+                                          Predicate<File> directoryPredicate, FileVisitor visitor) {
+        List<Directory> path = new ArrayList<>();
+        int[] positions = new int[8];
+        path.add(start);
+        while (!path.isEmpty()) {
+            int level = path.size() - 1;
+            File file = fileAt(path.get(level), positions[level]++);
+            if (file == null) {
+                // done with this directory, go back up.
+                path.remove(level);
+                continue;
+            }
+
+            if ((filePredicate == null || filePredicate.test(file)) && !visitor.visit(level, file)) {
+                return false;
+            }
+
+            if (file instanceof Directory && (directoryPredicate == null || directoryPredicate.test(file))) {
+                if (path.size() == positions.length) {
+                    positions = Arrays.copyOf(positions, positions.length * 2);
+                }
+                positions[path.size()] = 0;
+                path.add((Directory) file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param directory A directory.
+     * @param index A position in the directory.
+     * @return The file at the position, or null if the directory has no more files.
+     */
+    private static File fileAt(Directory directory, int index) {
+        Lock lock = DirectoryLocks.forDirectory(directory).readLock();
+        lock.lock();
+        try {
+            List<File> files = directory.getFiles();
+            return index < files.size() ? files.get(index) : null;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -640,23 +1419,20 @@ public class CVFS {
      * @return The list of files stored in buckets.
      */
     public List<Bucket> searchRecursivelyByCriterion(String criterionName) {
-        // create the predicate.
-        Predicate<File> fileCriterionPredicate = getFilePredicateFromCriterionName(criterionName);
+        return SEARCH_RECURSIVELY.call(() -> {
+            FileCriterion criterion = getCriterion(criterionName);
 
-        List<Bucket> allFiles = rList();
-        List<Bucket> allFilesFiltered = new ArrayList<>();
-        for (Bucket fileBucket : allFiles) {
-            List<File> files = fileBucket
-                    .getFiles()
-                    .stream()
-                    .filter(fileCriterionPredicate)
-                    .collect(Collectors.toList());
-
-            if(!files.isEmpty()){
-                allFilesFiltered.add(new Bucket(fileBucket.getLevel(), files));
+            // use the indexes if the criterion is selective, walking only to the files they give.
+            Set<File> candidates = findCandidates(criterion, indexScanLimit());
+            if (candidates != null) {
+                return searchIndexed(workingDirectory.getCurrentDirectory(), candidates, criterion.compile(), true);
             }
-        }
-        return allFilesFiltered;
+
+            // filter each directory as it is walked, rather than listing the whole tree first.
+            List<Bucket> buckets = walkWorkingDirectory(criterion.compile());
+            virtualDisk.trimLoadedDirectories();
+            return buckets;
+        });
     }
 
     /**
@@ -664,13 +1440,9 @@ public class CVFS {
      */
 
     public void redo() {
-        if (redoActions.isEmpty()) {
-            throw new IllegalStateException("No action found to be redone");
-        }
-
-        BonusFeatures action = redoActions.pop();
-        action.redo();
-        undoActions.push(action);
+        REDO.run(() -> {
+            history.redo();
+        });
     }
 
     /**
@@ -678,12 +1450,8 @@ public class CVFS {
      */
 
     public void undo() {
-        if (undoActions.isEmpty()) {
-            throw new IllegalStateException("No action found to be undone");
-        }
-
-        BonusFeatures action = undoActions.pop();
-        action.undo();
-        this.redoActions.push(action);
+        UNDO.run(() -> {
+            history.undo();
+        });
     }
 }
@@ -0,0 +1,284 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reads and writes deltas: the changes made to a virtual disk between two stores, chained to its disk image.
+ *
+ * A delta is a file next to the image, named after it with a sequence number. It holds the checkpoint id it
+ * applies on top of, that of the image or of the delta before it, its own checkpoint id, the working directory,
+ * and the changes as write-ahead log records (see {@link WriteAheadLog}), collected in memory as they are made.
+ * Storing a delta costs the changes since the last store rather than the whole disk. Loading an image applies
+ * the deltas that chain on to it in order; deltas whose ids do not chain on are left over from an older image,
+ * and are ignored.
+ *
+ * Deltas are folded back into the image by a compaction, which reads the image and its deltas into a disk of
+ * its own, writes a new image with the checkpoint id of the last delta, and deletes the deltas. Deltas stored
+ * meanwhile chain on to the new image as they did to the last delta, so a compaction runs in the background
+ * while the disk goes on being changed and stored.
+ */
+final class DeltaImage {
+    private static final long MAGIC = 0x4356465344454C31L; // "CVFSDEL1"
+    private static final int HEADER_SIZE = 3 * Long.BYTES;
+
+    // the compactions started, by the path of their image.
+    private static final Map<Path, Future<Integer>> compactions = new ConcurrentHashMap<>();
+
+    private DeltaImage() {
+    }
+
+    /**
+     * @param imagePath The path of a disk image.
+     * @param sequence The sequence number of a delta.
+     * @return The path of the delta.
+     */
+    static Path pathFor(Path imagePath, int sequence) {
+        return imagePath.resolveSibling(imagePath.getFileName() + ".delta." + sequence);
+    }
+
+    /**
+     * Take the changes made to a disk since it was last stored, as a delta chained to the image it
+     * was last stored to or loaded from. The caller must make sure the disk does not change meanwhile.
+     *
+     * @param disk The disk, collecting its changes (see {@link VirtualDisk#startDeltas(Path, int)}).
+     * @param checkpointId An id for this version of the disk, matched against its write-ahead log.
+     * @return The delta, to be written by {@link #write(Path, VirtualDisk, Delta)}.
+     */
+    static Delta take(VirtualDisk disk, long checkpointId) {
+        List<Directory> workingDirPath = disk.getWorkingDirectoryPath();
+        byte[] records = disk.getChangeLog().getRecords();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + records.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(MAGIC);
+            out.writeLong(disk.getCheckpointId());
+            out.writeLong(checkpointId);
+            out.writeInt(workingDirPath.size());
+            for (Directory dir : workingDirPath) {
+                out.writeUTF(dir.getName());
+            }
+            out.writeInt(records.length);
+            out.write(records);
+            out.flush();
+        } catch (IOException e) {
+            // never thrown writing to memory.
+            throw new UncheckedIOException(e);
+        }
+        return new Delta(bytes.toByteArray(), records.length);
+    }
+
+    /**
+     * Store a delta next to its image. The disk can go on changing meanwhile.
+     *
+     * @param imagePath The path of the image.
+     * @param disk The disk the delta was taken from.
+     * @param delta The delta.
+     * @return The number of bytes written.
+     * @throws IOException if the delta could not be written.
+     */
+    static long write(Path imagePath, VirtualDisk disk, Delta delta) throws IOException {
+        imagePath = imagePath.toAbsolutePath();
+        TreeMap<Integer, Path> deltas = list(imagePath);
+        int sequence = deltas.isEmpty() ? 1 : deltas.lastKey() + 1;
+        Path target = Files.createTempFile(imagePath.getParent(), "cvfs", ".tmp");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(delta.bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        try {
+            Files.move(target, pathFor(imagePath, sequence), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(target, pathFor(imagePath, sequence));
+        }
+
+        // only now that they are stored can the changes be let go of.
+        disk.getChangeLog().dropRecords(delta.recordsLength);
+        return delta.bytes.length;
+    }
+
+    /**
+     * Apply the deltas chained to an image to a disk that has just been read from it.
+     *
+     * @param imagePath The path of the image.
+     * @param disk The disk read from the image. Its checkpoint id becomes that of the last delta applied.
+     * @return The deltas applied, in order.
+     * @throws IOException if a delta could not be read, or does not apply to the disk.
+     */
+    static List<Path> replay(Path imagePath, VirtualDisk disk) throws IOException {
+        List<Path> applied = new ArrayList<>();
+        for (Path delta : list(imagePath.toAbsolutePath()).values()) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(delta)));
+            if (in.available() < HEADER_SIZE || in.readLong() != MAGIC) {
+                throw new IOException("Not a CVFS delta: " + delta);
+            }
+            if (in.readLong() != disk.getCheckpointId()) {
+                // folded into the image already, or left over from an older one.
+                continue;
+            }
+            long checkpointId = in.readLong();
+            List<String> workingDirPath = new ArrayList<>();
+            int depth = in.readInt();
+            for (int i = 0; i < depth; i++) {
+                workingDirPath.add(in.readUTF());
+            }
+            byte[] records = new byte[in.readInt()];
+            in.readFully(records);
+
+            WriteAheadLog.applyRecords(records, disk);
+            changeWorkingDirectory(disk, workingDirPath);
+            disk.setCheckpointId(checkpointId);
+            applied.add(delta);
+        }
+        return applied;
+    }
+
+    /**
+     * Delete the deltas of an image, once it has been stored whole.
+     *
+     * @param imagePath The path of the image.
+     * @throws IOException if a delta could not be deleted.
+     */
+    static void deleteAll(Path imagePath) throws IOException {
+        for (Path delta : list(imagePath.toAbsolutePath()).values()) {
+            Files.deleteIfExists(delta);
+        }
+    }
+
+    /**
+     * Fold the deltas of an image back into it on a background thread, unless they are being folded already.
+     *
+     * @param imagePath The path of the image.
+     */
+    static void compactInBackground(Path imagePath) {
+        compactions.compute(imagePath.toAbsolutePath(), (path, running) -> {
+            if (running != null && !running.isDone()) {
+                return running;
+            }
+            FutureTask<Integer> compaction = new FutureTask<>(() -> compact(path));
+            Thread thread = new Thread(compaction, "cvfs-compaction");
+            thread.setDaemon(true);
+            thread.start();
+            return compaction;
+        });
+    }
+
+    /**
+     * Wait for the compaction of an image started last, if any, to finish.
+     *
+     * @param imagePath The path of the image.
+     * @return The number of deltas it folded into the image, or 0 if there was no compaction.
+     * @throws IOException if the compaction failed. The deltas are then left as they were.
+     */
+    static int awaitCompaction(Path imagePath) throws IOException {
+        imagePath = imagePath.toAbsolutePath();
+        Future<Integer> compaction = compactions.get(imagePath);
+        if (compaction == null) {
+            return 0;
+        }
+        try {
+            return compaction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the compaction of " + imagePath);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Could not compact " + imagePath, e.getCause());
+        } finally {
+            compactions.remove(imagePath, compaction);
+        }
+    }
+
+    /**
+     * Fold the deltas of an image back into it.
+     *
+     * @param imagePath The path of the image.
+     * @return The number of deltas folded.
+     * @throws IOException if the image or a delta could not be read, or the new image could not be written.
+     */
+    static int compact(Path imagePath) throws IOException {
+        VirtualDisk disk = DiskImage.read(imagePath);
+        List<Path> folded = replay(imagePath, disk);
+        if (folded.isEmpty()) {
+            return 0;
+        }
+        // a new image moved in place of the old one, as disks loaded from the old one go on reading it.
+        try (Snapshot snapshot = disk.snapshot()) {
+            DiskImage.write(snapshot, imagePath, disk.getCheckpointId(), true, null);
+        }
+        for (Path delta : folded) {
+            Files.deleteIfExists(delta);
+        }
+        return folded.size();
+    }
+
+    // the deltas next to an image, by sequence number.
+    private static TreeMap<Integer, Path> list(Path imagePath) throws IOException {
+        String prefix = imagePath.getFileName() + ".delta.";
+        TreeMap<Integer, Path> deltas = new TreeMap<>();
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(imagePath.getParent(), prefix + "*")) {
+            for (Path sibling : siblings) {
+                String suffix = sibling.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.length() < 10 && suffix.chars().allMatch(Character::isDigit)) {
+                    deltas.put(Integer.parseInt(suffix), sibling);
+                }
+            }
+        }
+        return deltas;
+    }
+
+    // go into the directories on the path as far as they still exist.
+    private static void changeWorkingDirectory(VirtualDisk disk, List<String> path) {
+        disk.getWorkingDirectory().restore(new ArrayList<>());
+        Directory dir = disk.getRootDirectory();
+        for (String name : path) {
+            File file = dir.getFile(name);
+            if (!(file instanceof Directory)) {
+                return;
+            }
+            dir = (Directory) file;
+            disk.changeWorkingDirectory(dir);
+        }
+    }
+
+    /**
+     * A delta taken from a disk, not written yet.
+     */
+    static final class Delta {
+        private final byte[] bytes;
+        private final int recordsLength;
+
+        private Delta(byte[] bytes, int recordsLength) {
+            this.bytes = bytes;
+            this.recordsLength = recordsLength;
+        }
+    }
+}
@@ -1,16 +1,51 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Represents a directory.
  */
 public class Directory extends File {
 
-    // Files directly stored in this directory.
+    // Files directly stored in this directory, in the order they were added. A removed file
+    // leaves a null behind, until the gaps make up half the list and are closed all at once.
     private final List<File> files;
 
+    // The same files indexed by packed name, with their positions in the list, for constant
+    // time lookups and removals.
+    private transient NameTable filesByName;
+
+    // The number of gaps in the list, and the files without them, built when one is first read
+    // by position after a removal.
+    private transient int removedCount;
+    private transient volatile File[] compactFiles;
+
+    // Cached size of this directory and everything below it. Kept up to date
+    // by addFile/removeFile so that getSize() never has to walk the subtree.
+    // Updated atomically, as sessions in different subtrees share their ancestors.
+    private transient volatile long size;
+
+    private static final AtomicLongFieldUpdater<Directory> SIZE =
+            AtomicLongFieldUpdater.newUpdater(Directory.class, "size");
+
+    // The epoch of the disk in which the files of this directory last changed, and the files it
+    // held before, newest first, for as long as an open snapshot may ask for them. See Snapshot.
+    private transient long changedEpoch;
+    private transient Version versions;
+
+    // Where the files of this directory are in a disk image, if it is read lazily. See LazyImage.
+    private transient LazyImage.Entry lazyEntry;
+
     /**
      * Constructor.
      *
@@ -18,24 +53,393 @@ public class Directory extends File {
      * @throws IllegalArgumentException if the file name is invalid.
      */
     public Directory(String name) throws IllegalArgumentException {
-        super(name);
-        this.files = new LinkedList<>();
+        this(packName(name));
+    }
+
+    /**
+     * Constructor for a directory whose name has already been checked.
+     *
+     * @param packedName The name of the directory, packed.
+     */
+    Directory(long packedName) {
+        super(packedName);
+        this.files = new ArrayList<>();
+        this.filesByName = new NameTable();
+        this.size = EMPTY_DIR_SIZE;
+    }
+
+    /**
+     * Constructor for a directory whose files are read from a disk image when they are first needed.
+     *
+     * @param packedName The name of the directory, packed.
+     * @param size The size of the directory and everything below it.
+     * @param lazyEntry Where the files of the directory are in the image.
+     */
+    Directory(long packedName, long size, LazyImage.Entry lazyEntry) {
+        this(packedName);
+        this.size = size;
+        this.lazyEntry = lazyEntry;
     }
 
     /**
+     * The caller must hold the read lock of this directory (see {@link DirectoryLocks}) while
+     * using the list if other sessions may change the directory.
+     *
      * @return The list of files directly contained in this directory.
      */
     public List<File> getFiles() {
+        files();
+        return new FileList();
+    }
+
+    /**
+     * @param name The name of the file to look up.
+     * @return The file directly contained in this directory with the given name, or null if there is none.
+     */
+    public File getFile(String name) {
+        long packed = Names.pack(name);
+        return packed == Names.NOT_PACKABLE ? null : getFile(packed);
+    }
+
+    /**
+     * @param packedName The packed name of the file to look up.
+     * @return The file directly contained in this directory with the given name, or null if there is none.
+     */
+    public File getFile(long packedName) {
+        files();
+        return filesByName.get(packedName);
+    }
+
+    /**
+     * Add a file to this directory, and account for its size
+     * in this directory and all of its ancestors.
+     *
+     * @param file The file to be added.
+     */
+    void addFile(File file) {
+        List<File> all = files();
+        filesByName.put(file.getPackedName(), file, all.size());
+        all.add(file);
+        compactFiles = null;
+        file.setParent(this);
+        adjustSize(file.getSize());
+        keepLoaded();
+    }
+
+    /**
+     * Remove a file from this directory, and release its size
+     * from this directory and all of its ancestors.
+     *
+     * @param file The file to be removed.
+     * @return Whether the file was removed. False if it was not in this directory.
+     */
+    boolean removeFile(File file) {
+        files();
+        int position = filesByName.remove(file.getPackedName(), file);
+        if (position < 0) {
+            return false;
+        }
+        if (position == files.size() - 1) {
+            // the last file goes with any gaps just before it.
+            files.remove(position);
+            while (!files.isEmpty() && files.get(files.size() - 1) == null) {
+                files.remove(files.size() - 1);
+                removedCount--;
+            }
+        } else {
+            // leave a gap rather than moving every later file up, and close the gaps once they
+            // make up half the list, so that a removal takes constant time on average.
+            files.set(position, null);
+            removedCount++;
+            if (removedCount * 2 > files.size()) {
+                compact();
+            }
+        }
+        compactFiles = null;
+        file.setParent(null);
+        adjustSize(-file.getSize());
+        keepLoaded();
+        return true;
+    }
+
+    /**
+     * Rename a file in this directory. The name index is only updated once
+     * the new name has passed validation, so a failed rename changes nothing.
+     *
+     * @param file The file to be renamed.
+     * @param newName The new name of the file.
+     * @throws IllegalArgumentException if the new name fails validation.
+     */
+    void renameFile(File file, String newName) throws IllegalArgumentException {
+        long oldName = file.getPackedName();
+        file.setName(newName);
+        files();
+        int position = filesByName.remove(oldName, file);
+        filesByName.put(file.getPackedName(), file, position);
+        keepLoaded();
+    }
+
+    /**
+     * @return Where the files of this directory are in a disk image, or null if it was not read lazily.
+     */
+    LazyImage.Entry getLazyEntry() {
+        return lazyEntry;
+    }
+
+    /**
+     * Keep this directory, and every directory above it, loaded for good: the files in it have
+     * changed, or a working directory has gone into it.
+     */
+    void keepLoaded() {
+        for (Directory dir = this; dir != null; dir = dir.getParent()) {
+            LazyImage.Entry entry = dir.lazyEntry;
+            if (entry != null) {
+                if (entry.kept) {
+                    // its ancestors are kept already.
+                    return;
+                }
+                entry.kept = true;
+            }
+        }
+    }
+
+    /**
+     * Add a file just read from a disk image. Its size is already counted in this directory.
+     *
+     * @param file The file.
+     */
+    void addLoadedFile(File file) {
+        filesByName.put(file.getPackedName(), file, files.size());
+        files.add(file);
+        file.setParent(this);
+    }
+
+    /**
+     * Let go of the files of this directory, to be read from its disk image again when next needed.
+     * The caller must hold the write lock of this directory.
+     */
+    void unload() {
+        files.clear();
+        removedCount = 0;
+        compactFiles = null;
+        filesByName = new NameTable();
+        lazyEntry.loaded = false;
+    }
+
+    // the files of this directory, read from its disk image first if they have not been yet.
+    private List<File> files() {
+        LazyImage.Entry entry = lazyEntry;
+        if (entry != null && !entry.loaded) {
+            entry.image.load(this, entry);
+        }
         return files;
     }
 
+    // close the gaps removed files left in the list, and move the files in the name table along.
+    private void compact() {
+        int live = 0;
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            if (file != null) {
+                files.set(live, file);
+                filesByName.put(file.getPackedName(), file, live);
+                live++;
+            }
+        }
+        files.subList(live, files.size()).clear();
+        removedCount = 0;
+    }
+
+    // the files without the gaps, for reads by position. Readers hold the read lock, so none of
+    // them can build it while the files change.
+    private File[] compactFiles() {
+        File[] compacted = compactFiles;
+        if (compacted == null) {
+            compacted = new File[files.size() - removedCount];
+            int i = 0;
+            for (File file : files) {
+                if (file != null) {
+                    compacted[i++] = file;
+                }
+            }
+            compactFiles = compacted;
+        }
+        return compacted;
+    }
+
+    /**
+     * The files of this directory as {@link #getFiles()} gives them: read only, in the order they
+     * were added, and without the gaps removed files leave in the list.
+     */
+    private final class FileList extends AbstractList<File> implements RandomAccess {
+        @Override
+        public int size() {
+            return files.size() - removedCount;
+        }
+
+        @Override
+        public File get(int index) {
+            if (removedCount == 0) {
+                return files.get(index);
+            }
+            File[] compacted = compactFiles();
+            if (index < 0 || index >= compacted.length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + compacted.length);
+            }
+            return compacted[index];
+        }
+
+        @Override
+        public Iterator<File> iterator() {
+            return new Iterator<File>() {
+                private int next = skipGaps(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next < files.size();
+                }
+
+                @Override
+                public File next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    File file = files.get(next);
+                    next = skipGaps(next + 1);
+                    return file;
+                }
+            };
+        }
+
+        private int skipGaps(int index) {
+            while (index < files.size() && files.get(index) == null) {
+                index++;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Apply a size change to this directory and every directory above it.
+     *
+     * @param delta The number of bytes added (or removed, if negative).
+     */
+    private void adjustSize(long delta) {
+        for (Directory dir = this; dir != null; dir = dir.getParent()) {
+            SIZE.addAndGet(dir, delta);
+        }
+    }
+
     @Override
     public long getSize() {
-        long total = 0;
-        for (File file : this.files) {
+        return size;
+    }
+
+    /**
+     * Keep the files of this directory as they are for the snapshots that can see them, as they
+     * are about to change. Only the first change after a snapshot copies the files; later changes
+     * in the same epoch find them kept already. The caller must hold the write lock of this directory.
+     *
+     * @param epoch The epoch of the disk the change is made in.
+     * @param openSnapshots The ids of the snapshots of the disk that are still open.
+     */
+    void preserve(long epoch, NavigableSet<Long> openSnapshots) {
+        if (changedEpoch == epoch) {
+            return;
+        }
+
+        // forget what no open snapshot can ask for any more.
+        Long oldest = openSnapshots.ceiling(Long.MIN_VALUE);
+        Version kept = prune(versions, oldest);
+
+        // the files as they are now were seen by the snapshots taken since they last changed.
+        Long seen = openSnapshots.ceiling(changedEpoch);
+        if (seen != null && seen < epoch) {
+            File[] current = getFiles().toArray(new File[0]);
+            kept = new Version(changedEpoch, epoch - 1, current, namesOf(current), kept);
+        }
+        versions = kept;
+        changedEpoch = epoch;
+    }
+
+    /**
+     * The caller must hold the read lock of this directory.
+     *
+     * @param snapshotId The id of an open snapshot that can see this directory.
+     * @return The files of this directory, and their names, when the snapshot was taken.
+     * @throws IllegalStateException if the snapshot is closed.
+     */
+    Version versionAt(long snapshotId) throws IllegalStateException {
+        if (changedEpoch <= snapshotId) {
+            File[] current = getFiles().toArray(new File[0]);
+            return new Version(changedEpoch, snapshotId, current, namesOf(current), null);
+        }
+        for (Version version = versions; version != null; version = version.older) {
+            if (version.firstEpoch <= snapshotId && snapshotId <= version.lastEpoch) {
+                return version;
+            }
+        }
+        throw new IllegalStateException("The snapshot is closed");
+    }
+
+    private static long[] namesOf(File[] files) {
+        long[] names = new long[files.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = files[i].getPackedName();
+        }
+        return names;
+    }
+
+    private static Version prune(Version version, Long oldest) {
+        if (version == null || oldest == null || version.lastEpoch < oldest) {
+            return null;
+        }
+        Version older = prune(version.older, oldest);
+        return older == version.older ? version
+                : new Version(version.firstEpoch, version.lastEpoch, version.files, version.names, older);
+    }
+
+    /**
+     * The files of a directory, and their packed names, over a range of epochs of the disk.
+     */
+    static final class Version {
+        final long firstEpoch;
+        final long lastEpoch;
+        final File[] files;
+        final long[] names;
+        final Version older;
+
+        Version(long firstEpoch, long lastEpoch, File[] files, long[] names, Version older) {
+            this.firstEpoch = firstEpoch;
+            this.lastEpoch = lastEpoch;
+            this.files = files;
+            this.names = names;
+            this.older = older;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // a directory read lazily is written with its files, and without the gaps in the list.
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("files", new ArrayList<>(getFiles()));
+        out.writeFields();
+    }
+
+    /**
+     * Rebuild the transient state after deserialization. The children are
+     * fully read by the time this runs, so their sizes are already known.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        long total = EMPTY_DIR_SIZE;
+        this.filesByName = new NameTable();
+        for (int i = 0; i < this.files.size(); i++) {
+            File file = this.files.get(i);
+            filesByName.put(file.getPackedName(), file, i);
+            file.setParent(this);
             total = total + file.getSize();
         }
-        return total + EMPTY_DIR_SIZE;
+        this.size = total;
     }
 
     @Override
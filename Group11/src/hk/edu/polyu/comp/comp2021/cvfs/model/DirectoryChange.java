@@ -0,0 +1,49 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import hk.edu.polyu.comp.comp2021.cvfs.view.UI;
+
+import java.util.List;
+
+/**
+ * A change of the working directory, which can be undone or redone. Remembers the directories
+ * of the working directory before and after the change rather than the steps taken, so that
+ * consecutive changes can be merged into one.
+ */
+final class DirectoryChange extends BonusFeatures {
+    private final WorkingDirectory workingDirectory;
+    private final List<Directory> before;
+    private final List<Directory> after;
+
+    /**
+     * Constructor.
+     *
+     * @param workingDirectory The working directory that changed.
+     * @param before The directories of the working directory before the change.
+     * @param after The directories of the working directory after the change.
+     */
+    DirectoryChange(WorkingDirectory workingDirectory, List<Directory> before, List<Directory> after) {
+        super(() -> {
+            workingDirectory.restore(before);
+            UI.printSuccess("Undid change directory");
+        }, () -> {
+            workingDirectory.restore(after);
+            UI.printSuccess("Redid change directory");
+        });
+        this.workingDirectory = workingDirectory;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Walking through directories one by one takes many changes, but the user only ever
+     * wants to go back to where the walk started, so a change made right after another
+     * change of the same working directory is merged into it.
+     */
+    @Override
+    BonusFeatures mergeWith(BonusFeatures next) {
+        if (!(next instanceof DirectoryChange) || ((DirectoryChange) next).workingDirectory != workingDirectory) {
+            return null;
+        }
+        return new DirectoryChange(workingDirectory, before, ((DirectoryChange) next).after);
+    }
+}
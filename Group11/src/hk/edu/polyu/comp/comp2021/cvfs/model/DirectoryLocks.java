@@ -0,0 +1,41 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks guarding the contents of directories.
+ *
+ * Each directory maps to one of a fixed set of locks, so sessions working in different
+ * directories rarely contend, without every directory carrying a lock of its own.
+ *
+ * Two directories may share a lock, so a thread takes the lock of one directory only, and only
+ * after the namespace lock of the disk if it takes that at all (see {@link VirtualDisk}). Monitors,
+ * such as that of a lazily read directory being loaded or of the file index, are taken while
+ * holding it, and never the other way round. A thread holding a read lock must not take a write
+ * lock, which would wait on itself if both directories share the lock.
+ */
+final class DirectoryLocks {
+    // a power of two, so a stripe can be picked with a mask.
+    private static final int STRIPES = 256;
+
+    private static final ReadWriteLock[] LOCKS = new ReadWriteLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private DirectoryLocks() {
+    }
+
+    /**
+     * @param directory A directory.
+     * @return The lock guarding the files directly in the directory.
+     */
+    static ReadWriteLock forDirectory(Directory directory) {
+        int hash = System.identityHashCode(directory);
+        return LOCKS[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+}
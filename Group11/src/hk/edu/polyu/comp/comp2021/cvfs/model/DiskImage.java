@@ -0,0 +1,603 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.ContentStoreType;
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.MappedContentStore;
+import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.FileCriterion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes virtual disks as page-structured disk images.
+ *
+ * An image is made of {@link #PAGE_SIZE} byte pages:
+ * <ul>
+ *     <li>pages 0 and 1 are two slots for the header, describing where everything else is. Each header
+ *     has a generation and a checksum, and the valid one of the latest generation is the image;</li>
+ *     <li>the inode table is a run of pages holding one {@link #INODE_SIZE} byte entry per file. Files are
+ *     numbered breadth-first from the root, so the children of a directory are contiguous and each directory
+ *     entry only records its first child and the number of children, along with the size of its subtree and
+ *     the documents and directories in it;</li>
+ *     <li>the data region holds length-prefixed blocks with the content of the documents and the criteria.</li>
+ * </ul>
+ *
+ * Images are read through a memory mapping, and documents keep reading their content from it, so only the
+ * pages that are actually used are ever loaded. An image can also be read lazily, directory by directory as
+ * they are reached (see {@link LazyImage}). When a disk is stored back to the image it was read from,
+ * nothing the current header refers to is written over: the new data blocks and a new inode table are
+ * appended and forced to the file, and only then is the header written to the other slot and forced in
+ * turn. A store cut short leaves the previous header, and the image it describes, as they were. Once more
+ * than half of what was appended is no longer used, the image is rewritten from scratch instead. Changes
+ * stored since can also be kept as deltas next to the image (see {@link DeltaImage}).
+ */
+final class DiskImage {
+    /**
+     * Size of a page in the image.
+     */
+    static final int PAGE_SIZE = 4096;
+
+    /**
+     * Size of an entry in the inode table.
+     */
+    static final int INODE_SIZE = 64;
+
+    private static final long MAGIC = 0x43564653494D4731L; // "CVFSIMG1"
+    private static final int VERSION = 4;
+    private static final int HEADER_SLOTS = 2;
+    private static final DocumentType[] DOCUMENT_TYPES = DocumentType.values();
+
+    // header layout.
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_PAGE_SIZE = 12;
+    private static final int H_MAX_SIZE = 16;
+    private static final int H_CONTENT_STORE_TYPE = 24;
+    private static final int H_INODE_COUNT = 28;
+    private static final int H_INODE_START = 32;
+    private static final int H_INODE_CAPACITY = 40;
+    private static final int H_DATA_END = 48;
+    private static final int H_DATA_BYTES = 56;
+    private static final int H_CRITERIA_OFFSET = 64;
+    private static final int H_CHECKPOINT_ID = 72;
+    private static final int H_WORKING_DIR_DEPTH = 80;
+    private static final int H_GENERATION = 84;
+    private static final int H_CHECKSUM = 92;
+    private static final int H_WORKING_DIR_PATH = 96;
+    private static final int MAX_WORKING_DIR_DEPTH = (PAGE_SIZE - H_WORKING_DIR_PATH) / Integer.BYTES;
+
+    // inode layout. The subtree counts of a directory do not count the directory itself.
+    static final int I_PARENT = 0;
+    static final int I_FIRST_CHILD = 4;
+    static final int I_CHILD_COUNT = 8;
+    static final int I_KIND = 12;
+    static final int I_DOCUMENT_TYPE = 13;
+    static final int I_NAME_LENGTH = 14;
+    static final int I_NAME = 15;
+    static final int I_CONTENT_LENGTH = 25;
+    static final int I_CONTENT_OFFSET = 29;
+    static final int I_SUBTREE_SIZE = 37;
+    static final int I_SUBTREE_DOCUMENTS = 45;
+    static final int I_SUBTREE_DIRECTORIES = 49;
+
+    static final byte KIND_DIRECTORY = 0;
+    static final byte KIND_DOCUMENT = 1;
+
+    private DiskImage() {
+    }
+
+    /**
+     * Write a snapshot of a virtual disk to an image file. The disk can go on changing meanwhile.
+     *
+     * @param snapshot The snapshot of the disk to be written.
+     * @param path The path of the image file.
+     * @param checkpointId An id for this version of the image, matched against its write-ahead log.
+     * @return The number of pages written.
+     * @throws IOException if the image could not be written.
+     */
+    static long write(Snapshot snapshot, Path path, long checkpointId) throws IOException {
+        return write(snapshot, path, checkpointId, false, null);
+    }
+
+    /**
+     * Write a snapshot of a virtual disk to an image file. The disk can go on changing meanwhile.
+     *
+     * @param snapshot The snapshot of the disk to be written.
+     * @param path The path of the image file.
+     * @param checkpointId An id for this version of the image, matched against its write-ahead log.
+     * @param rewrite Whether to write a new image and move it in place of the file, even if the file
+     * could be updated in place, so a disk reading the file meanwhile goes on seeing the old image.
+     * @param progress Where to count the files written, or null.
+     * @return The number of pages written.
+     * @throws IOException if the image could not be written.
+     */
+    static long write(Snapshot snapshot, Path path, long checkpointId, boolean rewrite, StoreProgress progress)
+            throws IOException {
+        path = path.toAbsolutePath();
+        VirtualDisk disk = snapshot.getDisk();
+        Directory rootDir = snapshot.getRootDirectory();
+
+        // number the files breadth-first.
+        List<File> files = new ArrayList<>();
+        Map<File, Integer> directoryIds = new IdentityHashMap<>();
+        Deque<Directory> queue = new ArrayDeque<>();
+        files.add(rootDir);
+        directoryIds.put(rootDir, 0);
+        queue.add(rootDir);
+        while (!queue.isEmpty()) {
+            for (File file : queue.removeFirst().getFiles()) {
+                if (file instanceof Directory) {
+                    directoryIds.put(file, files.size());
+                    queue.add((Directory) file);
+                }
+                files.add(file);
+            }
+        }
+
+        if (progress != null) {
+            progress.setFileCount(files.size());
+        }
+
+        byte[] criteria = serializeCriteria(snapshot.getCriteriaMap());
+        Header existing = Header.readIfImage(path);
+
+        // count the documents and directories below each directory, children before their parents.
+        int[] firstChildren = new int[files.size()];
+        int[] subtreeDocuments = new int[files.size()];
+        int[] subtreeDirectories = new int[files.size()];
+        int next = 1;
+        for (int i = 0; i < files.size(); i++) {
+            if (files.get(i) instanceof Directory) {
+                firstChildren[i] = next;
+                next = next + ((Directory) files.get(i)).getFiles().size();
+            }
+        }
+        for (int i = files.size() - 1; i >= 0; i--) {
+            if (files.get(i) instanceof Directory) {
+                int end = firstChildren[i] + ((Directory) files.get(i)).getFiles().size();
+                for (int c = firstChildren[i]; c < end; c++) {
+                    if (files.get(c) instanceof Directory) {
+                        subtreeDocuments[i] = subtreeDocuments[i] + subtreeDocuments[c];
+                        subtreeDirectories[i] = subtreeDirectories[i] + subtreeDirectories[c] + 1;
+                    } else {
+                        subtreeDocuments[i]++;
+                    }
+                }
+            }
+        }
+
+        // work out how much of what was appended to the image would still be used, to decide
+        // between updating the image in place and rewriting it.
+        int inodeCapacity = (int) (alignToPage((long) files.size() * INODE_SIZE) / INODE_SIZE);
+        long inodeBytes = (long) inodeCapacity * INODE_SIZE;
+        long liveBytes = inodeBytes + criteria.length + Integer.BYTES;
+        long newBytes = inodeBytes + criteria.length + Integer.BYTES;
+        for (File file : files) {
+            if (file instanceof Document) {
+                Document doc = (Document) file;
+                if (existing != null && existing.holds(doc)) {
+                    liveBytes = liveBytes + Integer.BYTES + existing.image.getInt(doc.getContentHandle());
+                } else {
+                    int length = Integer.BYTES + doc.getContentBytes().length;
+                    liveBytes = liveBytes + length;
+                    newBytes = newBytes + length;
+                }
+            }
+        }
+        // a disk read lazily, this one or any other that can still be reached, goes on reading the file
+        // as it was, so the file is replaced rather than changed under it.
+        boolean inPlace = existing != null && existing.dataBytes + newBytes <= 2 * liveBytes
+                && !LazyImage.isReading(existing.image) && !rewrite;
+
+        Path target = inPlace ? path : Files.createTempFile(path.getParent(), "cvfs", ".tmp");
+        long pagesWritten;
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // a new image has its inode table after the headers, and one stored in place a new inode
+            // table after the blocks it appends, as the current one must stay as it is.
+            long dataStart = inPlace ? existing.dataEnd : HEADER_SLOTS * PAGE_SIZE + inodeBytes;
+            long dataBytes = inPlace ? existing.dataBytes : inodeBytes;
+
+            Appender appender = new Appender(channel, dataStart);
+
+            // append the content that is not in the image yet.
+            long[] contentOffsets = new long[files.size()];
+            for (int i = 0; i < files.size(); i++) {
+                if (files.get(i) instanceof Document) {
+                    Document doc = (Document) files.get(i);
+                    if (inPlace && existing.holds(doc)) {
+                        contentOffsets[i] = doc.getContentHandle();
+                    } else {
+                        contentOffsets[i] = appender.append(doc.getContentBytes());
+                    }
+                }
+                if (progress != null) {
+                    progress.fileWritten();
+                }
+            }
+
+            long criteriaOffset;
+            if (inPlace && Arrays.equals(criteria, existing.image.get(existing.criteriaOffset))) {
+                criteriaOffset = existing.criteriaOffset;
+            } else {
+                criteriaOffset = appender.append(criteria);
+            }
+            appender.flush();
+            pagesWritten = (appender.getPosition() - dataStart + PAGE_SIZE - 1) / PAGE_SIZE;
+            dataBytes = dataBytes + appender.getPosition() - dataStart;
+
+            long inodeStart = HEADER_SLOTS * PAGE_SIZE;
+            long dataEnd = appender.getPosition();
+            if (inPlace) {
+                inodeStart = alignToPage(dataEnd);
+                dataEnd = inodeStart + inodeBytes;
+                dataBytes = dataBytes + inodeBytes;
+            }
+
+            // fill in the inode table.
+            ByteBuffer inodes = ByteBuffer.allocate((int) inodeBytes);
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                int base = i * INODE_SIZE;
+                inodes.putInt(base + I_PARENT, file.getParent() == null ? -1 : directoryIds.get(file.getParent()));
+                byte[] name = file.getName().getBytes(StandardCharsets.US_ASCII);
+                inodes.put(base + I_NAME_LENGTH, (byte) name.length);
+                for (int j = 0; j < name.length; j++) {
+                    inodes.put(base + I_NAME + j, name[j]);
+                }
+                if (file instanceof Directory) {
+                    int childCount = ((Directory) file).getFiles().size();
+                    inodes.put(base + I_KIND, KIND_DIRECTORY);
+                    inodes.putInt(base + I_FIRST_CHILD, firstChildren[i]);
+                    inodes.putInt(base + I_CHILD_COUNT, childCount);
+                    inodes.putLong(base + I_SUBTREE_SIZE, file.getSize());
+                    inodes.putInt(base + I_SUBTREE_DOCUMENTS, subtreeDocuments[i]);
+                    inodes.putInt(base + I_SUBTREE_DIRECTORIES, subtreeDirectories[i]);
+                } else {
+                    Document doc = (Document) file;
+                    inodes.put(base + I_KIND, KIND_DOCUMENT);
+                    inodes.put(base + I_DOCUMENT_TYPE, (byte) doc.getType().ordinal());
+                    inodes.putInt(base + I_CONTENT_LENGTH, doc.getContentLength());
+                    inodes.putLong(base + I_CONTENT_OFFSET, contentOffsets[i]);
+                    inodes.putLong(base + I_SUBTREE_SIZE, file.getSize());
+                }
+            }
+            writeFully(channel, inodeStart, inodes);
+            pagesWritten = pagesWritten + inodeBytes / PAGE_SIZE;
+
+            // everything the header refers to has to be in the file before the header is.
+            channel.force(false);
+
+            // and finally the header, in the slot the current header is not in, which makes everything
+            // above visible. Written whole or not, its checksum tells.
+            ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+            header.putLong(H_MAGIC, MAGIC);
+            header.putInt(H_VERSION, VERSION);
+            header.putInt(H_PAGE_SIZE, PAGE_SIZE);
+            header.putLong(H_MAX_SIZE, disk.getMaxSize());
+            header.putInt(H_CONTENT_STORE_TYPE, disk.getContentStoreType().ordinal());
+            header.putInt(H_INODE_COUNT, files.size());
+            header.putLong(H_INODE_START, inodeStart);
+            header.putInt(H_INODE_CAPACITY, inodeCapacity);
+            header.putLong(H_DATA_END, dataEnd);
+            header.putLong(H_DATA_BYTES, dataBytes);
+            header.putLong(H_CRITERIA_OFFSET, criteriaOffset);
+            header.putLong(H_CHECKPOINT_ID, checkpointId);
+            header.putLong(H_GENERATION, inPlace ? existing.generation + 1 : 1);
+            List<Directory> workingDirPath = snapshot.getWorkingDirectoryPath();
+            if (workingDirPath.size() <= MAX_WORKING_DIR_DEPTH) {
+                header.putInt(H_WORKING_DIR_DEPTH, workingDirPath.size());
+                for (int i = 0; i < workingDirPath.size(); i++) {
+                    header.putInt(H_WORKING_DIR_PATH + i * Integer.BYTES, directoryIds.get(workingDirPath.get(i)));
+                }
+            }
+            header.putInt(H_CHECKSUM, checksum(header.array()));
+            int slot = inPlace ? 1 - existing.slot : 0;
+            writeFully(channel, (long) slot * PAGE_SIZE, header);
+            pagesWritten++;
+
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            if (!inPlace) {
+                Files.deleteIfExists(target);
+            }
+            throw e;
+        }
+
+        if (!inPlace) {
+            try {
+                Files.move(target, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(target, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return pagesWritten;
+    }
+
+    /**
+     * Read a virtual disk from an image file. Document content is left in the image, and read on demand.
+     *
+     * @param path The path of the image file.
+     * @return The virtual disk.
+     * @throws IOException if the file could not be read or is not a disk image.
+     */
+    static VirtualDisk read(Path path) throws IOException {
+        Header header = Header.readIfImage(path.toAbsolutePath());
+        if (header == null) {
+            throw new IOException("Not a CVFS disk image: " + path);
+        }
+        MappedContentStore image = header.image;
+
+        // create the files.
+        File[] files = new File[header.inodeCount];
+        int[] firstChild = new int[header.inodeCount];
+        int[] childCount = new int[header.inodeCount];
+        byte[] page = new byte[PAGE_SIZE];
+        ByteBuffer inodes = ByteBuffer.wrap(page);
+        int inodesPerPage = PAGE_SIZE / INODE_SIZE;
+        for (int i = 0; i < files.length; i++) {
+            int base = (i % inodesPerPage) * INODE_SIZE;
+            if (base == 0) {
+                image.read(header.inodeStart + (long) i * INODE_SIZE, page);
+            }
+            String name = new String(page, base + I_NAME, inodes.get(base + I_NAME_LENGTH), StandardCharsets.US_ASCII);
+            if (inodes.get(base + I_KIND) == KIND_DIRECTORY) {
+                files[i] = new Directory(File.packName(name));
+                firstChild[i] = inodes.getInt(base + I_FIRST_CHILD);
+                childCount[i] = inodes.getInt(base + I_CHILD_COUNT);
+            } else {
+                files[i] = new Document(File.packName(name),
+                        DOCUMENT_TYPES[inodes.get(base + I_DOCUMENT_TYPE)],
+                        inodes.getInt(base + I_CONTENT_LENGTH),
+                        image,
+                        inodes.getLong(base + I_CONTENT_OFFSET));
+            }
+        }
+
+        // link them bottom-up, so that each directory is complete before it is added to its parent.
+        for (int i = files.length - 1; i >= 0; i--) {
+            if (files[i] instanceof Directory) {
+                Directory dir = (Directory) files[i];
+                for (int c = firstChild[i]; c < firstChild[i] + childCount[i]; c++) {
+                    dir.addFile(files[c]);
+                }
+            }
+        }
+
+        VirtualDisk disk = new VirtualDisk(header.maxSize, header.contentStoreType, (Directory) files[0]);
+        disk.getCriteriaMap().putAll(deserializeCriteria(image.get(header.criteriaOffset)));
+        disk.setCheckpointId(header.checkpointId);
+        for (int id : header.workingDirPath) {
+            disk.changeWorkingDirectory((Directory) files[id]);
+        }
+        return disk;
+    }
+
+    /**
+     * Read a virtual disk from an image file lazily. Only the root directory is read at first, and
+     * every other directory when it is first reached (see {@link LazyImage}).
+     *
+     * @param path The path of the image file.
+     * @param maxLoadedDirectories The number of directories to keep loaded when the disk is trimmed.
+     * @return The virtual disk.
+     * @throws IOException if the file could not be read or is not a disk image.
+     */
+    static VirtualDisk readLazily(Path path, int maxLoadedDirectories) throws IOException {
+        Header header = Header.readIfImage(path.toAbsolutePath());
+        if (header == null) {
+            throw new IOException("Not a CVFS disk image: " + path);
+        }
+        LazyImage lazyImage = new LazyImage(header.image, header.inodeStart, maxLoadedDirectories);
+
+        VirtualDisk disk = new VirtualDisk(header.maxSize, header.contentStoreType, lazyImage.readRoot());
+        disk.setLazyImage(lazyImage);
+        disk.getCriteriaMap().putAll(deserializeCriteria(header.image.get(header.criteriaOffset)));
+        disk.setCheckpointId(header.checkpointId);
+
+        // only the directories on the way to the working directory are read.
+        Directory dir = disk.getRootDirectory();
+        for (int id : header.workingDirPath) {
+            dir = lazyImage.getChild(dir, id);
+            disk.changeWorkingDirectory(dir);
+        }
+        return disk;
+    }
+
+    private static void writeFully(FileChannel channel, long position, ByteBuffer pages) throws IOException {
+        pages.clear();
+        while (pages.hasRemaining()) {
+            channel.write(pages, position + pages.position());
+        }
+    }
+
+    // the checksum of a header page, taken with its checksum field as zero.
+    private static int checksum(byte[] page) {
+        CRC32 crc = new CRC32();
+        crc.update(page, 0, H_CHECKSUM);
+        crc.update(new byte[Integer.BYTES]);
+        crc.update(page, H_CHECKSUM + Integer.BYTES, PAGE_SIZE - H_CHECKSUM - Integer.BYTES);
+        return (int) crc.getValue();
+    }
+
+    private static long alignToPage(long size) {
+        return (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    private static byte[] serializeCriteria(Map<String, FileCriterion> criteria) throws IOException {
+        // keyed by the criterion's own name and sorted, so that the same criteria always give the same
+        // bytes and an unchanged criteria block does not have to be written again.
+        Map<String, FileCriterion> sorted = new TreeMap<>();
+        for (FileCriterion criterion : criteria.values()) {
+            sorted.put(criterion.getName(), criterion);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(sorted);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, FileCriterion> deserializeCriteria(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Map<String, FileCriterion>) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Corrupt criteria in disk image", e);
+        }
+    }
+
+    /**
+     * The header of an existing image, together with a mapping of the image.
+     */
+    private static class Header {
+        MappedContentStore image;
+        long maxSize;
+        ContentStoreType contentStoreType;
+        int inodeCount;
+        long inodeStart;
+        int inodeCapacity;
+        long dataEnd;
+        long dataBytes;
+        long criteriaOffset;
+        long checkpointId;
+        long generation;
+        int slot;
+        int[] workingDirPath;
+
+        /**
+         * @return The latest valid header of the image at the given path, or null if there is no image there.
+         */
+        static Header readIfImage(Path path) throws IOException {
+            if (!Files.isRegularFile(path) || Files.size(path) < HEADER_SLOTS * PAGE_SIZE) {
+                return null;
+            }
+
+            MappedContentStore image;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+                image = new MappedContentStore(path, fileKey, channel);
+            }
+
+            Header latest = null;
+            byte[] page = new byte[PAGE_SIZE];
+            for (int slot = 0; slot < HEADER_SLOTS; slot++) {
+                image.read((long) slot * PAGE_SIZE, page);
+                Header header = parse(ByteBuffer.wrap(page));
+                if (header != null && (latest == null || header.generation > latest.generation)) {
+                    header.image = image;
+                    header.slot = slot;
+                    latest = header;
+                }
+            }
+            return latest;
+        }
+
+        // the header in a slot, or null if the slot holds none, or one only partly written.
+        private static Header parse(ByteBuffer buffer) {
+            if (buffer.getLong(H_MAGIC) != MAGIC || buffer.getInt(H_VERSION) != VERSION
+                    || buffer.getInt(H_PAGE_SIZE) != PAGE_SIZE
+                    || buffer.getInt(H_CHECKSUM) != checksum(buffer.array())) {
+                return null;
+            }
+
+            Header header = new Header();
+            header.maxSize = buffer.getLong(H_MAX_SIZE);
+            header.contentStoreType = ContentStoreType.values()[buffer.getInt(H_CONTENT_STORE_TYPE)];
+            header.inodeCount = buffer.getInt(H_INODE_COUNT);
+            header.inodeStart = buffer.getLong(H_INODE_START);
+            header.inodeCapacity = buffer.getInt(H_INODE_CAPACITY);
+            header.dataEnd = buffer.getLong(H_DATA_END);
+            header.dataBytes = buffer.getLong(H_DATA_BYTES);
+            header.criteriaOffset = buffer.getLong(H_CRITERIA_OFFSET);
+            header.checkpointId = buffer.getLong(H_CHECKPOINT_ID);
+            header.generation = buffer.getLong(H_GENERATION);
+            header.workingDirPath = new int[buffer.getInt(H_WORKING_DIR_DEPTH)];
+            for (int i = 0; i < header.workingDirPath.length; i++) {
+                header.workingDirPath[i] = buffer.getInt(H_WORKING_DIR_PATH + i * Integer.BYTES);
+            }
+            return header;
+        }
+
+        /**
+         * @return Whether the content of the document is already in this image.
+         */
+        boolean holds(Document doc) {
+            if (!(doc.getContentStore() instanceof MappedContentStore)) {
+                return false;
+            }
+            MappedContentStore store = (MappedContentStore) doc.getContentStore();
+            return store.getPath().equals(image.getPath())
+                    && store.getFileKey() != null
+                    && store.getFileKey().equals(image.getFileKey());
+        }
+    }
+
+    /**
+     * Appends length-prefixed blocks at the end of the data region, batching small writes.
+     */
+    private static class Appender {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private long position;
+
+        Appender(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * @return The offset the block was written at.
+         */
+        long append(byte[] content) throws IOException {
+            long offset = position + buffer.position();
+            if (buffer.remaining() < Integer.BYTES + content.length) {
+                flush();
+                offset = position;
+            }
+            if (buffer.remaining() < Integer.BYTES + content.length) {
+                ByteBuffer block = ByteBuffer.allocate(Integer.BYTES + content.length);
+                block.putInt(content.length).put(content).flip();
+                writeFully(block);
+            } else {
+                buffer.putInt(content.length).put(content);
+            }
+            return offset;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        long getPosition() {
+            return position + buffer.position();
+        }
+
+        private void writeFully(ByteBuffer block) throws IOException {
+            while (block.hasRemaining()) {
+                position = position + channel.write(block, position);
+            }
+        }
+    }
+}
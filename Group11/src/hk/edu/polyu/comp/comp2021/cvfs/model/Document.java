@@ -1,16 +1,28 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
-import java.util.Arrays;
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.ContentStore;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Represents a document in the CVFS.
  */
 public class Document extends File{
     // The type of the document, such as 'txt'
-    private final String type;
+    private final DocumentType type;
+
+    // The number of characters in the content of the document.
+    private final int contentLength;
+
+    // The store holding the content while the document is on a disk, and the handle of the content in it.
+    private transient ContentStore contentStore;
+    private transient long contentHandle;
 
-    // The content of the document.
-    private final String content;
+    // The content, encoded as UTF-8, while the document is not attached to a store.
+    private transient byte[] detachedContent;
 
     /**
      * Constructor.
@@ -22,9 +34,26 @@ public class Document extends File{
      */
     public Document(String name, String type, String content) throws IllegalArgumentException {
         super(name);
-        validateDocumentType(type);
+        this.type = DocumentType.parse(type);
+        this.contentLength = content.length();
+        this.detachedContent = content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Constructor for a document whose content is already held in a store.
+     *
+     * @param name The name of the file, packed and already checked.
+     * @param type The type of the document.
+     * @param contentLength The number of characters in the content.
+     * @param contentStore The store holding the content.
+     * @param contentHandle The handle of the content in the store.
+     */
+    Document(long name, DocumentType type, int contentLength, ContentStore contentStore, long contentHandle) {
+        super(name);
         this.type = type;
-        this.content = content;
+        this.contentLength = contentLength;
+        this.contentStore = contentStore;
+        this.contentHandle = contentHandle;
     }
 
     /**
@@ -32,25 +61,99 @@ public class Document extends File{
      * @param type Document type.
      * @throws IllegalArgumentException if the type fails validation.
      */
-    private void validateDocumentType(String type) throws IllegalArgumentException{
-        if(!Arrays.asList("txt", "html", "java", "css").contains(type)){
-            throw new IllegalArgumentException("Invalid document type: " + type
-                    + ". Only 'txt', 'html', 'java' and 'css' are allowed");
-        }
+    public static void validateDocumentType(String type) throws IllegalArgumentException{
+        DocumentType.parse(type);
     }
 
     @Override
     public long getSize() {
-        return EMPTY_DIR_SIZE + (content.length() * 2);
+        return EMPTY_DIR_SIZE + (contentLength * 2L);
     }
 
     /**
      * @return The type of the document.
      */
-    public String getType() {
+    public DocumentType getType() {
         return type;
     }
 
+    /**
+     * @return The content of the document.
+     */
+    public String getContent() {
+        return new String(getContentBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The content of the document, encoded as UTF-8. The array must not be modified.
+     */
+    byte[] getContentBytes() {
+        if (contentStore == null) {
+            return detachedContent;
+        }
+        return contentStore.get(contentHandle);
+    }
+
+    /**
+     * @return The number of characters in the content of the document.
+     */
+    int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return The store holding the content, or null if the content is not in a store.
+     */
+    ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    /**
+     * @return The handle of the content in its store.
+     */
+    long getContentHandle() {
+        return contentHandle;
+    }
+
+    /**
+     * Move the content of this document into the given store, unless it is already held in a store.
+     *
+     * @param store The store to hold the content.
+     */
+    void attach(ContentStore store) {
+        if (contentStore != null) {
+            return;
+        }
+        this.contentHandle = store.put(detachedContent);
+        this.contentStore = store;
+        this.detachedContent = null;
+    }
+
+    /**
+     * Take the content of this document out of the given store, releasing the space it used there.
+     * Nothing happens if the content is held elsewhere.
+     *
+     * @param store The store the content should be taken out of.
+     */
+    void detach(ContentStore store) {
+        if (contentStore == null || contentStore != store) {
+            return;
+        }
+        this.detachedContent = contentStore.get(contentHandle);
+        contentStore.release(contentHandle);
+        this.contentStore = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(getContentBytes());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.detachedContent = (byte[]) in.readObject();
+    }
+
     @Override
     public String toString() {
         return "[Doc] Name: " + getName() + ", Type: " + type + ", Size: " + getSize() + " bytes";
@@ -0,0 +1,74 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * The types a document can have. Disk images store a type as its ordinal, so new types must be
+ * added at the end.
+ */
+public enum DocumentType {
+    /**
+     * Plain text.
+     */
+    TXT("txt"),
+
+    /**
+     * A web page.
+     */
+    HTML("html"),
+
+    /**
+     * Java source code.
+     */
+    JAVA("java"),
+
+    /**
+     * A style sheet.
+     */
+    CSS("css");
+
+    private static final DocumentType[] TYPES = values();
+
+    private final String name;
+
+    DocumentType(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the type, such as 'txt'.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name The name of a type, such as 'txt'.
+     * @return The type, or null if there is no type with the name.
+     */
+    public static DocumentType forName(String name) {
+        for (DocumentType type : TYPES) {
+            if (type.name.equals(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name The name of a type, such as 'txt'.
+     * @return The type.
+     * @throws IllegalArgumentException if there is no type with the name.
+     */
+    public static DocumentType parse(String name) throws IllegalArgumentException {
+        DocumentType type = forName(name);
+        if (type == null) {
+            throw new IllegalArgumentException("Invalid document type: " + name
+                    + ". Only 'txt', 'html', 'java' and 'css' are allowed");
+        }
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -1,23 +1,24 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
 import java.io.Serializable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Abstract class to represent a file. A file
  * could be a directory or a document.
  */
 public abstract class File implements Serializable {
-    private static final long serialVersionUID = 1;
+    private static final long serialVersionUID = 2;
 
     /**
      * empty dir size.
      */
     public static final int EMPTY_DIR_SIZE = 40;
 
-    // The name of the file.
-    private String name;
+    // The name of the file, packed into a long (see Names), which is far smaller than a string.
+    private long name;
+
+    // The directory holding this file, null for the root directory or a detached file.
+    private transient Directory parent;
 
     /**
      * Constructor.
@@ -26,8 +27,16 @@ public abstract class File implements Serializable {
      * @throws IllegalArgumentException if the file name is invalid.
      */
     public File(String name) throws IllegalArgumentException{
-        validateFileName(name);
-        this.name = name;
+        this.name = packName(name);
+    }
+
+    /**
+     * Constructor for a file whose name has already been checked.
+     *
+     * @param packedName The name of the file, packed.
+     */
+    File(long packedName) {
+        this.name = packedName;
     }
 
     /**
@@ -38,27 +47,46 @@ public abstract class File implements Serializable {
     /**
      * Validate the supplied file name.
      * @param fileName The filename to be validated.
+     * @throws IllegalArgumentException if the file name is invalid.
      */
-    private void validateFileName(String fileName) throws IllegalArgumentException{
-        if(fileName.trim().isEmpty())
+    public static void validateFileName(String fileName) throws IllegalArgumentException{
+        if(Names.isBlank(fileName))
             throw new IllegalArgumentException("Name cannot be empty");
 
         if(fileName.length() > 10)
             throw new IllegalArgumentException("Name cannot have more than 10 characters: " + fileName.length());
 
-        Pattern pattern = Pattern.compile("^[a-zA-Z0-9]+$");
-        Matcher matcher = pattern.matcher(fileName);
-
-        if(!matcher.matches()){
+        if(!Names.isAlphanumeric(fileName)){
             throw new IllegalArgumentException("Only English letters and numbers are allowed");
         }
     }
 
+    /**
+     * Validate the supplied file name, and pack it.
+     * @param fileName The filename to be validated.
+     * @return The name, packed.
+     * @throws IllegalArgumentException if the file name is invalid.
+     */
+    static long packName(String fileName) throws IllegalArgumentException{
+        long packed = Names.pack(fileName);
+        if (packed == Names.NOT_PACKABLE) {
+            validateFileName(fileName);
+        }
+        return packed;
+    }
+
     /* --- Getters and Setters -- */
     /**
      * @return The name of the file.
      */
     public String getName(){
+        return Names.unpack(this.name);
+    }
+
+    /**
+     * @return The name of the file, packed. Equal names have equal packed names.
+     */
+    public long getPackedName(){
         return this.name;
     }
 
@@ -67,8 +95,21 @@ public abstract class File implements Serializable {
      * @throws IllegalArgumentException if the new filename fails validation.
      */
     public void setName(String name) throws IllegalArgumentException{
-        validateFileName(name);
-        this.name = name;
+        this.name = packName(name);
+    }
+
+    /**
+     * @return The directory holding this file, or null if the file is not in a directory.
+     */
+    public Directory getParent() {
+        return parent;
+    }
+
+    /**
+     * @param parent The directory now holding this file.
+     */
+    void setParent(Directory parent) {
+        this.parent = parent;
     }
 }
 
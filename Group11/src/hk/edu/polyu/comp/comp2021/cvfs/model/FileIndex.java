@@ -0,0 +1,257 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Secondary indexes over the files on a virtual disk, used to find the candidates for a
+ * criterion search without testing every file.
+ *
+ * Documents are indexed by type and by size, and every file by the trigrams (three letter
+ * substrings) of its name. The size of a directory changes whenever anything below it does,
+ * so directories are not in the size index; they are kept in a set of their own instead.
+ * The disk keeps the indexes up to date as files are added, removed and renamed.
+ *
+ * Every lookup comes as a count, worked out without touching the files, and a collect adding the
+ * files to a set the caller builds, so a search can tell whether the index beats testing the files
+ * of a directory before gathering any of them.
+ */
+public final class FileIndex {
+    /**
+     * The length of the substrings names are indexed by.
+     */
+    public static final int GRAM_LENGTH = 3;
+
+    private final Map<DocumentType, Set<File>> documentsByType = new EnumMap<>(DocumentType.class);
+    private final TreeMap<Long, Set<File>> documentsBySize = new TreeMap<>();
+    private final Map<String, Set<File>> filesByGram = new HashMap<>();
+    private final Set<File> directories = new HashSet<>();
+    private int fileCount;
+
+    /**
+     * Build the indexes for the files below a directory.
+     * @param rootDir The root directory of the disk.
+     * @return The indexes.
+     */
+    static FileIndex build(Directory rootDir) {
+        FileIndex index = new FileIndex();
+        for (File file : rootDir.getFiles()) {
+            index.add(file);
+        }
+        return index;
+    }
+
+    /**
+     * Index a file, and every file below it if it is a directory.
+     * @param file The file added to the disk.
+     */
+    synchronized void add(File file) {
+        fileCount++;
+        addName(file, file.getName());
+        if (file instanceof Document) {
+            Document document = (Document) file;
+            documentsByType.computeIfAbsent(document.getType(), type -> new HashSet<>()).add(document);
+            documentsBySize.computeIfAbsent(document.getSize(), size -> new HashSet<>()).add(document);
+        } else {
+            directories.add(file);
+            for (File child : ((Directory) file).getFiles()) {
+                add(child);
+            }
+        }
+    }
+
+    /**
+     * Stop indexing a file, and every file below it if it is a directory.
+     * @param file The file removed from the disk.
+     */
+    synchronized void remove(File file) {
+        fileCount--;
+        removeName(file, file.getName());
+        if (file instanceof Document) {
+            Document document = (Document) file;
+            removeFrom(documentsByType, document.getType(), document);
+            removeFrom(documentsBySize, document.getSize(), document);
+        } else {
+            directories.remove(file);
+            for (File child : ((Directory) file).getFiles()) {
+                remove(child);
+            }
+        }
+    }
+
+    /**
+     * Re-index the name of a renamed file.
+     * @param file The file, already renamed.
+     * @param oldName The name the file had before.
+     */
+    synchronized void renamed(File file, String oldName) {
+        removeName(file, oldName);
+        addName(file, file.getName());
+    }
+
+    /**
+     * @return The number of files indexed.
+     */
+    public synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return The number of directories.
+     */
+    public synchronized int countDirectories() {
+        return directories.size();
+    }
+
+    /**
+     * @param into The set to add all the directories to.
+     */
+    public synchronized void collectDirectories(Set<File> into) {
+        into.addAll(directories);
+    }
+
+    /**
+     * @param type A document type.
+     * @return The number of documents of the type.
+     */
+    public synchronized int countDocumentsOfType(DocumentType type) {
+        Set<File> documents = documentsByType.get(type);
+        return documents == null ? 0 : documents.size();
+    }
+
+    /**
+     * @param type A document type.
+     * @param into The set to add the documents of the type to.
+     */
+    public synchronized void collectDocumentsOfType(DocumentType type, Set<File> into) {
+        Set<File> documents = documentsByType.get(type);
+        if (documents != null) {
+            into.addAll(documents);
+        }
+    }
+
+    /**
+     * Count the documents with a size in a range, from the number of documents of each size in it
+     * rather than the documents themselves.
+     *
+     * @param from The lower end of the range.
+     * @param fromInclusive Whether documents of exactly the lower size are included.
+     * @param to The upper end of the range.
+     * @param toInclusive Whether documents of exactly the upper size are included.
+     * @return The number of documents with a size in the range.
+     */
+    public synchronized int countDocumentsBySize(long from, boolean fromInclusive, long to, boolean toInclusive) {
+        int count = 0;
+        for (Set<File> sameSize : sizeRange(from, fromInclusive, to, toInclusive).values()) {
+            count += sameSize.size();
+        }
+        return count;
+    }
+
+    /**
+     * @param from The lower end of the range.
+     * @param fromInclusive Whether documents of exactly the lower size are included.
+     * @param to The upper end of the range.
+     * @param toInclusive Whether documents of exactly the upper size are included.
+     * @param into The set to add the documents with a size in the range to.
+     */
+    public synchronized void collectDocumentsBySize(long from, boolean fromInclusive, long to, boolean toInclusive,
+                                                    Set<File> into) {
+        for (Set<File> sameSize : sizeRange(from, fromInclusive, to, toInclusive).values()) {
+            into.addAll(sameSize);
+        }
+    }
+
+    /**
+     * @param text The text to look for.
+     * @return The number of files having the rarest trigram of the text in their name, which is at
+     * least the number of files with the text in their name, or -1 if the text is shorter than
+     * {@link #GRAM_LENGTH} and the index cannot narrow the files down.
+     */
+    public synchronized int estimateFilesWithNameContaining(String text) {
+        if (text.length() < GRAM_LENGTH) {
+            return -1;
+        }
+        int smallest = Integer.MAX_VALUE;
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            Set<File> files = filesByGram.get(text.substring(i, i + GRAM_LENGTH));
+            if (files == null) {
+                return 0;
+            }
+            smallest = Math.min(smallest, files.size());
+        }
+        return smallest;
+    }
+
+    /**
+     * @param text The text to look for, at least {@link #GRAM_LENGTH} long.
+     * @param into The set to add a superset of the files with the text in their name to.
+     */
+    public synchronized void collectFilesWithNameContaining(String text, Set<File> into) {
+        if (text.length() < GRAM_LENGTH) {
+            throw new IllegalArgumentException("Text too short to look up: " + text);
+        }
+
+        // walk the rarest trigram of the text, and keep the files having all the others as well.
+        List<Set<File>> postings = new ArrayList<>();
+        Set<File> smallest = null;
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            Set<File> files = filesByGram.get(text.substring(i, i + GRAM_LENGTH));
+            if (files == null) {
+                return;
+            }
+            postings.add(files);
+            if (smallest == null || files.size() < smallest.size()) {
+                smallest = files;
+            }
+        }
+        for (File file : smallest) {
+            if (hasAll(postings, file)) {
+                into.add(file);
+            }
+        }
+    }
+
+    private static boolean hasAll(List<Set<File>> postings, File file) {
+        for (Set<File> files : postings) {
+            if (!files.contains(file)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private NavigableMap<Long, Set<File>> sizeRange(long from, boolean fromInclusive, long to, boolean toInclusive) {
+        if (from > to || (from == to && !(fromInclusive && toInclusive))) {
+            return Collections.emptyNavigableMap();
+        }
+        return documentsBySize.subMap(from, fromInclusive, to, toInclusive);
+    }
+
+    private void addName(File file, String name) {
+        for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+            filesByGram.computeIfAbsent(name.substring(i, i + GRAM_LENGTH), gram -> new HashSet<>()).add(file);
+        }
+    }
+
+    private void removeName(File file, String name) {
+        for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+            removeFrom(filesByGram, name.substring(i, i + GRAM_LENGTH), file);
+        }
+    }
+
+    private static <K> void removeFrom(Map<K, Set<File>> map, K key, File file) {
+        Set<File> files = map.get(key);
+        if (files != null && files.remove(file) && files.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
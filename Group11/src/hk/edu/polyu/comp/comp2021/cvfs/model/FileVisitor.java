@@ -0,0 +1,15 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * Receives the files of a directory tree one at a time, as the tree is walked.
+ */
+@FunctionalInterface
+public interface FileVisitor {
+    /**
+     * @param level How deep the file is below the directory the walk started in. Files
+     *              directly in that directory are on level 0.
+     * @param file The file.
+     * @return Whether to go on walking. Return false to stop the walk early.
+     */
+    boolean visit(int level, File file);
+}
@@ -0,0 +1,277 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import hk.edu.polyu.comp.comp2021.cvfs.view.UI;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The undo and redo history of a session. The history is bounded both in the number of actions and
+ * in the bytes only they keep reachable: once either bound is passed, the oldest actions are dropped,
+ * and what only they needed is let go of. The last action done is always kept. Recording a new action
+ * drops the actions that were undone, as they can no longer be redone on top of it.
+ */
+final class History {
+    /**
+     * The number of actions kept unless configured otherwise.
+     */
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /**
+     * The bytes the actions may keep reachable unless configured otherwise.
+     */
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    // a rough size of an action and the runnables it holds, so that actions keeping nothing else still count.
+    private static final long ENTRY_BYTES = 64;
+
+    // actions to undo, oldest first.
+    private final Deque<BonusFeatures> undoActions = new ArrayDeque<>();
+
+    // actions to redo, the next one to redo last.
+    private final Deque<BonusFeatures> redoActions = new ArrayDeque<>();
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    // the bytes kept reachable only by the actions in both stacks, and not by the file tree.
+    private long bytes;
+
+    // whether the last action to undo was recorded as it was done, rather than put back by a redo.
+    private boolean lastRecorded;
+
+    // the number of actions to undo below the open group, or -1 if no group is open.
+    private int groupStart = -1;
+
+    /**
+     * @param maxEntries The number of actions to keep.
+     * @param maxBytes The bytes the actions may keep reachable.
+     * @throws IllegalArgumentException if a bound is not positive.
+     */
+    void setLimits(int maxEntries, long maxBytes) throws IllegalArgumentException {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("The history limits must be positive: " + maxEntries + ", " + maxBytes);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Record an action that was just done.
+     * @param action The action.
+     */
+    void record(BonusFeatures action) {
+        clearRedo();
+
+        // fold the action into the previous one where nothing is lost by undoing both at once.
+        if (lastRecorded && !undoActions.isEmpty()) {
+            BonusFeatures merged = undoActions.peekLast().mergeWith(action);
+            if (merged != null) {
+                bytes -= sizeOf(undoActions.pollLast(), false);
+                action = merged;
+            }
+        }
+        undoActions.addLast(action);
+        bytes += sizeOf(action, false);
+        lastRecorded = true;
+        evict();
+    }
+
+    /**
+     * Undo the last action done or redone. If it cannot be undone, as another session has taken the
+     * name or the space it needs meanwhile, it stays the next action to undo.
+     * @throws IllegalStateException if there is no action to undo, or it no longer fits on the disk.
+     * @throws IllegalArgumentException if the action cannot be undone for another reason.
+     */
+    void undo() throws IllegalStateException, IllegalArgumentException {
+        if (undoActions.isEmpty()) {
+            throw new IllegalStateException("No action found to be undone");
+        }
+
+        BonusFeatures action = undoActions.peekLast();
+        action.undo();
+        undoActions.pollLast();
+        bytes -= sizeOf(action, false);
+        lastRecorded = false;
+        groupStart = Math.min(groupStart, undoActions.size());
+        redoActions.addLast(action);
+        bytes += sizeOf(action, true);
+    }
+
+    /**
+     * Redo the last action undone. If it cannot be redone, it stays the next action to redo.
+     * @throws IllegalStateException if there is no action to redo, or it no longer fits on the disk.
+     * @throws IllegalArgumentException if the action cannot be redone for another reason.
+     */
+    void redo() throws IllegalStateException, IllegalArgumentException {
+        if (redoActions.isEmpty()) {
+            throw new IllegalStateException("No action found to be redone");
+        }
+
+        BonusFeatures action = redoActions.peekLast();
+        action.redo();
+        redoActions.pollLast();
+        bytes -= sizeOf(action, true);
+        lastRecorded = false;
+        undoActions.addLast(action);
+        bytes += sizeOf(action, false);
+    }
+
+    /**
+     * Start a group of actions, which are undone and redone together once the group is ended.
+     * Nothing happens if a group is open already.
+     */
+    void beginGroup() {
+        if (groupStart < 0) {
+            groupStart = undoActions.size();
+            lastRecorded = false;
+        }
+    }
+
+    /**
+     * End the open group, replacing the actions recorded since it began with a single action.
+     */
+    void endGroup() {
+        int start = groupStart;
+        groupStart = -1;
+        if (start < 0 || undoActions.size() - start < 2) {
+            return;
+        }
+
+        List<BonusFeatures> actions = new ArrayList<>(undoActions.size() - start);
+        long retained = 0;
+        long undoneRetained = 0;
+        while (undoActions.size() > start) {
+            BonusFeatures action = undoActions.pollLast();
+            bytes -= sizeOf(action, false);
+            retained += Math.max(action.getRetainedBytes(false), 0);
+            undoneRetained += Math.max(action.getRetainedBytes(true), 0);
+            actions.add(action);
+        }
+        Collections.reverse(actions);
+
+        // a group that fails partway is put back the way it was, so it is undone or redone whole or not at all.
+        BonusFeatures group = new BonusFeatures(() -> {
+            UI.deferOutput();
+            int i = actions.size() - 1;
+            try {
+                for (; i >= 0; i--) {
+                    actions.get(i).undo();
+                }
+            } catch (RuntimeException e) {
+                for (i++; i < actions.size(); i++) {
+                    actions.get(i).redo();
+                }
+                throw e;
+            } finally {
+                UI.resumeOutput();
+            }
+            UI.printSuccess("Undid " + actions.size() + " commands");
+        }, () -> {
+            UI.deferOutput();
+            int i = 0;
+            try {
+                for (; i < actions.size(); i++) {
+                    actions.get(i).redo();
+                }
+            } catch (RuntimeException e) {
+                for (i--; i >= 0; i--) {
+                    actions.get(i).undo();
+                }
+                throw e;
+            } finally {
+                UI.resumeOutput();
+            }
+            UI.printSuccess("Redid " + actions.size() + " commands");
+        }, retained, undoneRetained, () -> {
+            for (BonusFeatures action : actions) {
+                action.discardUndo();
+            }
+        }, () -> {
+            for (BonusFeatures action : actions) {
+                action.discardRedo();
+            }
+        });
+        undoActions.addLast(group);
+        bytes += sizeOf(group, false);
+        lastRecorded = false;
+        evict();
+    }
+
+    /**
+     * Drop every action, letting go of what they keep reachable.
+     */
+    void clear() {
+        clearRedo();
+        groupStart = -1;
+        while (!undoActions.isEmpty()) {
+            dropOldestUndo();
+        }
+        lastRecorded = false;
+    }
+
+    /**
+     * @return The number of actions that can be undone.
+     */
+    int getUndoDepth() {
+        return undoActions.size();
+    }
+
+    /**
+     * @return The number of actions that can be redone.
+     */
+    int getRedoDepth() {
+        return redoActions.size();
+    }
+
+    /**
+     * @return An estimate of the bytes kept reachable only by the actions.
+     */
+    long getRetainedBytes() {
+        return bytes;
+    }
+
+    private void clearRedo() {
+        while (!redoActions.isEmpty()) {
+            BonusFeatures action = redoActions.pollLast();
+            bytes -= sizeOf(action, true);
+            action.discardRedo();
+        }
+    }
+
+    private void evict() {
+        while (undoActions.size() + redoActions.size() > maxEntries || bytes > maxBytes) {
+            if (groupStart == 0) {
+                // the actions of an open group are kept until it ends, and then count as one.
+                return;
+            } else if (undoActions.size() > 1) {
+                dropOldestUndo();
+            } else if (!redoActions.isEmpty()) {
+                // drop the undone action that would be redone last.
+                BonusFeatures action = redoActions.pollFirst();
+                bytes -= sizeOf(action, true);
+                action.discardRedo();
+            } else {
+                // the last action is kept however much it keeps reachable, so the last command can be undone.
+                return;
+            }
+        }
+    }
+
+    private void dropOldestUndo() {
+        if (groupStart > 0) {
+            groupStart--;
+        }
+        BonusFeatures action = undoActions.pollFirst();
+        bytes -= sizeOf(action, false);
+        action.discardUndo();
+    }
+
+    private static long sizeOf(BonusFeatures action, boolean undone) {
+        return ENTRY_BYTES + Math.max(action.getRetainedBytes(undone), 0);
+    }
+}
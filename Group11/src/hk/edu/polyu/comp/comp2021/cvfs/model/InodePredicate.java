@@ -0,0 +1,14 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * Tests the files of an {@link InodeTable} by their inodes, reading the arrays of the table.
+ */
+@FunctionalInterface
+public interface InodePredicate {
+    /**
+     * @param table The table.
+     * @param inode An inode of the table.
+     * @return Whether the file matches.
+     */
+    boolean test(InodeTable table, int inode);
+}
@@ -0,0 +1,274 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The files of a disk laid out as a struct of arrays, for scans that go through a whole subtree.
+ *
+ * Each file is an inode: an index into parallel arrays of its packed name, its type, its size and
+ * its level. The inodes are in depth-first order, the root directory first, so the first child of a
+ * directory is the inode right after it, and the next sibling of a file is the inode where its
+ * subtree ends. A recursive listing or search is then a run through consecutive array entries
+ * rather than a chase through directory objects, and tests on names, types and sizes read only
+ * the arrays (see {@link InodePredicate}). The file objects are kept alongside, to hand the matches
+ * back as the files they are.
+ *
+ * A table is a copy of the tree at the time it was built, and is not changed afterwards. It is
+ * built while the tree goes on changing, each directory read under its own lock, and is only as
+ * good as the tree it was built of if no change was made meanwhile (see
+ * {@link VirtualDisk#getInodeTable()}).
+ *
+ * The table is not kept up to date: any change to the disk, however small, has the next scan lay
+ * out the whole tree again, at about the cost of a recursive listing. It takes 29 bytes per file
+ * with compressed references (the name and size as longs, the level and subtree end as ints, the
+ * type as a byte, and the file), on top of the tree. A rebuild allocates more than that, about 75
+ * bytes per file on a balanced tree of 1584 files, as it also copies the files of every directory
+ * while holding its lock, and takes about twice as long as walking the tree. It only pays off for
+ * disks scanned several times between changes, so inode scans are off unless turned on (see
+ * {@link CVFS#enableInodeScans()}). InodeScanBenchmark measures scans with and without a rebuild.
+ */
+public final class InodeTable {
+    /**
+     * The type of a directory, in place of a document type ordinal.
+     */
+    public static final byte DIRECTORY = -1;
+
+    private final int count;
+    private final long[] names;
+    private final byte[] types;
+    private final long[] sizes;
+    private final int[] levels;
+    private final int[] subtreeEnds;
+    private final File[] files;
+
+    // the count of changes to the disk the table was built after.
+    private final long version;
+
+    private InodeTable(int count, long[] names, byte[] types, long[] sizes, int[] levels, int[] subtreeEnds,
+                       File[] files, long version) {
+        this.count = count;
+        this.names = names;
+        this.types = types;
+        this.sizes = sizes;
+        this.levels = levels;
+        this.subtreeEnds = subtreeEnds;
+        this.files = files;
+        this.version = version;
+    }
+
+    /**
+     * Lay out a tree as inodes. The tree may change meanwhile, in which case the table is not
+     * that of any one version of it, and the caller must throw it away.
+     *
+     * @param root The root directory.
+     * @param version The count of changes to the disk when the build started.
+     * @param expectedCount The number of files expected in the tree, the root directory included,
+     *                      so the arrays are only copied if the tree changed.
+     * @return The table.
+     */
+    static InodeTable build(Directory root, long version, int expectedCount) {
+        Builder builder = new Builder(Math.max(expectedCount, 1));
+        builder.add(root);
+        return new InodeTable(builder.count,
+                trim(builder.names, builder.count),
+                trim(builder.types, builder.count),
+                trim(builder.sizes, builder.count),
+                trim(builder.levels, builder.count),
+                trim(builder.subtreeEnds, builder.count),
+                trim(builder.files, builder.count),
+                version);
+    }
+
+    private static long[] trim(long[] array, int count) {
+        return array.length == count ? array : Arrays.copyOf(array, count);
+    }
+
+    private static byte[] trim(byte[] array, int count) {
+        return array.length == count ? array : Arrays.copyOf(array, count);
+    }
+
+    private static int[] trim(int[] array, int count) {
+        return array.length == count ? array : Arrays.copyOf(array, count);
+    }
+
+    private static File[] trim(File[] array, int count) {
+        return array.length == count ? array : Arrays.copyOf(array, count);
+    }
+
+    /**
+     * @return The number of inodes, the root directory included.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param inode An inode.
+     * @return The packed name of the file (see {@link Names}).
+     */
+    public long getPackedName(int inode) {
+        return names[inode];
+    }
+
+    /**
+     * @param inode An inode.
+     * @return The ordinal of the document type of the file, or {@link #DIRECTORY}.
+     */
+    public byte getType(int inode) {
+        return types[inode];
+    }
+
+    /**
+     * @param inode An inode.
+     * @return The size of the file, the whole subtree for a directory.
+     */
+    public long getSize(int inode) {
+        return sizes[inode];
+    }
+
+    /**
+     * @param inode An inode.
+     * @return The file.
+     */
+    public File getFile(int inode) {
+        return files[inode];
+    }
+
+    /**
+     * @return The count of changes to the disk the table was built after.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Find the inode of a directory from its path.
+     *
+     * @param path The directories from just below the root down to the directory. Empty for the root.
+     * @return The inode of the directory, or -1 if the table does not hold it.
+     */
+    int find(List<Directory> path) {
+        int inode = 0;
+        for (Directory directory : path) {
+            // go through the children only, jumping over their subtrees.
+            int child = inode + 1;
+            while (child < subtreeEnds[inode] && files[child] != directory) {
+                child = subtreeEnds[child];
+            }
+            if (child >= subtreeEnds[inode]) {
+                return -1;
+            }
+            inode = child;
+        }
+        return inode;
+    }
+
+    /**
+     * Hand the files below a directory to a visitor, depth first, as a walk of the directory would.
+     *
+     * @param directory The inode of the directory.
+     * @param predicate The files to hand to the visitor, or null for every file.
+     * @param visitor The visitor.
+     * @return False if the visitor stopped early, true otherwise.
+     */
+    boolean walk(int directory, InodePredicate predicate, FileVisitor visitor) {
+        int base = levels[directory] + 1;
+        int end = subtreeEnds[directory];
+        for (int inode = directory + 1; inode < end; inode++) {
+            if ((predicate == null || predicate.test(this, inode)) && !visitor.visit(levels[inode] - base, files[inode])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lays out the inodes, growing the arrays as it goes.
+     */
+    private static final class Builder {
+        private int count;
+        private long[] names;
+        private byte[] types;
+        private long[] sizes;
+        private int[] levels;
+        private int[] subtreeEnds;
+        private File[] files;
+
+        Builder(int capacity) {
+            names = new long[capacity];
+            types = new byte[capacity];
+            sizes = new long[capacity];
+            levels = new int[capacity];
+            subtreeEnds = new int[capacity];
+            files = new File[capacity];
+        }
+
+        void add(Directory root) {
+            // the files of the directories whose subtrees are still being laid out, their inodes,
+            // and the position reached in each. The depth of a directory in them is its level.
+            List<List<File>> open = new ArrayList<>();
+            int[] openInodes = new int[8];
+            int[] positions = new int[8];
+            int depth = 0;
+            open.add(filesOf(root));
+            openInodes[0] = append(root, 0);
+            while (depth >= 0) {
+                List<File> children = open.get(depth);
+                if (positions[depth] == children.size()) {
+                    subtreeEnds[openInodes[depth]] = count;
+                    open.remove(depth);
+                    depth--;
+                    continue;
+                }
+
+                File child = children.get(positions[depth]++);
+                int inode = append(child, depth + 1);
+                if (child instanceof Directory) {
+                    depth++;
+                    if (depth == openInodes.length) {
+                        openInodes = Arrays.copyOf(openInodes, depth * 2);
+                        positions = Arrays.copyOf(positions, depth * 2);
+                    }
+                    open.add(filesOf((Directory) child));
+                    openInodes[depth] = inode;
+                    positions[depth] = 0;
+                } else {
+                    subtreeEnds[inode] = inode + 1;
+                }
+            }
+        }
+
+        // the files of a directory, read under its lock so a change being made to it is not seen halfway.
+        private static List<File> filesOf(Directory directory) {
+            Lock lock = DirectoryLocks.forDirectory(directory).readLock();
+            lock.lock();
+            try {
+                return new ArrayList<>(directory.getFiles());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int append(File file, int level) {
+            if (count == names.length) {
+                int capacity = count * 2;
+                names = Arrays.copyOf(names, capacity);
+                types = Arrays.copyOf(types, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                levels = Arrays.copyOf(levels, capacity);
+                subtreeEnds = Arrays.copyOf(subtreeEnds, capacity);
+                files = Arrays.copyOf(files, capacity);
+            }
+            int inode = count++;
+            names[inode] = file.getPackedName();
+            types[inode] = file instanceof Document ? (byte) ((Document) file).getType().ordinal() : DIRECTORY;
+            sizes[inode] = file.getSize();
+            levels[inode] = level;
+            files[inode] = file;
+            return inode;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.MappedContentStore;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A disk image whose directories are read into memory as they are reached.
+ *
+ * A directory read lazily starts out with its name and size, and the number of documents and
+ * directories below it, all from its inode, but none of its files. The first time its files are
+ * asked for, their inodes are read from the image in one go, as the files of a directory are
+ * numbered next to each other (see {@link DiskImage}), and the directories among them start out
+ * the same way. So reading a disk reads its root directory only, and a session only ever reads the
+ * directories it goes into, lists or searches.
+ *
+ * The directories loaded can be unloaded again to keep no more than a limit of them in memory. They
+ * are unloaded the last loaded first: a directory is always loaded after the directories above it,
+ * so subtrees are let go of from their leaves up, and the directories nearest the root, which every
+ * path goes through, are the ones kept. A directory is kept loaded for good once a file in it
+ * changes, or a working directory goes into it or below it, as the history and the working
+ * directories hold on to its files; anything else is as in the image, and can be read again.
+ *
+ * As directories may be read from the image file at any time for as long as a disk read lazily is
+ * reachable, through the history, a snapshot or another session, the images read lazily are kept
+ * track of by file, and a store to a file one of them still reads writes a new file instead of
+ * updating it in place (see {@link #isReading(MappedContentStore)}).
+ */
+final class LazyImage {
+    private static final DocumentType[] DOCUMENT_TYPES = DocumentType.values();
+
+    // the images read lazily, by the file they read. Held weakly, so an image counts as long as a
+    // directory read from it, and so a disk, can still be reached.
+    private static final Map<Object, List<WeakReference<LazyImage>>> READING = new HashMap<>();
+
+    private final MappedContentStore image;
+    private final long inodeStart;
+    private final int maxLoaded;
+
+    // the directories loaded and not known to be kept, the last loaded on top.
+    private final Deque<Directory> loaded = new ArrayDeque<>();
+
+    /**
+     * Constructor.
+     *
+     * @param image The mapped image.
+     * @param inodeStart The offset of the inode table in the image.
+     * @param maxLoaded The number of directories to keep loaded when trimmed.
+     */
+    LazyImage(MappedContentStore image, long inodeStart, int maxLoaded) {
+        this.image = image;
+        this.inodeStart = inodeStart;
+        this.maxLoaded = maxLoaded;
+        synchronized (READING) {
+            READING.computeIfAbsent(fileOf(image), key -> new ArrayList<>()).add(new WeakReference<>(this));
+        }
+    }
+
+    /**
+     * @param image A mapped image.
+     * @return Whether a disk that can still be reached is reading the same file lazily.
+     */
+    static boolean isReading(MappedContentStore image) {
+        synchronized (READING) {
+            List<WeakReference<LazyImage>> images = READING.get(fileOf(image));
+            if (images == null) {
+                return false;
+            }
+            for (Iterator<WeakReference<LazyImage>> it = images.iterator(); it.hasNext(); ) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            if (images.isEmpty()) {
+                READING.remove(fileOf(image));
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // the file an image was mapped from, which stays the same as long as it is not replaced.
+    private static Object fileOf(MappedContentStore image) {
+        return image.getFileKey() != null ? image.getFileKey() : image.getPath();
+    }
+
+    /**
+     * @return The root directory, with none of its files read yet.
+     */
+    Directory readRoot() {
+        byte[] inode = new byte[DiskImage.INODE_SIZE];
+        image.read(inodeStart, inode);
+        return (Directory) readFile(ByteBuffer.wrap(inode), 0);
+    }
+
+    /**
+     * @param dir A directory read from this image.
+     * @param inode The inode of one of its files.
+     * @return The file.
+     */
+    Directory getChild(Directory dir, int inode) {
+        List<File> files = dir.getFiles();
+        return (Directory) files.get(inode - dir.getLazyEntry().firstChild);
+    }
+
+    /**
+     * Read the files of a directory, unless another thread has just done so.
+     *
+     * @param dir The directory.
+     * @param entry Where its files are in the image.
+     */
+    void load(Directory dir, Entry entry) {
+        synchronized (entry) {
+            if (entry.loaded) {
+                return;
+            }
+            byte[] inodes = new byte[entry.childCount * DiskImage.INODE_SIZE];
+            image.read(inodeStart + (long) entry.firstChild * DiskImage.INODE_SIZE, inodes);
+            ByteBuffer buffer = ByteBuffer.wrap(inodes);
+            for (int i = 0; i < entry.childCount; i++) {
+                dir.addLoadedFile(readFile(buffer, i * DiskImage.INODE_SIZE));
+            }
+            entry.loaded = true;
+        }
+        synchronized (this) {
+            if (!entry.kept) {
+                loaded.push(dir);
+            }
+        }
+    }
+
+    /**
+     * @return Whether more directories are loaded than the limit, not counting those kept loaded
+     * that have not been found to be kept yet.
+     */
+    synchronized boolean isOverLimit() {
+        return loaded.size() > maxLoaded;
+    }
+
+    /**
+     * @return The number of directories loaded that may be unloaded again.
+     */
+    synchronized int getLoadedCount() {
+        return loaded.size();
+    }
+
+    /**
+     * Unload the directories loaded last until no more than the limit are loaded, or only those kept
+     * loaded are. The caller must make sure nothing else changes the tree meanwhile.
+     *
+     * @return The number of directories unloaded.
+     */
+    int trim() {
+        int unloaded = 0;
+        while (true) {
+            // the lock of the directory is taken before the monitor, as loading takes them.
+            Directory dir;
+            synchronized (this) {
+                if (loaded.size() <= maxLoaded) {
+                    return unloaded;
+                }
+                // the directories loaded below it were loaded after it, so they are unloaded
+                // already, or kept, and then so is it.
+                dir = loaded.pop();
+                if (dir.getLazyEntry().kept) {
+                    continue;
+                }
+            }
+            Lock lock = DirectoryLocks.forDirectory(dir).writeLock();
+            lock.lock();
+            try {
+                dir.unload();
+            } finally {
+                lock.unlock();
+            }
+            unloaded++;
+        }
+    }
+
+    private File readFile(ByteBuffer inodes, int base) {
+        long name = Names.pack(new String(inodes.array(), base + DiskImage.I_NAME,
+                inodes.get(base + DiskImage.I_NAME_LENGTH), StandardCharsets.US_ASCII));
+        if (inodes.get(base + DiskImage.I_KIND) == DiskImage.KIND_DIRECTORY) {
+            return new Directory(name, inodes.getLong(base + DiskImage.I_SUBTREE_SIZE), new Entry(this,
+                    inodes.getInt(base + DiskImage.I_FIRST_CHILD),
+                    inodes.getInt(base + DiskImage.I_CHILD_COUNT),
+                    inodes.getInt(base + DiskImage.I_SUBTREE_DOCUMENTS),
+                    inodes.getInt(base + DiskImage.I_SUBTREE_DIRECTORIES)));
+        }
+        return new Document(name,
+                DOCUMENT_TYPES[inodes.get(base + DiskImage.I_DOCUMENT_TYPE)],
+                inodes.getInt(base + DiskImage.I_CONTENT_LENGTH),
+                image,
+                inodes.getLong(base + DiskImage.I_CONTENT_OFFSET));
+    }
+
+    /**
+     * Where the files of a directory are in the image, and whether they are loaded.
+     */
+    static final class Entry {
+        final LazyImage image;
+        final int firstChild;
+        final int childCount;
+
+        // the documents and directories below the directory, as in the image.
+        final int documents;
+        final int directories;
+
+        volatile boolean loaded;
+
+        // whether the directory stays loaded for good. Once it is, so are its ancestors.
+        volatile boolean kept;
+
+        Entry(LazyImage image, int firstChild, int childCount, int documents, int directories) {
+            this.image = image;
+            this.firstChild = firstChild;
+            this.childCount = childCount;
+            this.documents = documents;
+            this.directories = directories;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * The files of a directory by their packed names (see {@link Names}), in an open-addressing
+ * table of longs, so that a lookup neither boxes the name nor compares strings. Each file is kept
+ * with its position in the list of files of the directory, so that it can be taken out of the
+ * list without looking for it there.
+ */
+final class NameTable {
+    private static final int MIN_CAPACITY = 4;
+
+    // the packed names, 0 in a free slot, and the file in each slot and its position in the list.
+    private long[] names = new long[MIN_CAPACITY];
+    private File[] files = new File[MIN_CAPACITY];
+    private int[] positions = new int[MIN_CAPACITY];
+    private int count;
+
+    /**
+     * @param name A packed name.
+     * @return The file with the name, or null if there is none.
+     */
+    File get(long name) {
+        int mask = names.length - 1;
+        for (int slot = slotOf(name, mask); names[slot] != 0; slot = (slot + 1) & mask) {
+            if (names[slot] == name) {
+                return files[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name A packed name.
+     * @param file The file with the name, replacing any file that had it.
+     * @param position The position of the file in the list of files of the directory.
+     */
+    void put(long name, File file, int position) {
+        if ((count + 1) * 4 > names.length * 3) {
+            resize(names.length * 2);
+        }
+        int mask = names.length - 1;
+        int slot = slotOf(name, mask);
+        while (names[slot] != 0 && names[slot] != name) {
+            slot = (slot + 1) & mask;
+        }
+        if (names[slot] == 0) {
+            count++;
+        }
+        names[slot] = name;
+        files[slot] = file;
+        positions[slot] = position;
+    }
+
+    /**
+     * @param name A packed name.
+     * @param file The file expected to have the name.
+     * @return The position of the file in the list of files of the directory, or -1 if the file
+     * did not have the name and nothing was removed.
+     */
+    int remove(long name, File file) {
+        int mask = names.length - 1;
+        int slot = slotOf(name, mask);
+        while (names[slot] != name) {
+            if (names[slot] == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (files[slot] != file) {
+            return -1;
+        }
+        int position = positions[slot];
+
+        // shift later entries of the run back, so that no lookup stops early at the freed slot.
+        int free = slot;
+        for (int next = (free + 1) & mask; names[next] != 0; next = (next + 1) & mask) {
+            int home = slotOf(names[next], mask);
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                names[free] = names[next];
+                files[free] = files[next];
+                positions[free] = positions[next];
+                free = next;
+            }
+        }
+        names[free] = 0;
+        files[free] = null;
+        count--;
+        return position;
+    }
+
+    private void resize(int capacity) {
+        long[] oldNames = names;
+        File[] oldFiles = files;
+        int[] oldPositions = positions;
+        names = new long[capacity];
+        files = new File[capacity];
+        positions = new int[capacity];
+        count = 0;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != 0) {
+                put(oldNames[i], oldFiles[i], oldPositions[i]);
+            }
+        }
+    }
+
+    private static int slotOf(long name, int mask) {
+        long hash = name * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+}
@@ -0,0 +1,157 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * Checks on the names of files and criteria, done with plain loops over the characters so that
+ * checking a name neither compiles a pattern nor allocates.
+ *
+ * A file name of at most {@link #MAX_PACKED_LENGTH} letters and digits is also kept packed into a
+ * single long, six bits a character, first character in the highest bits and unused characters
+ * zero. Packed names are compared as numbers, and compare in the same order as the names.
+ */
+public final class Names {
+    /**
+     * The longest name that can be packed.
+     */
+    public static final int MAX_PACKED_LENGTH = 10;
+
+    /**
+     * Returned by {@link #pack(String)} for a name that cannot be packed. No name packs to it.
+     */
+    public static final long NOT_PACKABLE = -1;
+
+    private static final int BITS = 6;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int TOP_SHIFT = BITS * (MAX_PACKED_LENGTH - 1);
+
+    // the character of each code; code 0 marks the end of a name.
+    private static final char[] CHARS = ("\0" + "0123456789"
+            + "ABCDEFGHIJKLMNOPQRSTUVWXYZ" + "abcdefghijklmnopqrstuvwxyz").toCharArray();
+
+    private Names() {
+    }
+
+    /**
+     * @param name A name.
+     * @return Whether the name is not empty and holds only English letters and digits.
+     */
+    public static boolean isAlphanumeric(String name) {
+        int length = name.length();
+        if (length == 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (codeOf(name.charAt(i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name A name.
+     * @return Whether the name is empty or holds only whitespace, as {@link String#trim()} counts it.
+     */
+    public static boolean isBlank(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name A name.
+     * @return The name packed into a long, or {@link #NOT_PACKABLE} if it is empty, longer than
+     * {@link #MAX_PACKED_LENGTH} or holds anything but English letters and digits.
+     */
+    public static long pack(String name) {
+        int length = name.length();
+        if (length == 0 || length > MAX_PACKED_LENGTH) {
+            return NOT_PACKABLE;
+        }
+        long packed = 0;
+        for (int i = 0; i < length; i++) {
+            int code = codeOf(name.charAt(i));
+            if (code == 0) {
+                return NOT_PACKABLE;
+            }
+            packed = packed | ((long) code << (TOP_SHIFT - BITS * i));
+        }
+        return packed;
+    }
+
+    /**
+     * @param packed A packed name.
+     * @return The number of characters in the name.
+     */
+    public static int length(long packed) {
+        int length = 0;
+        while (length < MAX_PACKED_LENGTH && codeAt(packed, length) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @param packed A packed name.
+     * @param into Receives the characters of the name; it must hold at least {@link #MAX_PACKED_LENGTH}.
+     * @return The number of characters in the name.
+     */
+    public static int unpack(long packed, char[] into) {
+        int length = 0;
+        for (int code; length < MAX_PACKED_LENGTH && (code = codeAt(packed, length)) != 0; length++) {
+            into[length] = CHARS[code];
+        }
+        return length;
+    }
+
+    /**
+     * @param packed A packed name.
+     * @return The name.
+     */
+    public static String unpack(long packed) {
+        char[] chars = new char[MAX_PACKED_LENGTH];
+        return new String(chars, 0, unpack(packed, chars));
+    }
+
+    /**
+     * Check whether a packed name holds a text, comparing its characters six bits at a time
+     * without unpacking it.
+     *
+     * @param packed A packed name.
+     * @param text A text, packed.
+     * @param textLength The number of characters in the text.
+     * @return Whether the name holds the text.
+     */
+    public static boolean contains(long packed, long text, int textLength) {
+        if (textLength == 0) {
+            return true;
+        }
+        long mask = ((1L << (BITS * textLength)) - 1) << (BITS * (MAX_PACKED_LENGTH - textLength));
+        int last = length(packed) - textLength;
+        for (int start = 0; start <= last; start++) {
+            if (((packed << (BITS * start)) & mask) == text) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int codeAt(long packed, int index) {
+        return (int) (packed >>> (TOP_SHIFT - BITS * index)) & MASK;
+    }
+
+    private static int codeOf(char c) {
+        if (c >= '0' && c <= '9') {
+            return 1 + (c - '0');
+        }
+        if (c >= 'A' && c <= 'Z') {
+            return 11 + (c - 'A');
+        }
+        if (c >= 'a' && c <= 'z') {
+            return 37 + (c - 'a');
+        }
+        return 0;
+    }
+}
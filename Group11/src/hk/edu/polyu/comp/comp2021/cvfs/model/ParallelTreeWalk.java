@@ -0,0 +1,112 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Lists a directory tree in buckets using a fork/join pool, splitting subtrees into tasks.
+ *
+ * Each task lists its directory into a bucket, and returns it in a node together with the
+ * nodes of its subdirectories, in the order the subdirectories appear. Once every task is
+ * done, the nodes are read breadth first, so the buckets come out in the same order as
+ * a breadth-first walk on one thread.
+ */
+final class ParallelTreeWalk {
+    private ParallelTreeWalk() {
+    }
+
+    /**
+     * @param start The directory to walk.
+     * @param filePredicate The files to keep, or null to keep every file.
+     * @param threshold The size in bytes below which a subtree is walked on the current thread.
+     * @return One bucket per directory walked. If filtering, buckets left empty are dropped.
+     */
+    static List<CVFS.Bucket> walk(Directory start, Predicate<File> filePredicate, long threshold) {
+        Node root = ForkJoinPool.commonPool().invoke(new SubtreeTask(start, 0, filePredicate, threshold));
+
+        List<CVFS.Bucket> buckets = new ArrayList<>();
+        Deque<Node> nodeQueue = new ArrayDeque<>();
+        nodeQueue.add(root);
+        while (!nodeQueue.isEmpty()) {
+            Node node = nodeQueue.removeFirst();
+            if (filePredicate == null || !node.bucket.getFiles().isEmpty()) {
+                buckets.add(node.bucket);
+            }
+            nodeQueue.addAll(node.children);
+        }
+        return buckets;
+    }
+
+    /**
+     * The bucket of one directory, and the nodes of its subdirectories.
+     */
+    private static final class Node {
+        private final CVFS.Bucket bucket;
+        private final List<Node> children;
+
+        Node(CVFS.Bucket bucket, List<Node> children) {
+            this.bucket = bucket;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Lists one subtree.
+     */
+    private static final class SubtreeTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1;
+
+        private final Directory directory;
+        private final int level;
+        private final Predicate<File> filePredicate;
+        private final long threshold;
+        private boolean forked;
+
+        SubtreeTask(Directory directory, int level, Predicate<File> filePredicate, long threshold) {
+            this.directory = directory;
+            this.level = level;
+            this.filePredicate = filePredicate;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Node compute() {
+            List<File> files = CVFS.snapshotFiles(directory);
+
+            // fork the large subdirectories, and walk the small ones here. The last large one is
+            // walked here too, rather than waiting for it, so a chain of single large subdirectories
+            // does not fork at all.
+            List<SubtreeTask> subtasks = new ArrayList<>();
+            SubtreeTask lastLarge = null;
+            List<File> filteredFiles = filePredicate == null ? files : new ArrayList<>();
+            for (File file : files) {
+                if (filePredicate != null && filePredicate.test(file)) {
+                    filteredFiles.add(file);
+                }
+                if (file instanceof Directory) {
+                    SubtreeTask subtask = new SubtreeTask((Directory) file, level + 1, filePredicate, threshold);
+                    if (file.getSize() >= threshold) {
+                        if (lastLarge != null) {
+                            lastLarge.forked = true;
+                            lastLarge.fork();
+                        }
+                        lastLarge = subtask;
+                    }
+                    subtasks.add(subtask);
+                }
+            }
+
+            // collect the subdirectories in the order they are in this directory.
+            List<Node> children = new ArrayList<>(subtasks.size());
+            for (SubtreeTask subtask : subtasks) {
+                children.add(subtask.forked ? subtask.join() : subtask.compute());
+            }
+            return new Node(new CVFS.Bucket(level, filteredFiles), children);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.ContentStore;
+import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.FileCriterion;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A frozen view of a virtual disk at the moment the snapshot was taken.
+ *
+ * Taking a snapshot only starts a new epoch of the disk, so it takes constant time. The tree is
+ * shared with the disk: the first time a directory changes after a snapshot, it keeps a copy of
+ * the files it held (see {@link Directory#preserve}), and directories that have not changed are
+ * read as they are. The snapshot hands out frozen copies of the files, made as they are first
+ * read, whose names, files and sizes are those at the time of the snapshot. Readers of a snapshot
+ * never hold a lock on the disk, so they neither block nor see the sessions changing it.
+ */
+public final class Snapshot implements Closeable {
+    private final VirtualDisk disk;
+    private final long id;
+    private final Map<String, FileCriterion> criteria;
+    private final List<Directory> workingDirectoryPath;
+    private final FrozenDirectory root;
+
+    /**
+     * Constructor. The caller must hold the namespace write lock of the disk.
+     *
+     * @param disk The disk.
+     * @param id The last epoch of the disk the snapshot sees.
+     */
+    Snapshot(VirtualDisk disk, long id) {
+        this.disk = disk;
+        this.id = id;
+        this.criteria = Collections.unmodifiableMap(new HashMap<>(disk.getCriteriaMap()));
+        this.workingDirectoryPath = disk.getWorkingDirectoryPath();
+        this.root = new FrozenDirectory(disk.getRootDirectory(), disk.getRootDirectory().getPackedName());
+    }
+
+    /**
+     * @return The root directory as it was when the snapshot was taken.
+     */
+    public Directory getRootDirectory() {
+        return root;
+    }
+
+    /**
+     * @return The criteria defined when the snapshot was taken.
+     */
+    public Map<String, FileCriterion> getCriteriaMap() {
+        return criteria;
+    }
+
+    /**
+     * @return The number of bytes in use on the disk when the snapshot was taken.
+     */
+    public long getUsedSize() {
+        return root.getSize();
+    }
+
+    /**
+     * Walk the files of the snapshot depth-first, from the root directory.
+     *
+     * @param visitor Receives each file, with its level below the root directory.
+     */
+    public void walk(FileVisitor visitor) {
+        walk(root, 0, visitor);
+    }
+
+    private static boolean walk(Directory directory, int level, FileVisitor visitor) {
+        for (File file : directory.getFiles()) {
+            if (!visitor.visit(level, file)) {
+                return false;
+            }
+            if (file instanceof Directory && !walk((Directory) file, level + 1, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Let the disk forget the files kept only for this snapshot. The snapshot cannot be read afterwards.
+     */
+    @Override
+    public void close() {
+        disk.closeSnapshot(id);
+    }
+
+    /**
+     * @return The disk the snapshot was taken of.
+     */
+    VirtualDisk getDisk() {
+        return disk;
+    }
+
+    /**
+     * @return The frozen directories from just below the root down to the working directory of the
+     * disk when the snapshot was taken.
+     */
+    List<Directory> getWorkingDirectoryPath() {
+        List<Directory> path = new ArrayList<>();
+        Directory parent = root;
+        for (Directory directory : workingDirectoryPath) {
+            Directory frozen = null;
+            for (File file : parent.getFiles()) {
+                if (file instanceof FrozenDirectory && ((FrozenDirectory) file).original == directory) {
+                    frozen = (Directory) file;
+                }
+            }
+            if (frozen == null) {
+                break;
+            }
+            path.add(frozen);
+            parent = frozen;
+        }
+        return path;
+    }
+
+    private File freeze(File file, long name) {
+        if (file instanceof Directory) {
+            return new FrozenDirectory((Directory) file, name);
+        }
+        return new FrozenDocument((Document) file, name);
+    }
+
+    /**
+     * A directory as it was when the snapshot was taken. Its files are frozen on first use.
+     */
+    private final class FrozenDirectory extends Directory {
+        private static final long serialVersionUID = 1;
+
+        private final Directory original;
+        private volatile List<File> files;
+        private volatile NameTable filesByName;
+        private volatile long size = -1;
+
+        FrozenDirectory(Directory original, long name) {
+            super(name);
+            this.original = original;
+        }
+
+        @Override
+        public List<File> getFiles() {
+            List<File> frozenFiles = files;
+            if (frozenFiles == null) {
+                frozenFiles = freezeFiles();
+            }
+            return frozenFiles;
+        }
+
+        private synchronized List<File> freezeFiles() {
+            if (files != null) {
+                return files;
+            }
+
+            // the live directory only has to be locked while the files it held are looked up.
+            Version version;
+            Lock lock = DirectoryLocks.forDirectory(original).readLock();
+            lock.lock();
+            try {
+                version = original.versionAt(id);
+            } finally {
+                lock.unlock();
+            }
+
+            List<File> frozenFiles = new ArrayList<>(version.files.length);
+            NameTable byName = new NameTable();
+            for (int i = 0; i < version.files.length; i++) {
+                File file = freeze(version.files[i], version.names[i]);
+                file.setParent(this);
+                frozenFiles.add(file);
+                byName.put(file.getPackedName(), file, i);
+            }
+            filesByName = byName;
+            files = Collections.unmodifiableList(frozenFiles);
+            return files;
+        }
+
+        @Override
+        public File getFile(long packedName) {
+            getFiles();
+            return filesByName.get(packedName);
+        }
+
+        @Override
+        public long getSize() {
+            long total = size;
+            if (total < 0) {
+                total = EMPTY_DIR_SIZE;
+                for (File file : getFiles()) {
+                    total = total + file.getSize();
+                }
+                size = total;
+            }
+            return total;
+        }
+
+        @Override
+        void addFile(File file) {
+            throw new IllegalStateException("A snapshot cannot be changed");
+        }
+
+        @Override
+        boolean removeFile(File file) {
+            throw new IllegalStateException("A snapshot cannot be changed");
+        }
+
+        @Override
+        void renameFile(File file, String newName) {
+            throw new IllegalStateException("A snapshot cannot be changed");
+        }
+    }
+
+    /**
+     * A document under the name it had when the snapshot was taken. Its content never changes,
+     * so it is read from the live document, wherever that keeps it by then.
+     */
+    private static final class FrozenDocument extends Document {
+        private static final long serialVersionUID = 1;
+
+        private final Document original;
+
+        FrozenDocument(Document original, long name) {
+            super(name, original.getType(), original.getContentLength(), null, 0);
+            this.original = original;
+        }
+
+        @Override
+        byte[] getContentBytes() {
+            return original.getContentBytes();
+        }
+
+        @Override
+        ContentStore getContentStore() {
+            return original.getContentStore();
+        }
+
+        @Override
+        long getContentHandle() {
+            return original.getContentHandle();
+        }
+
+        @Override
+        void attach(ContentStore store) {
+            // the content stays with the live document.
+        }
+
+        @Override
+        void detach(ContentStore store) {
+            // the content stays with the live document.
+        }
+    }
+}
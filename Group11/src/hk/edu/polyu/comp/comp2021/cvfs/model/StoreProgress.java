@@ -0,0 +1,128 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The progress of a store of a virtual disk running in the background.
+ *
+ * The store writes a snapshot taken when it started, so the disk can go on changing meanwhile. The
+ * files are counted once they are numbered, and each is counted as written once its content is in
+ * the image; a store that writes a delta writes no files one by one. Readers on other threads see
+ * the progress as it is made.
+ */
+public final class StoreProgress {
+    private final Path path;
+    private final long startedNanos = System.nanoTime();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile int fileCount;
+    private volatile int filesWritten;
+    private volatile long finishedNanos;
+
+    // what was written once the store succeeded, or why it failed.
+    private volatile String result;
+    private volatile Exception error;
+
+    /**
+     * Constructor.
+     *
+     * @param path The path of the image being stored to.
+     */
+    StoreProgress(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * @return The path of the image being stored to.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return The number of files to write, or 0 until they are counted.
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return The number of files written so far.
+     */
+    public int getFilesWritten() {
+        return filesWritten;
+    }
+
+    /**
+     * @return Whether the store has finished, successfully or not.
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return What the store wrote, or null if it has not finished or failed.
+     */
+    public String getResult() {
+        return result;
+    }
+
+    /**
+     * @return Why the store failed, or null if it has not finished or succeeded.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return The time the store took so far, or took altogether once it has finished.
+     */
+    public long getElapsedNanos() {
+        return (isDone() ? finishedNanos : System.nanoTime()) - startedNanos;
+    }
+
+    /**
+     * Wait for the store to finish.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * @param fileCount The number of files to write.
+     */
+    void setFileCount(int fileCount) {
+        this.fileCount = fileCount;
+    }
+
+    /**
+     * Count one more file as written. Only called by the thread running the store.
+     */
+    void fileWritten() {
+        filesWritten++;
+    }
+
+    /**
+     * @param result What the store wrote.
+     */
+    void succeed(String result) {
+        this.result = result;
+        finish();
+    }
+
+    /**
+     * @param error Why the store failed.
+     */
+    void fail(Exception error) {
+        this.error = error;
+        finish();
+    }
+
+    private void finish() {
+        finishedNanos = System.nanoTime();
+        done.countDown();
+    }
+}
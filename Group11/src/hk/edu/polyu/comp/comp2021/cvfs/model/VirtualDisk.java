@@ -1,13 +1,29 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.CompressingContentStore;
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.ContentStore;
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.ContentStoreType;
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.DedupContentStore;
 import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.FileCriterion;
 import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.IsDocumentCriterion;
 import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.SimpleCriterion;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * Represents a virtual disk.
@@ -24,8 +40,64 @@ public class VirtualDisk implements Serializable {
     // the root directory.
     private final Directory rootDir;
 
-    // a stack of directories the user has navigated to.
-    private Stack<Directory> directoryStack;
+    // the working directory of the session that created or loaded this disk.
+    private final WorkingDirectory workingDirectory;
+
+    // the kind of store the document content is kept in.
+    private ContentStoreType contentStoreType;
+
+    // the store holding the content of the documents on this disk, each distinct content once.
+    // Null while the disk is closed.
+    private transient DedupContentStore contentStore;
+
+    // the layer of the content store compressing large content, and the length from which it does.
+    private transient CompressingContentStore compressingStore;
+    private transient int compressionThreshold;
+
+    // the log of changes since the disk was last stored, if write-ahead logging is on for this disk.
+    private transient WriteAheadLog writeAheadLog;
+
+    // the checkpoint id of the disk image this disk was last stored to or loaded from.
+    private transient long checkpointId;
+
+    // the changes made since the disk was last stored, if stores write deltas (see DeltaImage), the image
+    // the deltas are chained to, and the number of deltas stored since its deltas were last compacted.
+    private transient WriteAheadLog changeLog;
+    private transient Path deltaImagePath;
+    private transient int deltaCount;
+
+    // the disk image the directories of this disk are read from as they are reached, if it was read lazily.
+    private transient LazyImage lazyImage;
+
+    // the number of bytes in use on this disk. Counted separately from the size of the root
+    // directory so that space can be reserved atomically before a file is added.
+    private transient AtomicLong usedBytes;
+
+    // held for reading by every change to the tree, and for writing by changes that move
+    // whole subtrees (deleting or renaming a directory), so paths are stable while a change is made.
+    private transient ReadWriteLock namespaceLock;
+
+    // the number of sessions working on this disk.
+    private transient int sessions;
+
+    // secondary indexes for criterion searches, or null if they are not kept.
+    private transient volatile FileIndex fileIndex;
+
+    // the number of changes made to the tree, and the inode table last built of it, if any.
+    private transient AtomicLong changes;
+    private transient volatile InodeTable inodeTable;
+
+    // the number of documents and directories on this disk, not counting the root directory.
+    private transient LongAdder documentCount;
+    private transient LongAdder directoryCount;
+
+    // the number of snapshots taken of this disk. Changes made after a snapshot belong to the next
+    // epoch. Only changed while the namespace write lock is held, so every change sees it up to date.
+    private transient long epoch;
+
+    // the ids of the snapshots that are still open, and the snapshots kept by name.
+    private transient NavigableSet<Long> openSnapshots;
+    private transient Map<String, Snapshot> snapshots;
 
     /**
      * Constructor.
@@ -33,89 +105,852 @@ public class VirtualDisk implements Serializable {
      * @param maxSize maximum size of the virtual disk.
      */
     public VirtualDisk(long maxSize) {
+        this(maxSize, ContentStoreType.HEAP);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize maximum size of the virtual disk.
+     * @param contentStoreType the kind of store to keep document content in.
+     */
+    public VirtualDisk(long maxSize, ContentStoreType contentStoreType) {
+        this(maxSize, contentStoreType, new Directory("root"));
+    }
+
+    /**
+     * Constructor for a disk whose files already exist, such as one read from a disk image.
+     *
+     * @param maxSize maximum size of the virtual disk.
+     * @param contentStoreType the kind of store to keep new document content in.
+     * @param rootDir the root directory.
+     */
+    VirtualDisk(long maxSize, ContentStoreType contentStoreType, Directory rootDir) {
         this.maxSize = maxSize;
-        rootDir = new Directory("root");
-        directoryStack = new Stack<>();
+        this.contentStoreType = contentStoreType;
+        this.compressionThreshold = CompressingContentStore.NEVER;
+        this.contentStore = newContentStore();
+        this.rootDir = rootDir;
+        this.workingDirectory = new WorkingDirectory(rootDir);
+        this.usedBytes = new AtomicLong(rootDir.getSize());
+        this.changes = new AtomicLong();
+        this.namespaceLock = new ReentrantReadWriteLock();
+        this.openSnapshots = new ConcurrentSkipListSet<>();
+        this.snapshots = new ConcurrentHashMap<>();
+        countFiles();
         // create the the criteria map.
-        criteriaMap = new HashMap<>();
+        criteriaMap = new ConcurrentHashMap<>();
         // add the IsDocument criterion
         SimpleCriterion isDocumentCri = new IsDocumentCriterion();
         criteriaMap.put(isDocumentCri.getName(), isDocumentCri);
     }
 
+    /**
+     * @return The working directory of the session that created or loaded this disk.
+     */
+    public WorkingDirectory getWorkingDirectory() {
+        return workingDirectory;
+    }
+
     /**
      * @return The current working directory.
      */
     public Directory getCurrentWorkingDirectory() {
-        if (directoryStack.isEmpty()) {
-            return rootDir;
-        }
-        return directoryStack.peek();
+        return workingDirectory.getCurrentDirectory();
+    }
+
+    /**
+     * @return The directories from just below the root down to the working directory.
+     */
+    List<Directory> getWorkingDirectoryPath() {
+        return workingDirectory.getDirectories();
     }
 
     /**
      * Change the working directory to the parent
      */
     public void changeWorkingDirectoryToParent() {
-        // the current directory stack is empty
-        if (directoryStack.isEmpty()) {
-            return;
+        workingDirectory.changeToParent();
+    }
+
+    /**
+     * @return The path to the current working directory.
+     */
+    public String getWorkkingDirPath() {
+        return workingDirectory.getPath();
+    }
+
+
+    /**
+     * Change directory.
+     *
+     * @param directory The directory to switch to.
+     */
+    public void changeWorkingDirectory(Directory directory) {
+        workingDirectory.changeTo(directory);
+    }
+
+    /**
+     * @return The max size of this disk.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The number of bytes in use on this disk. This is a running total, so it does not walk the tree.
+     */
+    public long getUsedSize() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return The root directory of this disk.
+     */
+    public Directory getRootDirectory() {
+        return rootDir;
+    }
+
+    /**
+     * @return The kind of store new document content is kept in.
+     */
+    public ContentStoreType getContentStoreType() {
+        return contentStoreType;
+    }
+
+    /**
+     * @return The store holding the content of the documents on this disk.
+     */
+    public ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    /**
+     * @return The bytes of document content on this disk, as if each document held its own copy.
+     */
+    public long getLogicalContentBytes() {
+        DedupContentStore store = contentStore;
+        return store == null ? 0 : store.getLogicalBytes();
+    }
+
+    /**
+     * @return The bytes the content store holds: each distinct content once, however many documents
+     * share it, and compressed if it is large.
+     */
+    public long getPhysicalContentBytes() {
+        DedupContentStore store = contentStore;
+        return store == null ? 0 : store.getUsedBytes();
+    }
+
+    /**
+     * Compress document content at least as long as the threshold when it is put in the content
+     * store from now on, including when this disk is reopened. Content already stored stays as it is.
+     * Documents keep their logical size, so the quota is not affected.
+     *
+     * @param threshold The length in bytes from which content is compressed.
+     * @throws IllegalArgumentException if the threshold is not positive.
+     */
+    void enableCompression(int threshold) throws IllegalArgumentException {
+        CompressingContentStore store = compressingStore;
+        if (store != null) {
+            store.setThreshold(threshold);
+        }
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * @return The bytes of the distinct contents in the content store divided by the bytes they take
+     * once large ones are compressed, or 1 if the store is empty or closed.
+     */
+    public double getCompressionRatio() {
+        DedupContentStore store = contentStore;
+        CompressingContentStore compressing = compressingStore;
+        if (store == null || compressing == null) {
+            return 1;
+        }
+        long content = store.getDistinctBytes();
+        long stored = content - compressing.getInflatedBytes() + compressing.getDeflatedBytes();
+        return stored <= 0 ? 1 : (double) content / stored;
+    }
+
+    /**
+     * Add a new file to a directory on this disk. Checking that the name is free and that the
+     * file fits on the disk happens atomically with adding it, so concurrent sessions cannot
+     * both claim the same name or the same free space.
+     *
+     * @param dir The directory to add the file to.
+     * @param file The file to be added.
+     * @throws IllegalArgumentException if a file with the same name is already in the directory.
+     * @throws IllegalStateException if the file does not fit on the disk, or the directory is no longer on it.
+     */
+    void addNewFile(Directory dir, File file) throws IllegalArgumentException, IllegalStateException {
+        addChecked(dir, file, "A file with the same name exists. Check and try again.");
+    }
+
+    /**
+     * Put a file that was on this disk before back into a directory, as undoing a delete or redoing
+     * a creation does, moving its content into this disk's content store. Other sessions may have
+     * taken its name or the free space since, so both are checked as for a new file.
+     *
+     * @param dir The directory to put the file back into.
+     * @param file The file to be put back.
+     * @throws IllegalArgumentException if a file with the same name has been added to the directory since.
+     * @throws IllegalStateException if the file no longer fits on the disk, or the directory is no longer on it.
+     */
+    void addFile(Directory dir, File file) throws IllegalArgumentException, IllegalStateException {
+        addChecked(dir, file, "Cannot put back " + file.getName() + ": a file with the same name has been added since.");
+    }
+
+    private void addChecked(Directory dir, File file, String nameTaken) {
+        Lock namespace = namespaceLock.readLock();
+        Lock lock = DirectoryLocks.forDirectory(dir).writeLock();
+        namespace.lock();
+        lock.lock();
+        try {
+            ensureOnDisk(dir);
+            if (dir.getFile(file.getPackedName()) != null) {
+                throw new IllegalArgumentException(nameTaken);
+            }
+            reserve(file.getSize());
+            addFileLocked(dir, file);
+        } finally {
+            lock.unlock();
+            namespace.unlock();
+        }
+    }
+
+    /**
+     * Add a file to a directory on this disk as a log being replayed records it, moving its content
+     * into this disk's content store. Nothing is checked, as it was when the change was first made.
+     *
+     * @param dir The directory to add the file to.
+     * @param file The file to be added.
+     */
+    void addLoggedFile(Directory dir, File file) {
+        Lock namespace = namespaceLock.readLock();
+        Lock lock = DirectoryLocks.forDirectory(dir).writeLock();
+        namespace.lock();
+        lock.lock();
+        try {
+            usedBytes.addAndGet(file.getSize());
+            addFileLocked(dir, file);
+        } finally {
+            lock.unlock();
+            namespace.unlock();
+        }
+    }
+
+    private void addFileLocked(Directory dir, File file) {
+        dir.preserve(epoch, openSnapshots);
+        dir.addFile(file);
+        changes.incrementAndGet();
+        attachContent(file);
+        count(file, 1);
+        if (fileIndex != null) {
+            fileIndex.add(file);
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.logAddFile(dir, file);
+        }
+        if (changeLog != null) {
+            changeLog.logAddFile(dir, file);
+        }
+    }
+
+    /**
+     * Remove a file from a directory on this disk, releasing the space its content took.
+     *
+     * @param dir The directory to remove the file from.
+     * @param file The file to be removed.
+     * @return Whether the file was removed. False if it was not in the directory.
+     */
+    boolean removeFile(Directory dir, File file) {
+        // removing a directory changes the paths below it, so it excludes every other change.
+        Lock namespace = file instanceof Directory ? namespaceLock.writeLock() : namespaceLock.readLock();
+        Lock lock = DirectoryLocks.forDirectory(dir).writeLock();
+        namespace.lock();
+        lock.lock();
+        try {
+            if (dir.getFile(file.getPackedName()) != file) {
+                return false;
+            }
+            dir.preserve(epoch, openSnapshots);
+            dir.removeFile(file);
+            changes.incrementAndGet();
+            usedBytes.addAndGet(-file.getSize());
+            detachContent(file);
+            count(file, -1);
+            if (fileIndex != null) {
+                fileIndex.remove(file);
+            }
+            if (writeAheadLog != null) {
+                writeAheadLog.logRemoveFile(dir, file.getName());
+            }
+            if (changeLog != null) {
+                changeLog.logRemoveFile(dir, file.getName());
+            }
+            return true;
+        } finally {
+            lock.unlock();
+            namespace.unlock();
+        }
+    }
+
+    /**
+     * Rename a file in a directory on this disk.
+     *
+     * @param dir The directory holding the file.
+     * @param file The file to be renamed.
+     * @param newName The new name of the file.
+     * @throws IllegalArgumentException if the file is not in the directory, the new name is
+     * taken or the new name fails validation.
+     */
+    void renameFile(Directory dir, File file, String newName) throws IllegalArgumentException {
+        // renaming a directory changes the paths below it, so it excludes every other change.
+        Lock namespace = file instanceof Directory ? namespaceLock.writeLock() : namespaceLock.readLock();
+        Lock lock = DirectoryLocks.forDirectory(dir).writeLock();
+        namespace.lock();
+        lock.lock();
+        try {
+            String oldName = file.getName();
+            if (dir.getFile(file.getPackedName()) != file) {
+                throw new IllegalArgumentException("No file found with name: " + oldName);
+            }
+            if (dir.getFile(newName) != null) {
+                throw new IllegalArgumentException("A file already exists with the name: " + newName
+                        + ". Check and try again");
+            }
+            dir.preserve(epoch, openSnapshots);
+            dir.renameFile(file, newName);
+            changes.incrementAndGet();
+            if (fileIndex != null) {
+                fileIndex.renamed(file, oldName);
+            }
+            if (writeAheadLog != null) {
+                writeAheadLog.logRenameFile(dir, oldName, newName);
+            }
+            if (changeLog != null) {
+                changeLog.logRenameFile(dir, oldName, newName);
+            }
+        } finally {
+            lock.unlock();
+            namespace.unlock();
+        }
+    }
+
+    /**
+     * Take a snapshot of this disk. It waits for the changes being made to finish, but takes
+     * constant time otherwise, as the files are only copied as they change.
+     *
+     * @return The snapshot. It must be closed once it is no longer read.
+     */
+    public Snapshot snapshot() {
+        Lock namespace = namespaceLock.writeLock();
+        namespace.lock();
+        try {
+            long id = epoch++;
+            openSnapshots.add(id);
+            return new Snapshot(this, id);
+        } finally {
+            namespace.unlock();
+        }
+    }
+
+    /**
+     * Take what a store of this disk writes at a point where no change is being made, such as a
+     * snapshot, and mark that point in the write-ahead log, so the changes made after it stay in the
+     * log once the store is done.
+     *
+     * @param take Takes what the store writes.
+     * @param <T> What the store writes.
+     * @return What was taken.
+     */
+    <T> T atStorePoint(Supplier<T> take) {
+        Lock namespace = namespaceLock.writeLock();
+        namespace.lock();
+        try {
+            synchronized (criteriaMap) {
+                if (writeAheadLog != null) {
+                    writeAheadLog.mark();
+                }
+                return take.get();
+            }
+        } finally {
+            namespace.unlock();
+        }
+    }
+
+    /**
+     * @param id The id of a snapshot no longer read.
+     */
+    void closeSnapshot(long id) {
+        openSnapshots.remove(id);
+    }
+
+    /**
+     * Take a snapshot of this disk, and keep it under a name until it is removed.
+     *
+     * @param name The name of the snapshot.
+     * @throws IllegalArgumentException if a snapshot with the name is kept already.
+     */
+    void addSnapshot(String name) throws IllegalArgumentException {
+        synchronized (snapshots) {
+            if (snapshots.containsKey(name)) {
+                throw new IllegalArgumentException("A snapshot with the same name exists: " + name);
+            }
+            snapshots.put(name, snapshot());
+        }
+    }
+
+    /**
+     * @param name The name of a snapshot.
+     * @return The snapshot kept under the name, or null if there is none.
+     */
+    public Snapshot getSnapshot(String name) {
+        return snapshots.get(name);
+    }
+
+    /**
+     * Stop keeping a snapshot, and close it.
+     *
+     * @param name The name of the snapshot.
+     * @throws IllegalArgumentException if no snapshot with the name is kept.
+     */
+    void removeSnapshot(String name) throws IllegalArgumentException {
+        Snapshot snapshot = snapshots.remove(name);
+        if (snapshot == null) {
+            throw new IllegalArgumentException("No snapshot found with name: " + name);
+        }
+        snapshot.close();
+    }
+
+    /**
+     * @return The number of documents on this disk.
+     */
+    public long getDocumentCount() {
+        return documentCount.sum();
+    }
+
+    /**
+     * @return The number of directories on this disk, not counting the root directory.
+     */
+    public long getDirectoryCount() {
+        return directoryCount.sum();
+    }
+
+    private void countFiles() {
+        documentCount = new LongAdder();
+        directoryCount = new LongAdder();
+        for (File file : rootDir.getFiles()) {
+            count(file, 1);
+        }
+    }
+
+    /**
+     * Add a file, and everything below it, to the document and directory counts.
+     * @param file The file.
+     * @param sign 1 if the file was added, -1 if it was removed.
+     */
+    private void count(File file, int sign) {
+        if (file instanceof Document) {
+            documentCount.add(sign);
+        } else if (file instanceof Directory) {
+            directoryCount.add(sign);
+            // a directory not read from its image yet has the files below it counted there.
+            LazyImage.Entry entry = ((Directory) file).getLazyEntry();
+            if (entry != null && !entry.loaded) {
+                documentCount.add((long) sign * entry.documents);
+                directoryCount.add((long) sign * entry.directories);
+                return;
+            }
+            for (File child : ((Directory) file).getFiles()) {
+                count(child, sign);
+            }
+        }
+    }
+
+    /**
+     * Take space for a new file, if there is enough left.
+     *
+     * @param bytes The size of the file.
+     * @throws IllegalStateException if there is not enough space left on the disk.
+     */
+    private void reserve(long bytes) throws IllegalStateException {
+        long used;
+        do {
+            used = usedBytes.get();
+            if (used + bytes > maxSize) {
+                throw new IllegalStateException("Not enough space found on disk.");
+            }
+        } while (!usedBytes.compareAndSet(used, used + bytes));
+    }
+
+    /**
+     * @param dir A directory.
+     * @throws IllegalStateException if the directory has been removed from this disk.
+     */
+    private void ensureOnDisk(Directory dir) throws IllegalStateException {
+        Directory top = dir;
+        while (top.getParent() != null) {
+            top = top.getParent();
+        }
+        if (top != rootDir) {
+            throw new IllegalStateException("The directory " + dir.getName() + " has been deleted");
+        }
+    }
+
+    /**
+     * Start keeping secondary indexes for criterion searches, if they are not kept already.
+     */
+    void buildIndex() {
+        // no change to the tree may happen while the indexes are built.
+        Lock namespace = namespaceLock.writeLock();
+        namespace.lock();
+        try {
+            if (fileIndex == null) {
+                fileIndex = FileIndex.build(rootDir);
+            }
+        } finally {
+            namespace.unlock();
+        }
+    }
+
+    /**
+     * Building the table walks and copies the whole tree, whatever changed since the last one, and
+     * the last table is kept until the new one replaces it.
+     *
+     * @return The files of this disk laid out as inodes, built again if the tree changed since the
+     * table was last built, or null if the tree changed while it was being built. The table does not
+     * follow later changes.
+     */
+    InodeTable getInodeTable() {
+        long version = changes.get();
+        InodeTable table = inodeTable;
+        if (table != null && table.getVersion() == version) {
+            return table;
+        }
+
+        // built without the namespace lock, so sessions go on changing the tree meanwhile. Every change
+        // is counted while the directory it changes is locked, so if none was counted by the end, the
+        // table saw none of them either.
+        long expectedCount = 1 + documentCount.sum() + directoryCount.sum();
+        table = InodeTable.build(rootDir, version, (int) Math.min(expectedCount, Integer.MAX_VALUE - 8));
+        if (changes.get() != version) {
+            return null;
+        }
+        inodeTable = table;
+        return table;
+    }
+
+    /**
+     * @return The secondary indexes for criterion searches, or null if they are not kept.
+     */
+    public FileIndex getIndex() {
+        return fileIndex;
+    }
+
+    /**
+     * Register a session working on this disk, opening the disk if it was closed.
+     */
+    synchronized void acquire() {
+        if (sessions++ == 0) {
+            reopen();
         }
+    }
 
-        // remove the current directory from the top of the stack
-        directoryStack.pop();
+    /**
+     * Unregister a session working on this disk, closing the disk once no session is left.
+     */
+    synchronized void release() {
+        if (--sessions == 0) {
+            close();
+        }
+    }
 
-        // if the stack is empty after the pop, then the parent is the root directory of the disk.
-        if (directoryStack.isEmpty()) {
-            changeWorkingDirectory(rootDir);
+    /**
+     * Let go of a disk that a session's history no longer refers to. If no session is working on
+     * it either, the disk can never be switched back to, so its write-ahead log is closed now
+     * instead of staying open until the disk is collected.
+     */
+    synchronized void discard() {
+        if (sessions > 0 || writeAheadLog == null) {
             return;
         }
+        try {
+            setWriteAheadLog(null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        // switch to the directory on top of the stack
-        changeWorkingDirectory(directoryStack.peek());
+    /**
+     * Add a criterion, replacing any criterion with the same name.
+     *
+     * @param criterion The criterion to be added.
+     */
+    void putCriterion(FileCriterion criterion) {
+        // keep the log in the same order as the changes to the map.
+        synchronized (criteriaMap) {
+            criteriaMap.put(criterion.getName(), criterion);
+            if (writeAheadLog != null) {
+                writeAheadLog.logPutCriterion(criterion);
+            }
+            if (changeLog != null) {
+                changeLog.logPutCriterion(criterion);
+            }
+        }
     }
 
     /**
-     * @return The path to the current working directory.
+     * Remove a criterion.
+     *
+     * @param name The name of the criterion to be removed.
      */
-    public String getWorkkingDirPath() {
-        // the stack is empty, so just return the name of the root directory.
-        if (directoryStack.isEmpty()) {
-            return rootDir.getName();
+    void removeCriterion(String name) {
+        synchronized (criteriaMap) {
+            criteriaMap.remove(name);
+            if (writeAheadLog != null) {
+                writeAheadLog.logRemoveCriterion(name);
+            }
+            if (changeLog != null) {
+                changeLog.logRemoveCriterion(name);
+            }
         }
+    }
+
+    /**
+     * @return The log of changes since the disk was last stored, or null if there is none.
+     */
+    WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
 
-        // the stack has some directories the user has navigated to. Concatenate
-        // the directory names to get the path.
-        StringBuilder builder = new StringBuilder();
-        for (Directory directory : directoryStack) {
-            builder.append(directory.getName()).append(":");
+    /**
+     * Replace the log changes to this disk are appended to, closing the previous one.
+     *
+     * @param writeAheadLog The new log, or null to stop logging.
+     * @throws IOException if the previous log could not be closed.
+     */
+    void setWriteAheadLog(WriteAheadLog writeAheadLog) throws IOException {
+        if (this.writeAheadLog != null && this.writeAheadLog != writeAheadLog) {
+            this.writeAheadLog.close();
         }
+        this.writeAheadLog = writeAheadLog;
+    }
 
-        // remove the trailing ":" and concatenate with the 'root'
-        return "root:" + builder.substring(0, builder.length() - 1);
+    /**
+     * @return The checkpoint id of the disk image this disk was last stored to or loaded from.
+     */
+    long getCheckpointId() {
+        return checkpointId;
     }
 
+    /**
+     * @param checkpointId The checkpoint id of the disk image this disk was stored to or loaded from.
+     */
+    void setCheckpointId(long checkpointId) {
+        this.checkpointId = checkpointId;
+    }
 
     /**
-     * Change directory.
+     * Collect the changes made to this disk from now on, to store them as deltas chained to an image.
      *
-     * @param directory The directory to switch to.
+     * @param imagePath The image this disk has just been stored to or loaded from.
+     * @param deltaCount The number of deltas chained to the image since they were last compacted.
      */
-    public void changeWorkingDirectory(Directory directory) {
-        // the directory is the same as the current working directory. Do nothing.
-        if (directory == getCurrentWorkingDirectory()) {
+    void startDeltas(Path imagePath, int deltaCount) {
+        this.changeLog = WriteAheadLog.inMemory();
+        this.deltaImagePath = imagePath;
+        this.deltaCount = deltaCount;
+    }
+
+    /**
+     * Stop collecting changes, so the next store writes the whole disk.
+     */
+    void stopDeltas() {
+        Lock namespace = namespaceLock.writeLock();
+        namespace.lock();
+        try {
+            this.changeLog = null;
+            this.deltaImagePath = null;
+            this.deltaCount = 0;
+        } finally {
+            namespace.unlock();
+        }
+    }
+
+    /**
+     * @param imagePath The path of a disk image.
+     * @return Whether the changes to this disk can be stored to the image as a delta.
+     */
+    boolean canStoreDelta(Path imagePath) {
+        return changeLog != null && imagePath.equals(deltaImagePath);
+    }
+
+    /**
+     * @return The changes made since this disk was last stored, if stores write deltas, or null.
+     */
+    WriteAheadLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * @return The image the deltas of this disk are chained to, or null if stores do not write deltas.
+     */
+    Path getDeltaImagePath() {
+        return deltaImagePath;
+    }
+
+    /**
+     * @return The number of deltas chained to the image since they were last compacted.
+     */
+    int getDeltaCount() {
+        return deltaCount;
+    }
+
+    /**
+     * @param deltaCount The number of deltas chained to the image since they were last compacted.
+     */
+    void setDeltaCount(int deltaCount) {
+        this.deltaCount = deltaCount;
+    }
+
+    /**
+     * Move the content of the given file, and of everything below it, into this disk's content store.
+     *
+     * @param file The file that has been added to this disk.
+     */
+    void attachContent(File file) {
+        if (file instanceof Document) {
+            ((Document) file).attach(contentStore);
+        } else if (file instanceof Directory && !isUnloaded((Directory) file)) {
+            for (File child : ((Directory) file).getFiles()) {
+                attachContent(child);
+            }
+        }
+    }
+
+    /**
+     * Take the content of the given file, and of everything below it, out of this disk's
+     * content store so its space can be reused. The content is kept with the documents.
+     * Content read from a disk image stays where it is, as do directories not read from it yet.
+     *
+     * @param file The file that has been removed from this disk.
+     */
+    void detachContent(File file) {
+        if (file instanceof Document) {
+            ((Document) file).detach(contentStore);
+        } else if (file instanceof Directory && !isUnloaded((Directory) file)) {
+            for (File child : ((Directory) file).getFiles()) {
+                detachContent(child);
+            }
+        }
+    }
+
+    // the documents below a directory not read from its disk image yet all keep their content there.
+    private static boolean isUnloaded(Directory dir) {
+        LazyImage.Entry entry = dir.getLazyEntry();
+        return entry != null && !entry.loaded;
+    }
+
+    /**
+     * @return The disk image the directories of this disk are read from as they are reached, or null
+     * if the whole tree is in memory.
+     */
+    LazyImage getLazyImage() {
+        return lazyImage;
+    }
+
+    /**
+     * @param lazyImage The disk image the directories of this disk are read from as they are reached.
+     */
+    void setLazyImage(LazyImage lazyImage) {
+        this.lazyImage = lazyImage;
+    }
+
+    /**
+     * @return The number of directories read lazily from a disk image that are loaded and may be
+     * unloaded again, 0 if the disk was not read lazily.
+     */
+    public int getLoadedDirectoryCount() {
+        LazyImage image = lazyImage;
+        return image == null ? 0 : image.getLoadedCount();
+    }
+
+    /**
+     * If this disk was read lazily and more of its directories are loaded than it keeps, unload those
+     * loaded earliest that are as they are in the image. This is only done while no other session,
+     * snapshot or index can hold on to their files, and no change is made meanwhile.
+     */
+    void trimLoadedDirectories() {
+        LazyImage image = lazyImage;
+        if (image == null || !image.isOverLimit()) {
             return;
         }
+        Lock namespace = namespaceLock.writeLock();
+        namespace.lock();
+        try {
+            if (getSessionCount() > 1 || !openSnapshots.isEmpty() || !snapshots.isEmpty() || fileIndex != null) {
+                return;
+            }
+            // an inode table built before holds files that are let go of.
+            if (image.trim() > 0) {
+                changes.incrementAndGet();
+            }
+        } finally {
+            namespace.unlock();
+        }
+    }
 
-        // push the new directory to the top of the stack.
-        this.directoryStack.push(directory);
+    private synchronized int getSessionCount() {
+        return sessions;
     }
 
     /**
-     * @return The max size of this disk.
+     * Release the content store of this disk once it is no longer the working disk.
+     * The disk can be brought back with {@link #reopen()}.
      */
-    public long getMaxSize() {
-        return maxSize;
+    void close() {
+        if (contentStore == null) {
+            return;
+        }
+        detachContent(rootDir);
+        contentStore.close();
+        contentStore = null;
+        compressingStore = null;
+    }
+
+    /**
+     * Give a closed disk a new content store, and move the content of its documents back in.
+     */
+    void reopen() {
+        if (contentStore != null) {
+            return;
+        }
+        contentStore = newContentStore();
+        attachContent(rootDir);
+    }
+
+    // each distinct content is kept once, compressed if it is large, in a store of the configured type.
+    private DedupContentStore newContentStore() {
+        compressingStore = new CompressingContentStore(contentStoreType.newStore(), CompressingContentStore.DEFAULT_CACHE_BYTES);
+        compressingStore.setThreshold(compressionThreshold);
+        return new DedupContentStore(compressingStore);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        usedBytes = new AtomicLong(rootDir.getSize());
+        changes = new AtomicLong();
+        namespaceLock = new ReentrantReadWriteLock();
+        openSnapshots = new ConcurrentSkipListSet<>();
+        snapshots = new ConcurrentHashMap<>();
+        countFiles();
+        if (contentStoreType == null) {
+            contentStoreType = ContentStoreType.HEAP;
+        }
+        compressionThreshold = CompressingContentStore.NEVER;
+        reopen();
     }
 
     /**
@@ -127,10 +962,8 @@ public class VirtualDisk implements Serializable {
 
     /**
      * Navigate to the prevous directory.
-     *
-     * @param directory The previous directory.
      */
     public void changeWorkingDirectoryToPrevious() {
-        directoryStack.pop();
+        workingDirectory.changeToPrevious();
     }
 }
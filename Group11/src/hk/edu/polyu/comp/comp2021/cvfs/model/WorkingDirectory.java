@@ -0,0 +1,122 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * The working directory of a session on a virtual disk, together with
+ * the directories the session navigated through to reach it.
+ */
+public class WorkingDirectory implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    // the root directory of the disk.
+    private final Directory rootDir;
+
+    // a stack of directories the user has navigated to.
+    private final Stack<Directory> directoryStack;
+
+    /**
+     * Constructor. The working directory starts at the root.
+     *
+     * @param rootDir The root directory of the disk.
+     */
+    public WorkingDirectory(Directory rootDir) {
+        this.rootDir = rootDir;
+        this.directoryStack = new Stack<>();
+    }
+
+    /**
+     * @return The current working directory.
+     */
+    public Directory getCurrentDirectory() {
+        if (directoryStack.isEmpty()) {
+            return rootDir;
+        }
+        return directoryStack.peek();
+    }
+
+    /**
+     * @return The directories from just below the root down to the working directory.
+     */
+    List<Directory> getDirectories() {
+        return new ArrayList<>(directoryStack);
+    }
+
+    /**
+     * Go back to directories taken from {@link #getDirectories()} earlier.
+     * @param directories The directories from just below the root down to the working directory.
+     */
+    void restore(List<Directory> directories) {
+        directoryStack.clear();
+        directoryStack.addAll(directories);
+    }
+
+    /**
+     * Change the working directory to the parent
+     */
+    public void changeToParent() {
+        // the current directory stack is empty
+        if (directoryStack.isEmpty()) {
+            return;
+        }
+
+        // remove the current directory from the top of the stack
+        directoryStack.pop();
+
+        // if the stack is empty after the pop, then the parent is the root directory of the disk.
+        if (directoryStack.isEmpty()) {
+            changeTo(rootDir);
+            return;
+        }
+
+        // switch to the directory on top of the stack
+        changeTo(directoryStack.peek());
+    }
+
+    /**
+     * @return The path to the current working directory.
+     */
+    public String getPath() {
+        // the stack is empty, so just return the name of the root directory.
+        if (directoryStack.isEmpty()) {
+            return rootDir.getName();
+        }
+
+        // the stack has some directories the user has navigated to. Concatenate
+        // the directory names to get the path.
+        StringBuilder builder = new StringBuilder();
+        for (Directory directory : directoryStack) {
+            builder.append(directory.getName()).append(":");
+        }
+
+        // remove the trailing ":" and concatenate with the 'root'
+        return "root:" + builder.substring(0, builder.length() - 1);
+    }
+
+    /**
+     * Change directory.
+     *
+     * @param directory The directory to switch to.
+     */
+    public void changeTo(Directory directory) {
+        // the directory is the same as the current working directory. Do nothing.
+        if (directory == getCurrentDirectory()) {
+            return;
+        }
+
+        // push the new directory to the top of the stack. It is held on to from now on, so if it
+        // was read lazily from a disk image, it must stay loaded.
+        directory.keepLoaded();
+        this.directoryStack.push(directory);
+    }
+
+    /**
+     * Navigate to the prevous directory.
+     */
+    public void changeToPrevious() {
+        directoryStack.pop();
+    }
+}
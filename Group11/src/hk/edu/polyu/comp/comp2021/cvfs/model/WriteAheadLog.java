@@ -0,0 +1,518 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.FileCriterion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to a virtual disk since it was last stored to its disk image.
+ *
+ * Every change to the tree or the criteria is appended as a record before the command returns, so a crash
+ * only loses what the operating system had not yet written out. Records are forced to the storage device in
+ * groups of {@code syncInterval}, trading the last few records on a power failure for far fewer syncs.
+ *
+ * The log starts with the checkpoint id of the image it applies to. Loading the image replays the log on top
+ * of it if the ids match; storing the image starts the log over, keeping only the records of the changes made
+ * after the snapshot the image was written from, as a store can run while the disk goes on changing. A log
+ * whose id does not match its image was already folded into the image, and is ignored.
+ *
+ * Each record is its length, a CRC32 of its payload, and the payload. Replay stops at the first record that is
+ * incomplete or fails its checksum, which is where a crash interrupted the last append.
+ *
+ * A log can also be kept in memory, to collect the changes made since the last store and store them as a
+ * delta (see {@link DeltaImage}).
+ */
+final class WriteAheadLog implements AutoCloseable {
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+    // record types.
+    private static final byte ADD_FILE = 1;
+    private static final byte REMOVE_FILE = 2;
+    private static final byte RENAME_FILE = 3;
+    private static final byte PUT_CRITERION = 4;
+    private static final byte REMOVE_CRITERION = 5;
+
+    private static final byte KIND_DIRECTORY = 0;
+    private static final byte KIND_DOCUMENT = 1;
+
+    // the file the records are appended to, or null if they are kept in memory.
+    private FileChannel channel;
+    private final ByteArrayOutputStream memory;
+    private final int syncInterval;
+    private int unsyncedRecords;
+
+    // where the records start that the image being stored does not hold, as they were appended after its snapshot.
+    private long mark = HEADER_SIZE;
+
+    private WriteAheadLog(FileChannel channel, int syncInterval) {
+        this.channel = channel;
+        this.memory = channel == null ? new ByteArrayOutputStream() : null;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * @return A new, empty log keeping its records in memory.
+     */
+    static WriteAheadLog inMemory() {
+        return new WriteAheadLog(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param imagePath The path of a disk image.
+     * @return The path of the log that goes with the image.
+     */
+    static Path pathFor(Path imagePath) {
+        return imagePath.resolveSibling(imagePath.getFileName() + ".wal");
+    }
+
+    /**
+     * Start a new, empty log for an image that has just been stored.
+     *
+     * @param path The path of the log.
+     * @param checkpointId The checkpoint id of the image.
+     * @param syncInterval The number of records to append between syncs.
+     * @return The log, ready to be appended to.
+     * @throws IOException if the log could not be created.
+     */
+    static WriteAheadLog create(Path path, long checkpointId, int syncInterval) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(checkpointId);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+        return new WriteAheadLog(channel, syncInterval);
+    }
+
+    /**
+     * Replay the log of an image that has just been loaded, and keep it open for appending.
+     * If there is no log for the image, a new one is started.
+     *
+     * @param path The path of the log.
+     * @param disk The disk loaded from the image.
+     * @param checkpointId The checkpoint id of the image.
+     * @param syncInterval The number of records to append between syncs.
+     * @return The log, ready to be appended to.
+     * @throws IOException if the log could not be read, or does not apply to the disk.
+     */
+    static WriteAheadLog replay(Path path, VirtualDisk disk, long checkpointId, int syncInterval) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return create(path, checkpointId, syncInterval);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.hasRemaining() || header.getLong(0) != checkpointId) {
+                // a log for an older checkpoint, already contained in the image.
+                channel.close();
+                return create(path, checkpointId, syncInterval);
+            }
+
+            long position = HEADER_SIZE;
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (true) {
+                recordHeader.clear();
+                readFully(channel, recordHeader, position);
+                if (recordHeader.hasRemaining()) {
+                    break;
+                }
+                int length = recordHeader.getInt(0);
+                int checksum = recordHeader.getInt(Integer.BYTES);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > channel.size()) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, position + RECORD_HEADER_SIZE);
+                if (checksumOf(payload.array()) != checksum) {
+                    break;
+                }
+                apply(disk, payload.array());
+                position = position + RECORD_HEADER_SIZE + length;
+            }
+
+            // drop the torn record a crash may have left behind, and append after the last good one.
+            channel.truncate(position);
+            channel.position(position);
+            return new WriteAheadLog(channel, syncInterval);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Apply the records kept by a log in memory to a disk.
+     *
+     * @param records The records, as taken from {@link #getRecords()}.
+     * @param disk The disk to apply them to.
+     * @throws IOException if a record is corrupt, or does not apply to the disk.
+     */
+    static void applyRecords(byte[] records, VirtualDisk disk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < RECORD_HEADER_SIZE) {
+                throw new IOException("Truncated record: " + buffer.remaining() + " bytes");
+            }
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                throw new IOException("Truncated record: " + buffer.remaining() + " of " + length + " bytes");
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (checksumOf(payload) != checksum) {
+                throw new IOException("Corrupt record: checksum mismatch");
+            }
+            apply(disk, payload);
+        }
+    }
+
+    /**
+     * @return The records kept in memory so far.
+     */
+    synchronized byte[] getRecords() {
+        return memory.toByteArray();
+    }
+
+    /**
+     * Drop records kept in memory once they are stored.
+     *
+     * @param length The bytes of the records to drop, as long as the array taken from {@link #getRecords()}.
+     * Records appended since are kept.
+     */
+    synchronized void dropRecords(int length) {
+        byte[] records = memory.toByteArray();
+        memory.reset();
+        memory.write(records, length, records.length - length);
+    }
+
+    /**
+     * Log a file being added to a directory. Directories are logged with everything in them.
+     *
+     * @param dir The directory the file is added to.
+     * @param file The file.
+     */
+    void logAddFile(Directory dir, File file) {
+        append(out -> {
+            out.writeByte(ADD_FILE);
+            writePath(out, dir);
+            writeFile(out, file);
+        });
+    }
+
+    /**
+     * Log a file being removed from a directory.
+     *
+     * @param dir The directory the file is removed from.
+     * @param name The name of the file.
+     */
+    void logRemoveFile(Directory dir, String name) {
+        append(out -> {
+            out.writeByte(REMOVE_FILE);
+            writePath(out, dir);
+            out.writeUTF(name);
+        });
+    }
+
+    /**
+     * Log a file being renamed.
+     *
+     * @param dir The directory holding the file.
+     * @param oldName The name of the file before the rename.
+     * @param newName The name of the file after the rename.
+     */
+    void logRenameFile(Directory dir, String oldName, String newName) {
+        append(out -> {
+            out.writeByte(RENAME_FILE);
+            writePath(out, dir);
+            out.writeUTF(oldName);
+            out.writeUTF(newName);
+        });
+    }
+
+    /**
+     * Log a criterion being added or replaced.
+     *
+     * @param criterion The criterion.
+     */
+    void logPutCriterion(FileCriterion criterion) {
+        append(out -> {
+            out.writeByte(PUT_CRITERION);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+                objectOut.writeObject(criterion);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        });
+    }
+
+    /**
+     * Log a criterion being removed.
+     *
+     * @param name The name of the criterion.
+     */
+    void logRemoveCriterion(String name) {
+        append(out -> {
+            out.writeByte(REMOVE_CRITERION);
+            out.writeUTF(name);
+        });
+    }
+
+    /**
+     * Mark the point a store of the disk holds the changes up to, as it takes its snapshot.
+     * The caller must make sure no change is logged meanwhile.
+     */
+    synchronized void mark() {
+        try {
+            mark = channel.position();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the position of the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Start the log over for an image that has just been stored, keeping the records appended since
+     * the last {@link #mark()}, as the snapshot the image was written from does not hold their changes.
+     *
+     * @param path The path of the log that goes with the image.
+     * @param checkpointId The checkpoint id of the image.
+     * @throws IOException if the new log could not be written. The log is then left as it was.
+     */
+    synchronized void rebase(Path path, long checkpointId) throws IOException {
+        Path target = Files.createTempFile(path.toAbsolutePath().getParent(), "cvfs", ".tmp");
+        FileChannel next = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(checkpointId);
+            header.flip();
+            while (header.hasRemaining()) {
+                next.write(header);
+            }
+            long end = channel.position();
+            for (long position = mark; position < end; ) {
+                position = position + channel.transferTo(position, end - position, next);
+            }
+            next.force(false);
+            try {
+                Files.move(target, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(target, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            next.close();
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        channel.close();
+        channel = next;
+        mark = HEADER_SIZE;
+        unsyncedRecords = 0;
+    }
+
+    /**
+     * Force every appended record to the storage device.
+     */
+    synchronized void sync() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+            unsyncedRecords = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not sync the write-ahead log", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            memory.reset();
+        } else if (channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    private synchronized void append(RecordWriter writer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writer.write(out);
+            out.flush();
+            byte[] payload = bytes.toByteArray();
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+            record.putInt(payload.length).putInt(checksumOf(payload)).put(payload).flip();
+            if (channel == null) {
+                memory.write(record.array(), 0, record.limit());
+                return;
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+
+            unsyncedRecords++;
+            if (unsyncedRecords >= syncInterval) {
+                channel.force(false);
+                unsyncedRecords = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Apply a logged change to the disk. The change is applied directly to the tree, without quota
+     * checks or undo history, as it was already checked when it was first made.
+     */
+    private static void apply(VirtualDisk disk, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case ADD_FILE: {
+                Directory dir = readPath(in, disk);
+                disk.addLoggedFile(dir, readFile(in));
+                break;
+            }
+            case REMOVE_FILE: {
+                Directory dir = readPath(in, disk);
+                disk.removeFile(dir, findFile(dir, in.readUTF()));
+                break;
+            }
+            case RENAME_FILE: {
+                Directory dir = readPath(in, disk);
+                File file = findFile(dir, in.readUTF());
+                disk.renameFile(dir, file, in.readUTF());
+                break;
+            }
+            case PUT_CRITERION: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    disk.putCriterion((FileCriterion) objectIn.readObject());
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Corrupt criterion in write-ahead log", e);
+                }
+                break;
+            }
+            case REMOVE_CRITERION:
+                disk.removeCriterion(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown record in write-ahead log: " + type);
+        }
+    }
+
+    private static void writePath(DataOutputStream out, Directory dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (Directory current = dir; current.getParent() != null; current = current.getParent()) {
+            names.add(current.getName());
+        }
+        out.writeInt(names.size());
+        for (int i = names.size() - 1; i >= 0; i--) {
+            out.writeUTF(names.get(i));
+        }
+    }
+
+    private static Directory readPath(DataInputStream in, VirtualDisk disk) throws IOException {
+        Directory dir = disk.getRootDirectory();
+        int depth = in.readInt();
+        for (int i = 0; i < depth; i++) {
+            File file = findFile(dir, in.readUTF());
+            if (!(file instanceof Directory)) {
+                throw new IOException("Write-ahead log does not match the disk: " + file.getName() + " is not a directory");
+            }
+            dir = (Directory) file;
+        }
+        return dir;
+    }
+
+    private static File findFile(Directory dir, String name) throws IOException {
+        File file = dir.getFile(name);
+        if (file == null) {
+            throw new IOException("Write-ahead log does not match the disk: no file " + name + " in " + dir.getName());
+        }
+        return file;
+    }
+
+    private static void writeFile(DataOutputStream out, File file) throws IOException {
+        out.writeUTF(file.getName());
+        if (file instanceof Document) {
+            Document doc = (Document) file;
+            byte[] content = doc.getContentBytes();
+            out.writeByte(KIND_DOCUMENT);
+            out.writeUTF(doc.getType().getName());
+            out.writeInt(content.length);
+            out.write(content);
+        } else {
+            List<File> files = ((Directory) file).getFiles();
+            out.writeByte(KIND_DIRECTORY);
+            out.writeInt(files.size());
+            for (File child : files) {
+                writeFile(out, child);
+            }
+        }
+    }
+
+    private static File readFile(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        if (in.readByte() == KIND_DOCUMENT) {
+            String type = in.readUTF();
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            return new Document(name, type, new String(content, StandardCharsets.UTF_8));
+        }
+
+        Directory dir = new Directory(name);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            dir.addFile(readFile(in));
+        }
+        return dir;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return;
+            }
+        }
+    }
+
+    private static int checksumOf(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the payload of a record.
+     */
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
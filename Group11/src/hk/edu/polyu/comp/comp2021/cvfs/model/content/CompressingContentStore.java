@@ -0,0 +1,220 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.content;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content store compressing large content on its way to another store.
+ *
+ * Content at least as long as the threshold is deflated at the fastest level, and kept compressed
+ * if that saves space; smaller content, and content that does not compress, is kept as it is.
+ * Compressed content is inflated when it is read, and the most recently read contents are kept
+ * inflated in a cache of bounded size, so content read again and again is only inflated once.
+ *
+ * The threshold only applies to content stored from the time it is set.
+ */
+public class CompressingContentStore implements ContentStore {
+    /**
+     * The threshold with which nothing is compressed.
+     */
+    public static final int NEVER = Integer.MAX_VALUE;
+
+    /**
+     * The bytes of inflated content cached unless configured otherwise.
+     */
+    public static final long DEFAULT_CACHE_BYTES = 4L * 1024 * 1024;
+
+    private final ContentStore store;
+    private final long cacheBytes;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    // the length from which content is compressed.
+    private int threshold = NEVER;
+
+    // the compressed contents, by handle.
+    private final Map<Long, Compressed> compressedContents = new HashMap<>();
+
+    // the inflated contents read most recently, the least recently read first.
+    private final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    // the bytes of the compressed contents held, before and after compression.
+    private long inflatedBytes;
+    private long deflatedBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param store The store to keep the content in.
+     * @param cacheBytes The bytes of inflated content to cache.
+     */
+    public CompressingContentStore(ContentStore store, long cacheBytes) {
+        this.store = store;
+        this.cacheBytes = cacheBytes;
+    }
+
+    /**
+     * @param threshold The length from which content stored from now on is compressed, or {@link #NEVER}.
+     * @throws IllegalArgumentException if the threshold is not positive.
+     */
+    public synchronized void setThreshold(int threshold) throws IllegalArgumentException {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("The compression threshold must be positive: " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    @Override
+    public synchronized long put(byte[] content) {
+        byte[] compressed = content.length >= threshold ? deflate(content) : null;
+        if (compressed == null) {
+            return store.put(content);
+        }
+        long handle = store.put(compressed);
+        compressedContents.put(handle, new Compressed(content.length, compressed.length));
+        inflatedBytes = inflatedBytes + content.length;
+        deflatedBytes = deflatedBytes + compressed.length;
+        return handle;
+    }
+
+    @Override
+    public synchronized byte[] get(long handle) {
+        Compressed compressed = compressedContents.get(handle);
+        if (compressed == null) {
+            return store.get(handle);
+        }
+
+        byte[] content = cache.get(handle);
+        if (content == null) {
+            content = inflate(store.get(handle), compressed.length);
+            cache(handle, content);
+        }
+        return content;
+    }
+
+    @Override
+    public synchronized void release(long handle) {
+        Compressed compressed = compressedContents.remove(handle);
+        if (compressed != null) {
+            byte[] cached = cache.remove(handle);
+            if (cached != null) {
+                cachedBytes = cachedBytes - cached.length;
+            }
+            inflatedBytes = inflatedBytes - compressed.length;
+            deflatedBytes = deflatedBytes - compressed.deflatedLength;
+        }
+        store.release(handle);
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return store.getUsedBytes();
+    }
+
+    /**
+     * @return The number of bytes of the compressed contents held, before compression.
+     */
+    public synchronized long getInflatedBytes() {
+        return inflatedBytes;
+    }
+
+    /**
+     * @return The number of bytes of the compressed contents held, after compression.
+     */
+    public synchronized long getDeflatedBytes() {
+        return deflatedBytes;
+    }
+
+    /**
+     * @return The number of compressed contents held.
+     */
+    public synchronized int getCompressedCount() {
+        return compressedContents.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        compressedContents.clear();
+        cache.clear();
+        cachedBytes = 0;
+        inflatedBytes = 0;
+        deflatedBytes = 0;
+        deflater.end();
+        inflater.end();
+        store.close();
+    }
+
+    // the deflated content, or null if it does not get any smaller.
+    private byte[] deflate(byte[] content) {
+        deflater.reset();
+        deflater.setInput(content);
+        deflater.finish();
+        byte[] buffer = new byte[content.length];
+        int length = 0;
+        while (!deflater.finished() && length < buffer.length) {
+            length = length + deflater.deflate(buffer, length, buffer.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private byte[] inflate(byte[] compressed, int length) {
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] content = new byte[length];
+        try {
+            int inflated = 0;
+            while (inflated < length) {
+                int count = inflater.inflate(content, inflated, length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                inflated = inflated + count;
+            }
+            if (inflated != length) {
+                throw new IllegalStateException("Compressed content is truncated: " + inflated + " of " + length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed content is corrupt", e);
+        }
+        return content;
+    }
+
+    private void cache(long handle, byte[] content) {
+        if (content.length > cacheBytes) {
+            return;
+        }
+        cache.put(handle, content);
+        cachedBytes = cachedBytes + content.length;
+
+        // drop the contents read least recently until the cache fits.
+        Iterator<byte[]> oldest = cache.values().iterator();
+        while (cachedBytes > cacheBytes) {
+            cachedBytes = cachedBytes - oldest.next().length;
+            oldest.remove();
+        }
+    }
+
+    /**
+     * The lengths of a compressed content.
+     */
+    private static class Compressed {
+        private final int length;
+        private final int deflatedLength;
+
+        Compressed(int length, int deflatedLength) {
+            this.length = length;
+            this.deflatedLength = deflatedLength;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.content;
+
+/**
+ * Holds the content of documents on behalf of a virtual disk.
+ * Content is written once and addressed through the handle returned by {@link #put(byte[])}.
+ */
+public interface ContentStore {
+
+    /**
+     * Store a copy of the given content.
+     *
+     * @param content The content to be stored.
+     * @return The handle with which the content can be read back or released.
+     */
+    long put(byte[] content);
+
+    /**
+     * @param handle The handle returned when the content was stored.
+     * @return The stored content. The returned array must not be modified.
+     */
+    byte[] get(long handle);
+
+    /**
+     * Release the content so its space can be reused. The handle must not be used afterwards.
+     *
+     * @param handle The handle returned when the content was stored.
+     */
+    void release(long handle);
+
+    /**
+     * @return The number of bytes currently held by this store.
+     */
+    long getUsedBytes();
+
+    /**
+     * Drop all the memory held by this store. The store must not be used afterwards.
+     */
+    void close();
+}
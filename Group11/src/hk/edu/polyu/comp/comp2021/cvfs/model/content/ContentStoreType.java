@@ -0,0 +1,26 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.content;
+
+/**
+ * The kinds of content store a virtual disk can keep its document content in.
+ */
+public enum ContentStoreType {
+    /**
+     * Content is kept in byte arrays on the Java heap.
+     */
+    HEAP,
+
+    /**
+     * Content is kept in direct (off-heap) memory, allocated in slabs.
+     */
+    DIRECT;
+
+    /**
+     * @return A new, empty store of this type.
+     */
+    public ContentStore newStore() {
+        if (this == DIRECT) {
+            return new DirectContentStore();
+        }
+        return new HeapContentStore();
+    }
+}
@@ -0,0 +1,164 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.content;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content store keeping each distinct content once, on top of another store.
+ *
+ * Content is addressed by a hash of its bytes. Storing content that is already held hands back the
+ * handle of the copy held, and counts one more reference to it; the copy is released from the
+ * store below once its last reference is. Contents whose hashes collide are told apart by their
+ * bytes, so a collision costs a comparison but never shares the wrong content.
+ *
+ * The logical bytes are those of every reference, as if each document held its own copy, and the
+ * used bytes are those the store below actually holds.
+ */
+public class DedupContentStore implements ContentStore {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ContentStore store;
+
+    // the entries, by the hash of their content and by their handle. Entries whose hashes collide are chained.
+    private final Map<Long, Entry> byHash = new HashMap<>();
+    private final Map<Long, Entry> byHandle = new HashMap<>();
+
+    // the bytes of every reference, and of each distinct content once.
+    private long logicalBytes;
+    private long distinctBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param store The store to keep the distinct contents in.
+     */
+    public DedupContentStore(ContentStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public synchronized long put(byte[] content) {
+        long hash = hash(content);
+        Entry first = byHash.get(hash);
+        for (Entry entry = first; entry != null; entry = entry.next) {
+            if (entry.length == content.length && Arrays.equals(store.get(entry.handle), content)) {
+                entry.references++;
+                logicalBytes = logicalBytes + content.length;
+                return entry.handle;
+            }
+        }
+
+        Entry entry = new Entry(hash, store.put(content), content.length);
+        entry.next = first;
+        byHash.put(hash, entry);
+        byHandle.put(entry.handle, entry);
+        logicalBytes = logicalBytes + content.length;
+        distinctBytes = distinctBytes + content.length;
+        return entry.handle;
+    }
+
+    @Override
+    public synchronized byte[] get(long handle) {
+        return store.get(handle);
+    }
+
+    @Override
+    public synchronized void release(long handle) {
+        Entry entry = byHandle.get(handle);
+        logicalBytes = logicalBytes - entry.length;
+        if (--entry.references > 0) {
+            return;
+        }
+
+        // unlink the entry from its chain, then let the store below reuse the space.
+        byHandle.remove(handle);
+        distinctBytes = distinctBytes - entry.length;
+        Entry first = byHash.get(entry.hash);
+        if (first == entry) {
+            if (entry.next == null) {
+                byHash.remove(entry.hash);
+            } else {
+                byHash.put(entry.hash, entry.next);
+            }
+        } else {
+            Entry previous = first;
+            while (previous.next != entry) {
+                previous = previous.next;
+            }
+            previous.next = entry.next;
+        }
+        store.release(handle);
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return store.getUsedBytes();
+    }
+
+    /**
+     * @return The number of bytes of content stored, counting shared content once per reference.
+     */
+    public synchronized long getLogicalBytes() {
+        return logicalBytes;
+    }
+
+    /**
+     * @return The number of bytes of content stored, counting shared content once.
+     */
+    public synchronized long getDistinctBytes() {
+        return distinctBytes;
+    }
+
+    /**
+     * @return The number of distinct contents held.
+     */
+    public synchronized int getDistinctCount() {
+        return byHandle.size();
+    }
+
+    /**
+     * @return The store the distinct contents are kept in.
+     */
+    public ContentStore getStore() {
+        return store;
+    }
+
+    @Override
+    public synchronized void close() {
+        byHash.clear();
+        byHandle.clear();
+        logicalBytes = 0;
+        distinctBytes = 0;
+        store.close();
+    }
+
+    // the 64-bit FNV-1a hash of the content.
+    private static long hash(byte[] content) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : content) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * A distinct content, with the number of references to it.
+     */
+    private static class Entry {
+        private final long hash;
+        private final long handle;
+        private final int length;
+        private int references = 1;
+
+        // the next entry whose content has the same hash.
+        private Entry next;
+
+        Entry(long hash, long handle, int length) {
+            this.hash = hash;
+            this.handle = handle;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.content;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Content store keeping document content outside the Java heap.
+ *
+ * Memory is taken from the system in direct buffers ("slabs") of {@link #SLAB_SIZE} bytes and
+ * carved into power-of-two blocks, each prefixed by the length of its content. Released blocks go
+ * to a free list for their size class and are handed out again before a slab is carved further.
+ * Content larger than a slab gets a direct buffer of its own.
+ *
+ * A handle holds the slab index in its upper 32 bits and the block offset in its lower 32 bits.
+ */
+public class DirectContentStore implements ContentStore {
+    /**
+     * Size of each slab of direct memory.
+     */
+    public static final int SLAB_SIZE = 1 << 20;
+
+    // each block starts with the length of its content.
+    private static final int HEADER_SIZE = Integer.BYTES;
+
+    // the smallest block is 16 bytes, the largest is a whole slab.
+    private static final int MIN_BLOCK_SHIFT = 4;
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(SLAB_SIZE) - MIN_BLOCK_SHIFT + 1;
+
+    // the slabs, and the dedicated buffers of large content, indexed by handle.
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+
+    // released blocks, per size class.
+    private final HandleStack[] freeBlocks = new HandleStack[CLASS_COUNT];
+
+    // indexes in 'slabs' left empty by released large content.
+    private final HandleStack freeSlabIndexes = new HandleStack();
+
+    // the slab being carved, and the offset of its first unused byte.
+    private int currentSlab = -1;
+    private int currentOffset;
+
+    private long usedBytes;
+
+    /**
+     * Constructor.
+     */
+    public DirectContentStore() {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeBlocks[i] = new HandleStack();
+        }
+    }
+
+    @Override
+    public synchronized long put(byte[] content) {
+        int blockSize = content.length + HEADER_SIZE;
+
+        long handle;
+        if (blockSize > SLAB_SIZE) {
+            handle = allocateLarge(blockSize);
+        } else {
+            int sizeClass = sizeClassOf(blockSize);
+            blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+            handle = freeBlocks[sizeClass].isEmpty() ? carve(blockSize) : freeBlocks[sizeClass].pop();
+        }
+
+        ByteBuffer buffer = slabs.get(slabOf(handle)).duplicate();
+        buffer.position(offsetOf(handle));
+        buffer.putInt(content.length);
+        buffer.put(content);
+
+        usedBytes = usedBytes + blockSize;
+        return handle;
+    }
+
+    @Override
+    public synchronized byte[] get(long handle) {
+        ByteBuffer buffer = slabs.get(slabOf(handle)).duplicate();
+        buffer.position(offsetOf(handle));
+        byte[] content = new byte[buffer.getInt()];
+        buffer.get(content);
+        return content;
+    }
+
+    @Override
+    public synchronized void release(long handle) {
+        int slab = slabOf(handle);
+        ByteBuffer buffer = slabs.get(slab);
+        int blockSize = buffer.getInt(offsetOf(handle)) + HEADER_SIZE;
+
+        if (blockSize > SLAB_SIZE) {
+            // large content owns its buffer; dropping it lets the buffer be reclaimed.
+            slabs.set(slab, null);
+            freeSlabIndexes.push(slab);
+            usedBytes = usedBytes - blockSize;
+        } else {
+            int sizeClass = sizeClassOf(blockSize);
+            freeBlocks[sizeClass].push(handle);
+            usedBytes = usedBytes - (1 << (sizeClass + MIN_BLOCK_SHIFT));
+        }
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The number of bytes of direct memory reserved by this store, used or not.
+     */
+    public synchronized long getReservedBytes() {
+        long total = 0;
+        for (ByteBuffer slab : slabs) {
+            if (slab != null) {
+                total = total + slab.capacity();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() {
+        // direct buffers are returned to the system once they are no longer reachable.
+        slabs.clear();
+        for (HandleStack stack : freeBlocks) {
+            stack.clear();
+        }
+        freeSlabIndexes.clear();
+        currentSlab = -1;
+        usedBytes = 0;
+    }
+
+    /**
+     * Take a new block from the current slab, starting a new slab if it is full.
+     */
+    private long carve(int blockSize) {
+        if (currentSlab < 0 || currentOffset + blockSize > SLAB_SIZE) {
+            recycleSlabTail();
+            currentSlab = addSlab(ByteBuffer.allocateDirect(SLAB_SIZE));
+            currentOffset = 0;
+        }
+        long handle = handleOf(currentSlab, currentOffset);
+        currentOffset = currentOffset + blockSize;
+        return handle;
+    }
+
+    /**
+     * Hand the unused tail of the current slab to the free lists before moving on to a new slab.
+     */
+    private void recycleSlabTail() {
+        if (currentSlab < 0) {
+            return;
+        }
+        int remaining = SLAB_SIZE - currentOffset;
+        while (remaining >= (1 << MIN_BLOCK_SHIFT)) {
+            int sizeClass = sizeClassOf(Integer.highestOneBit(remaining));
+            int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+            freeBlocks[sizeClass].push(handleOf(currentSlab, currentOffset));
+            currentOffset = currentOffset + blockSize;
+            remaining = remaining - blockSize;
+        }
+    }
+
+    private long allocateLarge(int blockSize) {
+        return handleOf(addSlab(ByteBuffer.allocateDirect(blockSize)), 0);
+    }
+
+    private int addSlab(ByteBuffer slab) {
+        if (!freeSlabIndexes.isEmpty()) {
+            int index = (int) freeSlabIndexes.pop();
+            slabs.set(index, slab);
+            return index;
+        }
+        slabs.add(slab);
+        return slabs.size() - 1;
+    }
+
+    private static int sizeClassOf(int blockSize) {
+        int shift = 32 - Integer.numberOfLeadingZeros(blockSize - 1);
+        return Math.max(0, shift - MIN_BLOCK_SHIFT);
+    }
+
+    private static long handleOf(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * A growable stack of primitive handles.
+     */
+    private static class HandleStack {
+        private long[] items = new long[8];
+        private int count;
+
+        void push(long item) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, count * 2);
+            }
+            items[count++] = item;
+        }
+
+        long pop() {
+            return items[--count];
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        void clear() {
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.content;
+
+import java.util.Arrays;
+
+/**
+ * Content store keeping each document in its own byte array on the heap.
+ * Handles are slots in a table, and the slots of released content are reused.
+ */
+public class HeapContentStore implements ContentStore {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // the stored content, indexed by handle.
+    private byte[][] slots = new byte[INITIAL_CAPACITY][];
+
+    // slots released and ready for reuse.
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeCount;
+
+    // the next slot that has never been used.
+    private int nextSlot;
+
+    private long usedBytes;
+
+    @Override
+    public synchronized long put(byte[] content) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (nextSlot == slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+            }
+            slot = nextSlot++;
+        }
+        slots[slot] = content.clone();
+        usedBytes = usedBytes + content.length;
+        return slot;
+    }
+
+    @Override
+    public synchronized byte[] get(long handle) {
+        return slots[(int) handle];
+    }
+
+    @Override
+    public synchronized void release(long handle) {
+        int slot = (int) handle;
+        usedBytes = usedBytes - slots[slot].length;
+        slots[slot] = null;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        slots = new byte[INITIAL_CAPACITY][];
+        freeSlots = new int[INITIAL_CAPACITY];
+        freeCount = 0;
+        nextSlot = 0;
+        usedBytes = 0;
+    }
+}
@@ -0,0 +1,116 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.content;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Read-only content store over the data pages of a disk image, mapped into memory.
+ * Pages are only read from the file when the content on them is first accessed.
+ *
+ * A handle is the offset in the image of a block holding the length of the content
+ * followed by the content itself. The store does not accept new content.
+ */
+public class MappedContentStore implements ContentStore {
+    // a single mapping can cover at most 2 GB, so larger images are mapped in segments.
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final Path path;
+    private final Object fileKey;
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Constructor.
+     *
+     * @param path The path of the image file.
+     * @param fileKey The key identifying the image file on the host file system.
+     * @param channel An open channel to the image file.
+     * @throws IOException if the file could not be mapped.
+     */
+    public MappedContentStore(Path path, Object fileKey, FileChannel channel) throws IOException {
+        this.path = path;
+        this.fileKey = fileKey;
+
+        long size = channel.size();
+        int segmentCount = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+    }
+
+    /**
+     * @return The path of the image file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return The key identifying the image file on the host file system.
+     */
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * @param offset The offset in the image to read from.
+     * @return The 4 bytes at the given offset, as an int.
+     */
+    public int getInt(long offset) {
+        byte[] bytes = new byte[Integer.BYTES];
+        read(offset, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    /**
+     * Copy bytes out of the image.
+     *
+     * @param offset The offset in the image to read from.
+     * @param target The array to fill.
+     */
+    public void read(long offset, byte[] target) {
+        int copied = 0;
+        while (copied < target.length) {
+            long position = offset + copied;
+            ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+            segment.position((int) (position & (SEGMENT_SIZE - 1)));
+            int count = Math.min(target.length - copied, segment.remaining());
+            segment.get(target, copied, count);
+            copied = copied + count;
+        }
+    }
+
+    @Override
+    public long put(byte[] content) {
+        throw new UnsupportedOperationException("A mapped disk image is read-only");
+    }
+
+    @Override
+    public byte[] get(long handle) {
+        byte[] content = new byte[getInt(handle)];
+        read(handle + Integer.BYTES, content);
+        return content;
+    }
+
+    @Override
+    public void release(long handle) {
+        // the space belongs to the image file, and is reclaimed when the image is compacted.
+    }
+
+    @Override
+    public long getUsedBytes() {
+        // nothing is held in memory beyond the pages the operating system chooses to cache.
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        // mappings are released once they are no longer reachable.
+        segments = new MappedByteBuffer[0];
+    }
+}
@@ -1,8 +1,12 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model.criteria;
 
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.FileIndex;
+import hk.edu.polyu.comp.comp2021.cvfs.model.InodePredicate;
 
 import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * Represents a composite criterion that evaluates two simple critera
@@ -10,6 +14,8 @@ import java.util.Arrays;
  */
 public class BinaryCompositeCriterion extends FileCriterion {
     private final String operand;
+    // whether the operand is && rather than ||.
+    private final boolean conjunction;
     private final FileCriterion fileCriterion1;
     private final FileCriterion fileCriterion2;
 
@@ -33,6 +39,7 @@ public class BinaryCompositeCriterion extends FileCriterion {
         this.fileCriterion2 = fileCriterion2;
 
         checkParameters();
+        this.conjunction = operand.equals("&&");
     }
 
     /**
@@ -46,11 +53,99 @@ public class BinaryCompositeCriterion extends FileCriterion {
 
     @Override
     public boolean validateFile(File file) {
-        if (this.operand.equals("||")) {
+        if (conjunction) {
+            return fileCriterion1.validateFile(file) && fileCriterion2.validateFile(file);
+        } else {
             return fileCriterion1.validateFile(file) || fileCriterion2.validateFile(file);
+        }
+    }
+
+    @Override
+    Predicate<File> buildPredicate() {
+        // test first the criterion that most cheaply decides the result on its own: for && the
+        // one most likely to fail per unit of cost, for || the one most likely to pass.
+        FileCriterion first = fileCriterion1;
+        FileCriterion second = fileCriterion2;
+        if (rank(second) < rank(first)) {
+            first = fileCriterion2;
+            second = fileCriterion1;
+        }
+
+        final Predicate<File> firstPredicate = first.compile();
+        final Predicate<File> secondPredicate = second.compile();
+        if (conjunction) {
+            return file -> firstPredicate.test(file) && secondPredicate.test(file);
         } else {
-            return fileCriterion1.validateFile(file) && fileCriterion2.validateFile(file);
+            return file -> firstPredicate.test(file) || secondPredicate.test(file);
+        }
+    }
+
+    @Override
+    InodePredicate buildInodePredicate() {
+        // the same order as buildPredicate.
+        FileCriterion first = fileCriterion1;
+        FileCriterion second = fileCriterion2;
+        if (rank(second) < rank(first)) {
+            first = fileCriterion2;
+            second = fileCriterion1;
+        }
+
+        final InodePredicate firstPredicate = first.compileForInodes();
+        final InodePredicate secondPredicate = second.compileForInodes();
+        if (conjunction) {
+            return (table, inode) -> firstPredicate.test(table, inode) && secondPredicate.test(table, inode);
+        } else {
+            return (table, inode) -> firstPredicate.test(table, inode) || secondPredicate.test(table, inode);
+        }
+    }
+
+    /**
+     * @param criterion One of the two criteria.
+     * @return The expected cost of testing the criterion per file it decides the result for. Lower goes first.
+     */
+    private double rank(FileCriterion criterion) {
+        double decisive = conjunction ? 1 - criterion.getSelectivity() : criterion.getSelectivity();
+        return criterion.getCost() / Math.max(decisive, 0.01);
+    }
+
+    @Override
+    public long estimateCandidates(FileIndex index) {
+        long estimate1 = fileCriterion1.estimateCandidates(index);
+        long estimate2 = fileCriterion2.estimateCandidates(index);
+        if (conjunction) {
+            // either side alone narrows the files down, so the smaller one will do.
+            if (estimate1 < 0 || estimate2 < 0) {
+                return Math.max(estimate1, estimate2);
+            }
+            return Math.min(estimate1, estimate2);
         }
+        return estimate1 < 0 || estimate2 < 0 ? -1 : estimate1 + estimate2;
+    }
+
+    @Override
+    void collectCandidates(FileIndex index, Set<File> into) {
+        if (conjunction) {
+            // the files of the smaller side are tested against both anyway, so they are not intersected here.
+            long estimate1 = fileCriterion1.estimateCandidates(index);
+            long estimate2 = fileCriterion2.estimateCandidates(index);
+            boolean first = estimate1 >= 0 && (estimate2 < 0 || estimate1 <= estimate2);
+            (first ? fileCriterion1 : fileCriterion2).collectCandidates(index, into);
+            return;
+        }
+        fileCriterion1.collectCandidates(index, into);
+        fileCriterion2.collectCandidates(index, into);
+    }
+
+    @Override
+    double getCost() {
+        return fileCriterion1.getCost() + fileCriterion2.getCost();
+    }
+
+    @Override
+    double getSelectivity() {
+        double s1 = fileCriterion1.getSelectivity();
+        double s2 = fileCriterion2.getSelectivity();
+        return conjunction ? s1 * s2 : s1 + s2 - s1 * s2;
     }
 
     @Override
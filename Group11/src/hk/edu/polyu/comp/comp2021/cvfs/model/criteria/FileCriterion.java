@@ -1,9 +1,13 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model.criteria;
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.FileIndex;
+import hk.edu.polyu.comp.comp2021.cvfs.model.InodePredicate;
+import hk.edu.polyu.comp.comp2021.cvfs.model.Names;
 
 import java.io.Serializable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  *  Represents any criterion used to filter files.
@@ -15,6 +19,12 @@ public abstract class FileCriterion implements Serializable {
      */
     protected final String name;
 
+    // the compiled form of this criterion, built on first use.
+    private transient volatile Predicate<File> compiled;
+
+    // the form of this criterion that tests inodes, built on first use.
+    private transient volatile InodePredicate compiledForInodes;
+
     /**
      * Constructor.
      *
@@ -36,10 +46,7 @@ public abstract class FileCriterion implements Serializable {
             throw new IllegalArgumentException("Length of name is not 2: " + name.length());
         }
 
-        Pattern pattern = Pattern.compile("^[a-zA-Z0-9]+$");
-        Matcher matcher = pattern.matcher(name);
-
-        if(!matcher.matches()){
+        if(!Names.isAlphanumeric(name)){
             throw new IllegalArgumentException("Only English letters and numbers are allowed");
         }
 
@@ -58,4 +65,104 @@ public abstract class FileCriterion implements Serializable {
      * @return Whether the file matches the criterion or not.
      */
     public abstract boolean validateFile(File file);
+
+    /**
+     * Compile the criterion into a predicate for searching. Operands are parsed when the criterion
+     * is created, and the predicate is specialised for its operator, so testing a file does no parsing
+     * and allocates nothing. The predicate is built once and reused by every search.
+     *
+     * @return A predicate matching the same files as {@link #validateFile(File)}.
+     */
+    public Predicate<File> compile() {
+        Predicate<File> predicate = compiled;
+        if (predicate == null) {
+            predicate = buildPredicate();
+            compiled = predicate;
+        }
+        return predicate;
+    }
+
+    /**
+     * Compile the criterion into a predicate on the inodes of an inode table. Criteria on names,
+     * types and sizes read only the arrays of the table; others test the file of the inode.
+     *
+     * @return A predicate matching the same files as {@link #validateFile(File)}.
+     */
+    public InodePredicate compileForInodes() {
+        InodePredicate predicate = compiledForInodes;
+        if (predicate == null) {
+            predicate = buildInodePredicate();
+            compiledForInodes = predicate;
+        }
+        return predicate;
+    }
+
+    /**
+     * Find the files that may match this criterion using the secondary indexes of a disk.
+     *
+     * @param index The indexes.
+     * @return A new set holding at least every file on the disk that matches, or null if the
+     * indexes cannot narrow the files down and every file has to be tested.
+     */
+    public final Set<File> findCandidates(FileIndex index) {
+        long estimate = estimateCandidates(index);
+        if (estimate < 0) {
+            return null;
+        }
+        Set<File> candidates = new HashSet<>((int) Math.min(estimate + estimate / 3 + 1, 1 << 30));
+        collectCandidates(index, candidates);
+        return candidates;
+    }
+
+    /**
+     * Work out how many files {@link #findCandidates(FileIndex)} would give, from the sizes of the
+     * index entries rather than the files in them. Cheap to call, so that building candidate sets
+     * that would be thrown away for a scan can be avoided.
+     *
+     * @param index The indexes.
+     * @return At least the number of candidates, or -1 if the indexes cannot narrow the files down.
+     */
+    public long estimateCandidates(FileIndex index) {
+        return -1;
+    }
+
+    /**
+     * Add the files that may match this criterion to a set. Only called if
+     * {@link #estimateCandidates(FileIndex)} is not -1.
+     *
+     * @param index The indexes.
+     * @param into The set to add at least every file on the disk that matches to.
+     */
+    void collectCandidates(FileIndex index, Set<File> into) {
+        throw new IllegalStateException("The indexes cannot narrow down the files for: " + this);
+    }
+
+    /**
+     * @return A new predicate matching the same files as {@link #validateFile(File)}.
+     */
+    Predicate<File> buildPredicate() {
+        return this::validateFile;
+    }
+
+    /**
+     * @return A new predicate on inodes matching the same files as {@link #validateFile(File)}.
+     */
+    InodePredicate buildInodePredicate() {
+        final Predicate<File> predicate = compile();
+        return (table, inode) -> predicate.test(table.getFile(inode));
+    }
+
+    /**
+     * @return The estimated relative cost of testing one file against this criterion.
+     */
+    double getCost() {
+        return 1;
+    }
+
+    /**
+     * @return The estimated share of files, between 0 and 1, that match this criterion.
+     */
+    double getSelectivity() {
+        return 0.5;
+    }
 }
\ No newline at end of file
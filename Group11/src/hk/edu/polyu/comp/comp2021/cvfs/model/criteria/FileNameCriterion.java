@@ -1,11 +1,20 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model.criteria;
 
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.FileIndex;
+import hk.edu.polyu.comp.comp2021.cvfs.model.InodePredicate;
+import hk.edu.polyu.comp.comp2021.cvfs.model.Names;
+
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * The name criterion.
  */
 public class FileNameCriterion extends SimpleCriterion {
+    // the value without its double quotes.
+    private final String text;
+
     /**
      * Constructor.
      *
@@ -17,6 +26,7 @@ public class FileNameCriterion extends SimpleCriterion {
     public FileNameCriterion(String criName, String op, String value) throws IllegalArgumentException {
         super(criName, op, value);
         validateParameters();
+        this.text = value.substring(1, value.length() - 1);
     }
 
     /**
@@ -28,15 +38,62 @@ public class FileNameCriterion extends SimpleCriterion {
             throw new IllegalArgumentException("Operation should be: contains");
         }
 
-        if(!value.startsWith("\"") || !value.endsWith("\"")){
+        if(value.length() < 2 || !value.startsWith("\"") || !value.endsWith("\"")){
             throw new IllegalArgumentException("Value should be between double quotes");
         }
     }
 
     @Override
     public boolean validateFile(File file) {
-        String nameWthoutQuotes = this.value.substring(1, value.length() - 1);
-        return file.getName().contains(nameWthoutQuotes);
+        return compile().test(file);
+    }
+
+    @Override
+    Predicate<File> buildPredicate() {
+        // compare with the packed names, without unpacking them.
+        if (text.isEmpty()) {
+            return file -> true;
+        }
+        final long packedText = Names.pack(text);
+        if (packedText == Names.NOT_PACKABLE) {
+            return file -> false;
+        }
+        final int length = text.length();
+        return file -> Names.contains(file.getPackedName(), packedText, length);
+    }
+
+    @Override
+    InodePredicate buildInodePredicate() {
+        if (text.isEmpty()) {
+            return (table, inode) -> true;
+        }
+        final long packedText = Names.pack(text);
+        if (packedText == Names.NOT_PACKABLE) {
+            return (table, inode) -> false;
+        }
+        final int length = text.length();
+        return (table, inode) -> Names.contains(table.getPackedName(inode), packedText, length);
+    }
+
+    @Override
+    public long estimateCandidates(FileIndex index) {
+        return index.estimateFilesWithNameContaining(text);
+    }
+
+    @Override
+    void collectCandidates(FileIndex index, Set<File> into) {
+        index.collectFilesWithNameContaining(text, into);
+    }
+
+    @Override
+    double getCost() {
+        // scans the name, which is at most ten characters.
+        return 3;
+    }
+
+    @Override
+    double getSelectivity() {
+        return text.isEmpty() ? 1 : 0.2;
     }
 
     @Override
@@ -1,13 +1,19 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model.criteria;
 
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.FileIndex;
+import hk.edu.polyu.comp.comp2021.cvfs.model.InodePredicate;
 
-import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * Criterian for file sizes.
  */
 public class FileSizeCriterion extends SimpleCriterion {
+    private final SizeOperator operator;
+    private final long bound;
+
     /**
      * Constructor.
      *
@@ -17,21 +23,13 @@ public class FileSizeCriterion extends SimpleCriterion {
      */
     public FileSizeCriterion(String criName, String op, String value) {
         super(criName, op, value);
-        validateParameters();
-    }
 
-    /**
-     * Validate the operator.
-     */
-    private void validateParameters() throws IllegalArgumentException{
         // ensure the operator provided works.
-        if(!Arrays.asList(">", "<", ">=", "<=", "==", "!=").contains(this.op)){
-            throw new IllegalArgumentException("The provided operator is invalid: " + this.op);
-        }
+        this.operator = SizeOperator.fromSymbol(op);
 
         // check the value to ensure it is a numeric value.
         try {
-            Long.parseLong(this.value);
+            this.bound = Long.parseLong(value);
         } catch (Exception e){
             throw new IllegalArgumentException("The provided value is a non-numeric value");
         }
@@ -39,30 +37,92 @@ public class FileSizeCriterion extends SimpleCriterion {
 
     @Override
     public boolean validateFile(File file) {
-        long value = Long.parseLong(this.value);
-        boolean returnValue = false;
+        return compile().test(file);
+    }
+
+    @Override
+    Predicate<File> buildPredicate() {
+        // one predicate per operator, so testing a file is a single comparison.
+        final long bound = this.bound;
+        switch (operator) {
+            case GREATER:
+                return file -> file.getSize() > bound;
+            case LESS:
+                return file -> file.getSize() < bound;
+            case GREATER_OR_EQUAL:
+                return file -> file.getSize() >= bound;
+            case LESS_OR_EQUAL:
+                return file -> file.getSize() <= bound;
+            case EQUAL:
+                return file -> file.getSize() == bound;
+            default:
+                return file -> file.getSize() != bound;
+        }
+    }
 
-        switch (this.op){
-            case ">":
-                returnValue = file.getSize() > value;
-                break;
-            case "<":
-                returnValue = file.getSize() < value;
-                break;
-            case ">=":
-                returnValue = file.getSize() >= value;
-                break;
-            case "<=":
-                returnValue =  file.getSize() <= value;
-                break;
-            case "==":
-                returnValue = file.getSize() == value;
-                break;
-            case "!=":
-                returnValue = file.getSize()  != value;
-                break;
+    @Override
+    InodePredicate buildInodePredicate() {
+        final long bound = this.bound;
+        switch (operator) {
+            case GREATER:
+                return (table, inode) -> table.getSize(inode) > bound;
+            case LESS:
+                return (table, inode) -> table.getSize(inode) < bound;
+            case GREATER_OR_EQUAL:
+                return (table, inode) -> table.getSize(inode) >= bound;
+            case LESS_OR_EQUAL:
+                return (table, inode) -> table.getSize(inode) <= bound;
+            case EQUAL:
+                return (table, inode) -> table.getSize(inode) == bound;
+            default:
+                return (table, inode) -> table.getSize(inode) != bound;
         }
-        return returnValue;
+    }
+
+    @Override
+    public long estimateCandidates(FileIndex index) {
+        if (operator == SizeOperator.NOT_EQUAL) {
+            // almost every file differs in size from the value.
+            return -1;
+        }
+        // directories are not in the size index, so they always have to be tested.
+        return (long) index.countDocumentsBySize(lowest(), operator != SizeOperator.GREATER,
+                highest(), operator != SizeOperator.LESS) + index.countDirectories();
+    }
+
+    @Override
+    void collectCandidates(FileIndex index, Set<File> into) {
+        index.collectDocumentsBySize(lowest(), operator != SizeOperator.GREATER,
+                highest(), operator != SizeOperator.LESS, into);
+        index.collectDirectories(into);
+    }
+
+    // the ends of the range of sizes the operator lets through.
+    private long lowest() {
+        switch (operator) {
+            case GREATER:
+            case GREATER_OR_EQUAL:
+            case EQUAL:
+                return bound;
+            default:
+                return Long.MIN_VALUE;
+        }
+    }
+
+    private long highest() {
+        switch (operator) {
+            case LESS:
+            case LESS_OR_EQUAL:
+            case EQUAL:
+                return bound;
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    @Override
+    double getSelectivity() {
+        return operator.getSelectivity();
     }
 
     @Override
@@ -1,12 +1,20 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model.criteria;
 
 import hk.edu.polyu.comp.comp2021.cvfs.model.Document;
+import hk.edu.polyu.comp.comp2021.cvfs.model.DocumentType;
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.FileIndex;
+import hk.edu.polyu.comp.comp2021.cvfs.model.InodePredicate;
+
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * The Type Criterion.
  */
 public class FileTypeCriterion extends SimpleCriterion {
+    // the type named by the value without its double quotes, or null if no type has that name.
+    private final DocumentType type;
 
     /**
      * Constructor.
@@ -19,6 +27,9 @@ public class FileTypeCriterion extends SimpleCriterion {
     public FileTypeCriterion(String criName, String op, String value) throws IllegalArgumentException {
         super(criName, op, value);
         validateParameters();
+
+        // remove the dobule quotes from input type.
+        this.type = DocumentType.forName(value.substring(1, value.length() - 1));
     }
 
     /**
@@ -30,7 +41,7 @@ public class FileTypeCriterion extends SimpleCriterion {
             throw new IllegalArgumentException("Operator should have the value: equals");
         }
 
-        if(!value.startsWith("\"") || !value.endsWith("\"")){
+        if(value.length() < 2 || !value.startsWith("\"") || !value.endsWith("\"")){
             throw new IllegalArgumentException("The value must start with \" and end with \"");
         }
     }
@@ -42,12 +53,47 @@ public class FileTypeCriterion extends SimpleCriterion {
             return false;
         }
 
-        // remove the dobule quotes from input type.
-        String inputType = value.substring(1, value.length() - 1);
-
         // do the comparison.
         Document doc = (Document) file;
-        return doc.getType().equals(inputType);
+        return doc.getType() == type;
+    }
+
+    @Override
+    Predicate<File> buildPredicate() {
+        final DocumentType type = this.type;
+        return file -> file instanceof Document && ((Document) file).getType() == type;
+    }
+
+    @Override
+    InodePredicate buildInodePredicate() {
+        if (type == null) {
+            return (table, inode) -> false;
+        }
+        final byte ordinal = (byte) type.ordinal();
+        return (table, inode) -> table.getType(inode) == ordinal;
+    }
+
+    @Override
+    public long estimateCandidates(FileIndex index) {
+        return type == null ? 0 : index.countDocumentsOfType(type);
+    }
+
+    @Override
+    void collectCandidates(FileIndex index, Set<File> into) {
+        if (type != null) {
+            index.collectDocumentsOfType(type, into);
+        }
+    }
+
+    @Override
+    double getCost() {
+        return 2;
+    }
+
+    @Override
+    double getSelectivity() {
+        // one of four document types.
+        return 0.25;
     }
 
     @Override
@@ -2,6 +2,10 @@ package hk.edu.polyu.comp.comp2021.cvfs.model.criteria;
 
 import hk.edu.polyu.comp.comp2021.cvfs.model.Document;
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.InodePredicate;
+import hk.edu.polyu.comp.comp2021.cvfs.model.InodeTable;
+
+import java.util.function.Predicate;
 
 /**
  * Criterion to check if a file is a documebnt
@@ -19,6 +23,16 @@ public class IsDocumentCriterion extends SimpleCriterion{
         return file instanceof Document;
     }
 
+    @Override
+    Predicate<File> buildPredicate() {
+        return file -> file instanceof Document;
+    }
+
+    @Override
+    InodePredicate buildInodePredicate() {
+        return (table, inode) -> table.getType(inode) != InodeTable.DIRECTORY;
+    }
+
     @Override
     public String toString() {
         return "IsDocument";
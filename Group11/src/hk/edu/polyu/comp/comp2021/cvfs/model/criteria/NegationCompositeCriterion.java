@@ -1,6 +1,9 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model.criteria;
 
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.InodePredicate;
+
+import java.util.function.Predicate;
 
 /**
  * Composite criterion built off from other criteria.
@@ -24,6 +27,27 @@ public class NegationCompositeCriterion extends FileCriterion {
         return !this.targetCriterion.validateFile(file);
     }
 
+    @Override
+    Predicate<File> buildPredicate() {
+        return targetCriterion.compile().negate();
+    }
+
+    @Override
+    InodePredicate buildInodePredicate() {
+        final InodePredicate target = targetCriterion.compileForInodes();
+        return (table, inode) -> !target.test(table, inode);
+    }
+
+    @Override
+    double getCost() {
+        return targetCriterion.getCost();
+    }
+
+    @Override
+    double getSelectivity() {
+        return 1 - targetCriterion.getSelectivity();
+    }
+
     @Override
     public String toString() {
         return "Negation of: " + targetCriterion;
@@ -0,0 +1,42 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.criteria;
+
+/**
+ * The comparison operators a size criterion can use.
+ */
+enum SizeOperator {
+    GREATER(">", 0.5),
+    LESS("<", 0.5),
+    GREATER_OR_EQUAL(">=", 0.5),
+    LESS_OR_EQUAL("<=", 0.5),
+    EQUAL("==", 0.1),
+    NOT_EQUAL("!=", 0.9);
+
+    private final String symbol;
+    private final double selectivity;
+
+    SizeOperator(String symbol, double selectivity) {
+        this.symbol = symbol;
+        this.selectivity = selectivity;
+    }
+
+    /**
+     * @return The estimated share of files a comparison with this operator lets through.
+     */
+    double getSelectivity() {
+        return selectivity;
+    }
+
+    /**
+     * @param symbol The operator as written in a command, such as {@code >=}.
+     * @return The operator.
+     * @throws IllegalArgumentException if the symbol is not an operator.
+     */
+    static SizeOperator fromSymbol(String symbol) throws IllegalArgumentException {
+        for (SizeOperator operator : values()) {
+            if (operator.symbol.equals(symbol)) {
+                return operator;
+            }
+        }
+        throw new IllegalArgumentException("The provided operator is invalid: " + symbol);
+    }
+}
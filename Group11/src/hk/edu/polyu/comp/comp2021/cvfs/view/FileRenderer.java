@@ -0,0 +1,264 @@
+package hk.edu.polyu.comp.comp2021.cvfs.view;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.Document;
+import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.Names;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes listings of files into a large buffer, and from there to a writer in big chunks.
+ *
+ * A listing is started with {@link #begin}, given its files one at a time with {@link #file},
+ * and ended with {@link #end}, which writes the totals and flushes. The header is only written
+ * with the first file or the end, so a listing that fails at once, ended with {@link #abort},
+ * leaves nothing behind. Each file is written piece by piece, its name unpacked into a reused
+ * buffer, so no string is built for it, and its size is read once. A streaming listing is also
+ * flushed every {@link #STREAM_CHUNK} files, so a tool reading it sees the files of a long walk
+ * as they are found rather than all at the end.
+ */
+public final class FileRenderer {
+    /**
+     * The number of files written between flushes of a streaming listing.
+     */
+    public static final int STREAM_CHUNK = 4096;
+
+    // the indentation of level 0 is two spaces, and each level down adds two more.
+    private static final int INDENT_WIDTH = 2;
+
+    private final Writer out;
+
+    // spaces enough for the deepest indentation so far, written as a prefix of the right width.
+    private char[] indents = new char[64];
+
+    // the digits of a number, written backwards from the end.
+    private final char[] digits = new char[20];
+
+    // the characters of a name, unpacked from its long.
+    private final char[] nameChars = new char[Names.MAX_PACKED_LENGTH];
+
+    private OutputFormat format;
+    private String pendingHeader;
+    private boolean streaming;
+    private long fileCount;
+    private long totalSize;
+
+    /**
+     * Constructor.
+     *
+     * @param out Where the listings are written. It should be buffered; it is flushed at the end of
+     *            each listing and every chunk of a streaming one.
+     */
+    public FileRenderer(Writer out) {
+        this.out = out;
+        Arrays.fill(indents, ' ');
+    }
+
+    /**
+     * Start a listing.
+     *
+     * @param format The format of the listing.
+     * @param header The header of the listing, written in the text format only.
+     * @param streaming Whether to flush in chunks while the files are written.
+     */
+    public void begin(OutputFormat format, String header, boolean streaming) {
+        this.format = format;
+        this.streaming = streaming;
+        this.fileCount = 0;
+        this.totalSize = 0;
+        this.pendingHeader = format == OutputFormat.TEXT ? header : null;
+    }
+
+    /**
+     * Write a file of the listing.
+     *
+     * @param level The level of the file, 0 for a file of the directory listed.
+     * @param file The file.
+     */
+    public void file(int level, File file) {
+        writeHeader();
+        long size = file.getSize();
+        boolean isDocument = file instanceof Document;
+        String type = isDocument ? ((Document) file).getType().getName() : null;
+        switch (format) {
+            case TEXT:
+                indent(level);
+                write(isDocument ? "[Doc] Name: " : "[Dir] Name: ");
+                writeName(file);
+                if (isDocument) {
+                    write(", Type: ");
+                    write(type);
+                }
+                write(", Size: ");
+                write(size);
+                write(" bytes");
+                break;
+            case TSV:
+                write(level);
+                write(isDocument ? "\tdoc\t" : "\tdir\t");
+                writeName(file);
+                write('\t');
+                if (isDocument) {
+                    write(type);
+                }
+                write('\t');
+                write(size);
+                break;
+            default:
+                write("{\"level\":");
+                write(level);
+                write(isDocument ? ",\"kind\":\"doc\",\"name\":" : ",\"kind\":\"dir\",\"name\":");
+                // names are letters and digits only, so they need no escaping.
+                write('"');
+                writeName(file);
+                write('"');
+                if (isDocument) {
+                    write(",\"type\":");
+                    writeJsonString(type);
+                }
+                write(",\"size\":");
+                write(size);
+                write('}');
+        }
+        newLine();
+
+        fileCount++;
+        totalSize = totalSize + size;
+        if (streaming && fileCount % STREAM_CHUNK == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * End the listing, writing its totals in the text format, and flush it.
+     *
+     * @param sizeLabel The label of the total size, such as "Total Size".
+     * @param printTotals Whether to write the totals of the text format.
+     */
+    public void end(String sizeLabel, boolean printTotals) {
+        writeHeader();
+        if (format == OutputFormat.TEXT && printTotals) {
+            newLine();
+            write("Total Number of Files: ");
+            write(fileCount);
+            newLine();
+            write(sizeLabel);
+            write(": ");
+            write(totalSize);
+            write(" bytes");
+            newLine();
+            newLine();
+        }
+        flush();
+    }
+
+    /**
+     * End a listing that failed, flushing the files written so far without the totals.
+     */
+    public void abort() {
+        flush();
+    }
+
+    /**
+     * @return The number of files written since the listing began.
+     */
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    private void writeHeader() {
+        if (pendingHeader != null) {
+            write(pendingHeader);
+            newLine();
+            pendingHeader = null;
+        }
+    }
+
+    private void indent(int level) {
+        int width = (level + 1) * INDENT_WIDTH;
+        if (indents.length < width) {
+            indents = new char[Math.max(width, indents.length * 2)];
+            Arrays.fill(indents, ' ');
+        }
+        write(indents, width);
+    }
+
+    private void write(long value) {
+        // write the digits backwards into the scratch buffer, negating to cover Long.MIN_VALUE.
+        int position = digits.length;
+        long remaining = value < 0 ? value : -value;
+        do {
+            digits[--position] = (char) ('0' - remaining % 10);
+            remaining = remaining / 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            write('-');
+        }
+        try {
+            out.write(digits, position, digits.length - position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeName(File file) {
+        write(nameChars, Names.unpack(file.getPackedName(), nameChars));
+    }
+
+    private void writeJsonString(String text) {
+        write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                write('\\');
+                write(c);
+            } else if (c < ' ') {
+                write("\\u00");
+                write(Character.forDigit(c >> 4, 16));
+                write(Character.forDigit(c & 15, 16));
+            } else {
+                write(c);
+            }
+        }
+        write('"');
+    }
+
+    private void newLine() {
+        write(System.lineSeparator());
+    }
+
+    private void write(String text) {
+        try {
+            out.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(char c) {
+        try {
+            out.write(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(char[] chars, int length) {
+        try {
+            out.write(chars, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package hk.edu.polyu.comp.comp2021.cvfs.view;
+
+/**
+ * How listings of files are written.
+ */
+public enum OutputFormat {
+    /**
+     * For people: one indented line per file, followed by the totals.
+     */
+    TEXT("text"),
+
+    /**
+     * For tools: one line per file with its level, kind, name, type and size, separated by tabs.
+     * Directories have an empty type. There is no header and no totals.
+     */
+    TSV("tsv"),
+
+    /**
+     * For tools: one JSON object per line with the level, kind, name, type and size of a file.
+     * Directories have no type. There is no header and no totals.
+     */
+    JSON("json");
+
+    private final String name;
+
+    OutputFormat(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the format, as given in a command.
+     */
+    public String getName() {
+        return name;
+    }
+}
@@ -1,16 +1,38 @@
 package hk.edu.polyu.comp.comp2021.cvfs.view;
 
 import hk.edu.polyu.comp.comp2021.cvfs.controller.CommandController;
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.LatencyHistogram;
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.MetricsRegistry;
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.OperationMetrics;
 import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
 import hk.edu.polyu.comp.comp2021.cvfs.model.File;
+import hk.edu.polyu.comp.comp2021.cvfs.model.FileVisitor;
 import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.FileCriterion;
 
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * The CVFS user interface.
  */
 public class UI {
+    // the number of errors of a batch printed in its summary.
+    private static final int MAX_BATCH_ERRORS = 20;
+
+    // the number of callers holding messages back, and the errors held back meanwhile.
+    private static int outputDeferrals;
+    private static final List<String> deferredErrors = new ArrayList<>();
+
+    // the size of the buffer listings are written into before they reach the console.
+    private static final int LISTING_BUFFER_SIZE = 1 << 16;
+
+    // writes the listings, reused for as long as the console stays the same.
+    private static PrintStream listingConsole;
+    private static FileRenderer listingRenderer;
+
     private final CommandController commandController;
 
 
@@ -56,27 +78,83 @@ public class UI {
      * @param message message to be printed.
      */
     public static void printSuccess(String message){
+        if (outputDeferrals > 0) {
+            return;
+        }
         System.out.println("\nSuccess: " + message + "\n");
     }
 
+    /**
+     * Hold success and error messages back until {@link #resumeOutput()}, such as while a batch of
+     * commands runs. Success messages are dropped, and errors kept for {@link #takeDeferredErrors()}.
+     * Listings asked for are still printed.
+     */
+    public static void deferOutput() {
+        outputDeferrals++;
+    }
+
+    /**
+     * Print messages again, once every caller of {@link #deferOutput()} has resumed.
+     */
+    public static void resumeOutput() {
+        outputDeferrals--;
+    }
+
+    /**
+     * @return The errors held back since this was last called.
+     */
+    public static List<String> takeDeferredErrors() {
+        if (deferredErrors.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> errors = new ArrayList<>(deferredErrors);
+        deferredErrors.clear();
+        return errors;
+    }
+
+    /**
+     * Print the summary of a batch of commands.
+     * @param commands The number of commands run.
+     * @param errors The errors, each prefixed with the line of the command.
+     * @param elapsedNanos The time the batch took.
+     */
+    public static void printBatchReport(long commands, List<String> errors, long elapsedNanos) {
+        System.out.println("--- Batch -----");
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Ran %d commands in %.3f s (%.0f commands/s), %d failed%n",
+                commands, seconds, seconds > 0 ? commands / seconds : 0.0, errors.size());
+        int shown = Math.min(errors.size(), MAX_BATCH_ERRORS);
+        for (int i = 0; i < shown; i++) {
+            System.out.println("  " + errors.get(i));
+        }
+        if (errors.size() > shown) {
+            System.out.println("  ... and " + (errors.size() - shown) + " more errors");
+        }
+        System.out.println();
+    }
+
     /**
      * Print files to the console.
      * @param fileList list of files returned.
      */
     public static void printFileList(List<File> fileList){
-        // print the files in the current working directory, also compute the
+        printFileList(fileList, OutputFormat.TEXT);
+    }
+
+    /**
+     * Print files to the console.
+     * @param fileList list of files returned.
+     * @param format The format to print them in.
+     */
+    public static void printFileList(List<File> fileList, OutputFormat format){
+        // print the files in the current working directory, the renderer computes the
         // total size during iteration.
-        System.out.println("--- List Files -----");
-        long totalSize = 0;
+        FileRenderer renderer = listingRenderer();
+        renderer.begin(format, "--- List Files -----", false);
         for (File file : fileList) {
-            System.out.println(file);
-            totalSize = file.getSize() + totalSize;
+            renderer.file(0, file);
         }
-
-        System.out.println();
-        System.out.println("Total Number of Files: " + fileList.size());
-        System.out.println("Total File Sizes: " + totalSize + " bytes");
-        System.out.println();
+        renderer.end("Total File Sizes", true);
     }
 
     /**
@@ -89,44 +167,88 @@ public class UI {
     }
 
     /**
-     * createSimpleCriterion
-     * Print a file with a level.
-     *
-     * @param level The level.
-     * @param file  The file to be printed.
+     * @param fileBuckets Buckets of files.
      */
-    private static void printFileWithLevel(int level, File file) {
-        for (int i = 0; i <= level; i++) {
-            System.out.print("  ");
+    public static void printFilesRecursively(List<CVFS.Bucket> fileBuckets) {
+        // print files in the buckets provided.
+        FileRenderer renderer = listingRenderer();
+        renderer.begin(OutputFormat.TEXT, "--- List Files Recursively -----", false);
+        for (CVFS.Bucket fileBucket : fileBuckets) {
+            for (File file : fileBucket.getFiles()) {
+                renderer.file(fileBucket.getLevel(), file);
+            }
         }
-        System.out.println(file);
+        renderer.end("Total Size", !fileBuckets.isEmpty());
     }
 
     /**
-     * @param fileBuckets Buckets of files.
+     * Print files as a walk of a directory tree reaches them, without collecting them first.
+     * @param walk Walks the tree, handing each file to the visitor it is given.
      */
-    public static void printFilesRecursively(List<CVFS.Bucket> fileBuckets) {
-        // print files in the buckets provided.
-        System.out.println("--- List Files Recursively -----");
-        if (fileBuckets.isEmpty()) {
-            return;
-        }
+    public static void printFilesRecursively(Consumer<FileVisitor> walk) {
+        printFilesRecursively(walk, OutputFormat.TEXT);
+    }
 
-        long totalSize = 0;
-        long totalFileCount = 0;
+    /**
+     * Print files as a walk of a directory tree reaches them, without collecting them first. The
+     * listing is flushed in chunks, so a long walk shows up while it goes on.
+     * @param walk Walks the tree, handing each file to the visitor it is given.
+     * @param format The format to print them in.
+     */
+    public static void printFilesRecursively(Consumer<FileVisitor> walk, OutputFormat format) {
+        // the renderer counts the files and their total size while printing them.
+        FileRenderer renderer = listingRenderer();
+        renderer.begin(format, "--- List Files Recursively -----", true);
+        try {
+            walk.accept((level, file) -> {
+                renderer.file(level, file);
+                return true;
+            });
+        } catch (RuntimeException e) {
+            renderer.abort();
+            throw e;
+        }
+        renderer.end("Total Size", renderer.getFileCount() > 0);
+    }
 
-        for (CVFS.Bucket fileBucket : fileBuckets) {
-            for (File file : fileBucket.getFiles()) {
-                printFileWithLevel(fileBucket.getLevel(), file);
+    /**
+     * @return The renderer of listings to the console, made again if the console was replaced.
+     */
+    private static FileRenderer listingRenderer() {
+        if (listingRenderer == null || listingConsole != System.out) {
+            listingConsole = System.out;
+            listingRenderer = new FileRenderer(
+                    new BufferedWriter(new OutputStreamWriter(listingConsole), LISTING_BUFFER_SIZE));
+        }
+        return listingRenderer;
+    }
 
-                totalSize = totalSize + file.getSize();
-                totalFileCount++;
+    /**
+     * Print the metrics: calls, errors and latencies of each operation that ran, and the gauges.
+     * @param registry The metrics.
+     */
+    public static void printStats(MetricsRegistry registry) {
+        System.out.println("--- Operations -----");
+        System.out.printf("%-32s %10s %8s %12s %12s %12s %12s%n",
+                "operation", "count", "errors", "mean (us)", "p50 (us)", "p99 (us)", "max (us)");
+        for (OperationMetrics operation : registry.getOperations().values()) {
+            if (operation.getCount() == 0) {
+                continue;
             }
+            LatencyHistogram latencies = operation.getLatencies();
+            System.out.printf("%-32s %10d %8d %12.1f %12.1f %12.1f %12.1f%n",
+                    operation.getName(), operation.getCount(), operation.getErrors(),
+                    operation.getMeanNanos() / 1000.0,
+                    latencies.getValueAtQuantile(0.5) / 1000.0,
+                    latencies.getValueAtQuantile(0.99) / 1000.0,
+                    latencies.getMax() / 1000.0);
         }
 
         System.out.println();
-        System.out.println("Total Number of Files: " + totalFileCount);
-        System.out.println("Total Size: " + totalSize + " bytes");
+        System.out.println("--- Gauges -----");
+        for (Map.Entry<String, Long> gauge : registry.readGauges().entrySet()) {
+            System.out.printf("%-32s %10d%n", gauge.getKey(), gauge.getValue());
+        }
         System.out.println();
     }
 
@@ -135,6 +257,10 @@ public class UI {
      * @param message The error message.
      */
     public static void printError(String message){
+        if (outputDeferrals > 0) {
+            deferredErrors.add(message);
+            return;
+        }
         System.out.println("\nError: " + message + "\n");
     }
 
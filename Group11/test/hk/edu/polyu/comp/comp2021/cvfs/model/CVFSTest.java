@@ -1,13 +1,24 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
+import hk.edu.polyu.comp.comp2021.cvfs.controller.CommandController;
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.LatencyHistogram;
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.MetricsRegistry;
+import hk.edu.polyu.comp.comp2021.cvfs.metrics.OperationMetrics;
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.ContentStore;
+import hk.edu.polyu.comp.comp2021.cvfs.model.content.ContentStoreType;
 import hk.edu.polyu.comp.comp2021.cvfs.model.criteria.FileCriterion;
+import hk.edu.polyu.comp.comp2021.cvfs.view.FileRenderer;
+import hk.edu.polyu.comp.comp2021.cvfs.view.OutputFormat;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static org.junit.Assert.*;
 
@@ -101,6 +112,62 @@ public class CVFSTest {
         cvfs.deleteFile("nofile");
     }
 
+    /**
+     * Deleting from the middle of a large directory should keep the other files in the order they
+     * were added, both when listed and when read by position, and keep them all found by name.
+     */
+    @Test
+    public void testDeleteFromLargeDirectory() {
+        cvfs.newDisk(10000000);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            cvfs.newDocument("d" + i, "txt", "");
+            expected.add("d" + i);
+        }
+        Directory dir = cvfs.getVirtualDisk().getCurrentWorkingDirectory();
+
+        // leaves gaps in the list.
+        for (int i = 1000; i < 2000; i++) {
+            cvfs.deleteFile("d" + i);
+        }
+        expected.subList(1000, 2000).clear();
+        assertNames(expected, dir);
+        assertNull(dir.getFile("d1500"));
+        assertNotNull(dir.getFile("d2000"));
+
+        // closes them once they make up half the list, and goes on from there.
+        for (int i = 0; i < 1000; i++) {
+            cvfs.deleteFile("d" + i);
+        }
+        expected.subList(0, 1000).clear();
+        assertNames(expected, dir);
+        cvfs.renameFile("d2500", "renamed");
+        expected.set(500, "renamed");
+        assertNames(expected, dir);
+        cvfs.deleteFile("renamed");
+        cvfs.deleteFile("d2999");
+        expected.remove(999);
+        expected.remove(500);
+        assertNames(expected, dir);
+        cvfs.undo();
+        expected.add("d2999");
+        assertNames(expected, dir);
+    }
+
+    private static void assertNames(List<String> expected, Directory dir) {
+        List<File> files = dir.getFiles();
+        assertEquals(expected.size(), files.size());
+        List<String> names = new ArrayList<>();
+        for (File file : files) {
+            names.add(file.getName());
+        }
+        assertEquals(expected, names);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), files.get(i).getName());
+            assertSame(files.get(i), dir.getFile(expected.get(i)));
+        }
+    }
+
     /**
      * Should rename file successfully.
      */
@@ -112,6 +179,24 @@ public class CVFSTest {
         assertEquals("newname", file.getName());
     }
 
+    /**
+     * A renamed file should only be found under its new name, and keep its place in the listing.
+     */
+    @Test
+    public void testRenameFileLookup() {
+        Directory root = cvfs.getVirtualDisk().getCurrentWorkingDirectory();
+        cvfs.newDirectory("first");
+        cvfs.newDirectory("second");
+        cvfs.renameFile("first", "third");
+        assertNull(cvfs.findFile(root, "first"));
+        assertNotNull(cvfs.findFile(root, "third"));
+        assertEquals("third", cvfs.list().get(0).getName());
+
+        cvfs.undo();
+        assertNull(cvfs.findFile(root, "third"));
+        assertNotNull(cvfs.findFile(root, "first"));
+    }
+
     /**
      * Give an existing name when trying to rename file.
      */
@@ -310,6 +395,232 @@ public class CVFSTest {
         assertEquals(6, rFiles.size());
     }
 
+    /**
+     * Test that compiled criteria match the same files as the criteria they were compiled from.
+     */
+    @Test
+    public void testCompiledCriteria(){
+        cvfs.newDisk(10000);
+        cvfs.newDirectory("dir1");
+        cvfs.newDocument("doc1", "java", "code");
+        cvfs.newDocument("page", "html", "<p>a longer page</p>");
+        cvfs.newDocument("note", "txt", "");
+
+        String[] ops = {">", "<", ">=", "<=", "==", "!="};
+        for (int i = 0; i < ops.length; i++) {
+            cvfs.createSimpleCriterion("s" + i, "size", ops[i], "48");
+        }
+        cvfs.createSimpleCriterion("n1", "name", "contains", "\"o\"");
+        cvfs.createSimpleCriterion("t1", "type", "equals", "\"java\"");
+        cvfs.createNegationCriterion("n2", "n1");
+        cvfs.createBinaryCriterion("b1", "n1", "t1", "&&");
+        cvfs.createBinaryCriterion("b2", "s0", "n2", "||");
+        cvfs.createBinaryCriterion("b3", "b1", "IsDocument", "&&");
+
+        for (FileCriterion criterion : cvfs.getAllCriteria()) {
+            Predicate<File> predicate = criterion.compile();
+            assertSame(predicate, criterion.compile());
+            for (File file : cvfs.list()) {
+                assertEquals(criterion.getName() + " on " + file.getName(),
+                        criterion.validateFile(file), predicate.test(file));
+            }
+        }
+        assertEquals(1, cvfs.searchByCriterion("b3").size());
+    }
+
+    /**
+     * Test that searches using the secondary indexes find the same files, in the same order, as scans.
+     */
+    @Test
+    public void testIndexedSearch(){
+        cvfs.newDisk(100000);
+        for (int d = 0; d < 3; d++) {
+            cvfs.newDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int i = 0; i < 20; i++) {
+                cvfs.newDocument("doc" + i, i % 4 == 0 ? "html" : "txt", i % 5 == 0 ? "long content" : "x");
+            }
+            cvfs.newDirectory("pages");
+            cvfs.changeDir("pages");
+            cvfs.newDocument("index" + d, "html", "<p/>");
+            cvfs.changeDir("..");
+            cvfs.changeDir("..");
+        }
+        cvfs.createSimpleCriterion("t1", "type", "equals", "\"html\"");
+        cvfs.createSimpleCriterion("n1", "name", "contains", "\"dex\"");
+        cvfs.createSimpleCriterion("s1", "size", "==", "64");
+        cvfs.createBinaryCriterion("b1", "t1", "n1", "&&");
+        String[] criteria = {"t1", "n1", "s1", "b1"};
+
+        List<String> scanned = new ArrayList<>();
+        for (String criterion : criteria) {
+            scanned.add(describe(cvfs.searchRecursivelyByCriterion(criterion)));
+        }
+
+        cvfs.enableIndexes();
+        assertNotNull(cvfs.getVirtualDisk().getIndex());
+        for (int i = 0; i < criteria.length; i++) {
+            assertEquals(scanned.get(i), describe(cvfs.searchRecursivelyByCriterion(criteria[i])));
+        }
+
+        // the estimates come from the sizes of the index entries, and never fall short of the candidates.
+        FileIndex index = cvfs.getVirtualDisk().getIndex();
+        Map<String, FileCriterion> criteriaByName = cvfs.getVirtualDisk().getCriteriaMap();
+        assertEquals(18, criteriaByName.get("t1").estimateCandidates(index));
+        assertEquals(3, criteriaByName.get("n1").estimateCandidates(index));
+        assertEquals(3, criteriaByName.get("b1").estimateCandidates(index));
+        assertEquals(3, criteriaByName.get("b1").findCandidates(index).size());
+        assertTrue(criteriaByName.get("s1").estimateCandidates(index) >= criteriaByName.get("s1").findCandidates(index).size());
+        cvfs.createSimpleCriterion("s2", "size", "!=", "64");
+        cvfs.createBinaryCriterion("b2", "t1", "s2", "||");
+        assertEquals(-1, criteriaByName.get("b2").estimateCandidates(index));
+        assertNull(criteriaByName.get("b2").findCandidates(index));
+
+        // the indexes follow renames and deletes.
+        cvfs.changeDir("dir1");
+        cvfs.changeDir("pages");
+        cvfs.renameFile("index1", "home");
+        assertEquals(0, cvfs.searchByCriterion("n1").size());
+        cvfs.changeDir("..");
+        cvfs.changeDir("..");
+        cvfs.deleteFile("dir2");
+        assertEquals("2:index0", describe(cvfs.searchRecursivelyByCriterion("b1")));
+    }
+
+    private static String describe(List<CVFS.Bucket> buckets) {
+        StringBuilder builder = new StringBuilder();
+        for (CVFS.Bucket bucket : buckets) {
+            for (File file : bucket.getFiles()) {
+                builder.append(bucket.getLevel()).append(':').append(file.getName()).append(' ');
+            }
+        }
+        return builder.toString().trim();
+    }
+
+    /**
+     * Test walking the working directory depth first, with early termination.
+     */
+    @Test
+    public void testWalk(){
+        cvfs.newDisk(10000);
+        cvfs.newDirectory("a");
+        cvfs.newDocument("top", "txt", "");
+        cvfs.changeDir("a");
+        cvfs.newDirectory("b");
+        cvfs.newDocument("mid", "txt", "");
+        cvfs.changeDir("b");
+        cvfs.newDocument("low", "html", "");
+        cvfs.changeDir("..");
+        cvfs.changeDir("..");
+
+        List<String> visited = new ArrayList<>();
+        assertTrue(cvfs.walk((level, file) -> visited.add(level + ":" + file.getName())));
+        assertEquals("[0:a, 1:b, 2:low, 1:mid, 0:top]", visited.toString());
+
+        // stop at the first document.
+        visited.clear();
+        assertFalse(cvfs.walk((level, file) -> {
+            visited.add(file.getName());
+            return file instanceof Directory;
+        }));
+        assertEquals("[a, b, low]", visited.toString());
+
+        cvfs.createSimpleCriterion("t1", "type", "equals", "\"txt\"");
+        visited.clear();
+        cvfs.searchRecursivelyByCriterion("t1", (level, file) -> visited.add(level + ":" + file.getName()));
+        assertEquals("[1:mid, 0:top]", visited.toString());
+    }
+
+    /**
+     * Test that parallel listing and searching give the same buckets, in the same order, as a single thread.
+     */
+    @Test
+    public void testParallelTraversal(){
+        cvfs.newDisk(1000000);
+        for (int d = 0; d < 6; d++) {
+            cvfs.newDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int e = 0; e < d; e++) {
+                cvfs.newDirectory("sub" + e);
+                cvfs.changeDir("sub" + e);
+                for (int i = 0; i < 10; i++) {
+                    cvfs.newDocument("doc" + i, i % 3 == 0 ? "java" : "txt", "x");
+                }
+                cvfs.changeDir("..");
+            }
+            cvfs.newDocument("read" + d, "txt", "");
+            cvfs.changeDir("..");
+        }
+        cvfs.createSimpleCriterion("t1", "type", "equals", "\"java\"");
+
+        String listed = describe(cvfs.rList());
+        String searched = describe(cvfs.searchRecursivelyByCriterion("t1"));
+
+        cvfs.enableParallelTraversal(100);
+        assertEquals(listed, describe(cvfs.rList()));
+        assertEquals(searched, describe(cvfs.searchRecursivelyByCriterion("t1")));
+        assertEquals(6 + 15 + 15 * 10 + 6, cvfs.rList().stream().mapToInt(b -> b.getFiles().size()).sum());
+    }
+
+    /**
+     * Test that walks and searches over the inode table find the same files, in the same order, as
+     * walks of the directories, and that the table follows changes to the tree.
+     */
+    @Test
+    public void testInodeScans(){
+        cvfs.newDisk(1000000);
+        for (int d = 0; d < 4; d++) {
+            cvfs.newDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int i = 0; i < 8; i++) {
+                cvfs.newDocument("doc" + i, i % 3 == 0 ? "java" : "txt", i % 2 == 0 ? "xx" : "");
+            }
+            if (d % 2 == 0) {
+                cvfs.newDirectory("sub");
+            }
+            cvfs.changeDir("..");
+        }
+        cvfs.createSimpleCriterion("t1", "type", "equals", "\"java\"");
+        cvfs.createSimpleCriterion("s1", "size", ">", "40");
+        cvfs.createSimpleCriterion("n1", "name", "contains", "\"oc\"");
+        cvfs.createBinaryCriterion("b1", "t1", "s1", "&&");
+        cvfs.createNegationCriterion("x1", "n1");
+        String[] criteria = {"t1", "s1", "n1", "b1", "x1", "IsDocument"};
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("walk", visitAll(null));
+        for (String criterion : criteria) {
+            expected.put(criterion, visitAll(criterion));
+        }
+
+        cvfs.enableInodeScans();
+        assertEquals(expected.get("walk"), visitAll(null));
+        for (String criterion : criteria) {
+            assertEquals(expected.get(criterion), visitAll(criterion));
+        }
+
+        // the table is built again after a change, and scans start in the working directory.
+        cvfs.changeDir("dir2");
+        cvfs.deleteFile("doc0");
+        cvfs.renameFile("doc3", "moved");
+        String changed = visitAll("t1");
+        assertEquals("[0:moved, 0:doc6]", changed);
+        InodeTable table = cvfs.getVirtualDisk().getInodeTable();
+        assertSame(table, cvfs.getVirtualDisk().getInodeTable());
+        assertEquals(1 + 4 + 4 * 8 + 2 - 1, table.getCount());
+    }
+
+    private String visitAll(String criterionName) {
+        List<String> visited = new ArrayList<>();
+        FileVisitor visitor = (level, file) -> visited.add(level + ":" + file.getName());
+        if (criterionName == null) {
+            cvfs.walk(visitor);
+        } else {
+            cvfs.searchRecursivelyByCriterion(criterionName, visitor);
+        }
+        return visited.toString();
+    }
+
     /**
      * Test search files invalid criterion.
      */
@@ -327,6 +638,43 @@ public class CVFSTest {
         cvfs.newDocument("doc", "java", "some sample content");
     }
 
+    /**
+     * The disk quota is counted from the root, not from the working directory.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testExceedDiskSizeFromSubDirectory(){
+        cvfs.newDisk(200);
+        cvfs.newDirectory("web");
+        cvfs.newDocument("index", "html", "0123456789012345");
+        cvfs.changeDir("web");
+        cvfs.newDocument("style", "css", "012345");
+    }
+
+    /**
+     * Test that the used disk size follows creation, deletion and undo/redo.
+     */
+    @Test
+    public void testUsedDiskSize(){
+        VirtualDisk disk = cvfs.getVirtualDisk();
+        assertEquals(File.EMPTY_DIR_SIZE, disk.getUsedSize());
+
+        cvfs.newDirectory("web");
+        cvfs.changeDir("web");
+        cvfs.newDocument("index", "html", "code");
+        cvfs.changeDir("..");
+
+        Directory web = (Directory) cvfs.findFile(disk.getCurrentWorkingDirectory(), "web");
+        assertEquals(2 * File.EMPTY_DIR_SIZE + 8, web.getSize());
+        assertEquals(3 * File.EMPTY_DIR_SIZE + 8, disk.getUsedSize());
+
+        cvfs.deleteFile("web");
+        assertEquals(File.EMPTY_DIR_SIZE, disk.getUsedSize());
+        cvfs.undo();
+        assertEquals(3 * File.EMPTY_DIR_SIZE + 8, disk.getUsedSize());
+        cvfs.redo();
+        assertEquals(File.EMPTY_DIR_SIZE, disk.getUsedSize());
+    }
+
     /**
      * Test the undo/redo feature.
      */
@@ -392,6 +740,266 @@ public class CVFSTest {
         assertTrue(cvfs.getVirtualDisk().getCriteriaMap().containsKey("ca"));
     }
 
+    /**
+     * Test that the history drops its oldest actions once full, merges consecutive
+     * directory changes, and drops undone actions on a new one.
+     */
+    @Test
+    public void testBoundedHistory(){
+        cvfs.setHistoryLimits(3, 1000);
+        cvfs.newDirectory("a");
+        cvfs.changeDir("a");
+        cvfs.newDirectory("b");
+        cvfs.changeDir("b");
+        cvfs.changeDir("..");
+        cvfs.changeDir("b");
+
+        // the three directory changes are undone at once.
+        cvfs.undo();
+        assertEquals("root:a", cvfs.getWorkingDirPath());
+        cvfs.redo();
+        assertEquals("root:a:b", cvfs.getWorkingDirPath());
+
+        // only three actions are kept, so creating 'a' cannot be undone.
+        cvfs.undo();
+        cvfs.undo();
+        cvfs.undo();
+        assertEquals("root", cvfs.getWorkingDirPath());
+        assertIllegalState(cvfs::undo);
+        assertNotNull(cvfs.findFile(cvfs.getVirtualDisk().getCurrentWorkingDirectory(), "a"));
+
+        // a new action drops the undone ones.
+        cvfs.newDocument("doc", "txt", "text");
+        assertIllegalState(cvfs::redo);
+
+        // actions keeping more bytes reachable than allowed are dropped as well.
+        cvfs.setHistoryLimits(3, 100);
+        cvfs.newDocument("big", "txt", "a document longer than the bytes the history may keep reachable");
+        cvfs.undo();
+        assertIllegalState(cvfs::undo);
+    }
+
+    /**
+     * Test that the history only counts the bytes the file tree does not keep reachable.
+     */
+    @Test
+    public void testHistoryRetainedBytes(){
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        cvfs.registerGauges(registry);
+        cvfs.newDocument("doc", "txt", "some text");
+        long size = cvfs.findFile(cvfs.getVirtualDisk().getRootDirectory(), "doc").getSize();
+        long created = registry.readGauges().get("history.retainedBytes");
+
+        // once undone, only the history keeps the document.
+        cvfs.undo();
+        assertEquals(created + size, (long) registry.readGauges().get("history.retainedBytes"));
+        cvfs.redo();
+        assertEquals(created, (long) registry.readGauges().get("history.retainedBytes"));
+
+        // a deleted document is kept by the history until the delete is undone.
+        cvfs.deleteFile("doc");
+        long deleted = registry.readGauges().get("history.retainedBytes");
+        assertEquals(2 * created + size, deleted);
+        cvfs.undo();
+        assertEquals(2 * created, (long) registry.readGauges().get("history.retainedBytes"));
+    }
+
+    /**
+     * Test that the commands of an undo unit are undone and redone together.
+     */
+    @Test
+    public void testUndoUnit(){
+        cvfs.newDirectory("before");
+        cvfs.beginUndoUnit();
+        cvfs.newDirectory("dir");
+        cvfs.changeDir("dir");
+        cvfs.newDocument("doc", "txt", "text");
+        cvfs.changeDir("..");
+        cvfs.renameFile("dir", "renamed");
+        cvfs.endUndoUnit();
+
+        Directory root = cvfs.getVirtualDisk().getRootDirectory();
+        cvfs.undo();
+        assertEquals(1, root.getFiles().size());
+        assertNotNull(cvfs.findFile(root, "before"));
+        cvfs.redo();
+        assertEquals(2, root.getFiles().size());
+        Directory renamed = (Directory) cvfs.findFile(root, "renamed");
+        assertNotNull(renamed.getFile("doc"));
+
+        cvfs.undo();
+        cvfs.undo();
+        assertEquals(0, root.getFiles().size());
+    }
+
+    /**
+     * Test that a snapshot keeps the files, names and sizes of the moment it was taken.
+     */
+    @Test
+    public void testSnapshot(){
+        cvfs.newDisk(10000);
+        cvfs.newDirectory("dir");
+        cvfs.newDocument("doc", "txt", "before");
+        cvfs.changeDir("dir");
+        cvfs.newDocument("inner", "java", "code");
+        cvfs.changeDir("..");
+        long usedSize = cvfs.getVirtualDisk().getUsedSize();
+        cvfs.takeSnapshot("s1");
+
+        cvfs.renameFile("doc", "renamed");
+        cvfs.changeDir("dir");
+        cvfs.deleteFile("inner");
+        cvfs.newDocument("added", "css", "more content");
+        cvfs.changeDir("..");
+        cvfs.takeSnapshot("s2");
+
+        List<String> s1 = new ArrayList<>();
+        cvfs.searchSnapshot("s1", null, (level, file) -> s1.add(level + file.getName() + file.getSize()));
+        assertEquals("[0dir88, 1inner48, 0doc52]", s1.toString());
+        assertEquals(usedSize, cvfs.getVirtualDisk().getSnapshot("s1").getUsedSize());
+        Directory frozenDir = (Directory) cvfs.getVirtualDisk().getSnapshot("s1").getRootDirectory().getFile("dir");
+        assertEquals("code", ((Document) frozenDir.getFile("inner")).getContent());
+
+        List<String> s2 = new ArrayList<>();
+        cvfs.searchSnapshot("s2", "IsDocument", (level, file) -> s2.add(file.getName()));
+        assertEquals("[added, renamed]", s2.toString());
+
+        cvfs.dropSnapshot("s1");
+        try {
+            cvfs.searchSnapshot("s1", null, (level, file) -> true);
+            fail("The snapshot should be dropped");
+        } catch (IllegalArgumentException e) {
+            assertEquals("No snapshot found with name: s1", e.getMessage());
+        }
+    }
+
+    private static void assertIllegalState(Runnable action) {
+        try {
+            action.run();
+            fail("The action should not be possible");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Document content kept off-heap should read back intact, and its space
+     * should be released on delete and on switching disks.
+     */
+    @Test
+    public void testDirectContentStore(){
+        cvfs.setContentStoreType(ContentStoreType.DIRECT);
+        cvfs.newDisk(1000);
+        ContentStore store = cvfs.getVirtualDisk().getContentStore();
+
+        cvfs.newDocument("doc", "txt", "some text");
+        File doc = cvfs.findFile(cvfs.getVirtualDisk().getCurrentWorkingDirectory(), "doc");
+        assertEquals("some text", ((Document) doc).getContent());
+        assertTrue(store.getUsedBytes() > 0);
+
+        cvfs.deleteFile("doc");
+        assertEquals(0, store.getUsedBytes());
+        cvfs.undo();
+        assertTrue(store.getUsedBytes() > 0);
+        assertEquals("some text", ((Document) doc).getContent());
+
+        cvfs.newDisk(1000);
+        assertEquals("some text", ((Document) doc).getContent());
+        cvfs.undo();
+        assertEquals("some text", ((Document) doc).getContent());
+        assertNotSame(store, cvfs.getVirtualDisk().getContentStore());
+    }
+
+    /**
+     * Documents with the same content should share one copy of it in the content store, released
+     * with the last document holding it, while each still reads back its own content.
+     */
+    @Test
+    public void testContentDeduplication(){
+        for (ContentStoreType type : ContentStoreType.values()) {
+            cvfs.setContentStoreType(type);
+            cvfs.newDisk(100000);
+            VirtualDisk disk = cvfs.getVirtualDisk();
+
+            cvfs.newDocument("a", "css", "body{margin:0}");
+            long single = disk.getPhysicalContentBytes();
+            cvfs.newDocument("b", "css", "body{margin:0}");
+            cvfs.newDirectory("dir");
+            cvfs.changeDir("dir");
+            cvfs.newDocument("c", "css", "body{margin:0}");
+            cvfs.changeDir("..");
+            assertEquals(3 * "body{margin:0}".length(), disk.getLogicalContentBytes());
+            assertEquals(single, disk.getPhysicalContentBytes());
+
+            cvfs.newDocument("d", "txt", "other");
+            assertTrue(disk.getPhysicalContentBytes() > single);
+            cvfs.deleteFile("d");
+            assertEquals(single, disk.getPhysicalContentBytes());
+
+            cvfs.deleteFile("a");
+            cvfs.deleteFile("dir");
+            assertEquals(single, disk.getPhysicalContentBytes());
+            cvfs.deleteFile("b");
+            assertEquals(0, disk.getPhysicalContentBytes());
+            assertEquals(0, disk.getLogicalContentBytes());
+
+            cvfs.undo();
+            cvfs.undo();
+            assertEquals(2 * "body{margin:0}".length(), disk.getLogicalContentBytes());
+            assertEquals(single, disk.getPhysicalContentBytes());
+            cvfs.changeDir("dir");
+            assertEquals("body{margin:0}", ((Document) cvfs.findFile(disk.getCurrentWorkingDirectory(), "c")).getContent());
+            cvfs.changeDir("..");
+            assertEquals("body{margin:0}", ((Document) cvfs.findFile(disk.getCurrentWorkingDirectory(), "b")).getContent());
+        }
+    }
+
+    /**
+     * Large content should be kept compressed and read back intact, while small content and the
+     * sizes of documents stay as they are.
+     */
+    @Test
+    public void testContentCompression(){
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("<p>paragraph ").append(i % 10).append("</p>");
+        }
+        String large = text.toString();
+
+        cvfs.enableCompression(256);
+        for (ContentStoreType type : ContentStoreType.values()) {
+            cvfs.setContentStoreType(type);
+            cvfs.newDisk(100000);
+            VirtualDisk disk = cvfs.getVirtualDisk();
+
+            cvfs.newDocument("small", "txt", "short text");
+            assertEquals(1.0, disk.getCompressionRatio(), 0.0);
+            cvfs.newDocument("page", "html", large);
+            File page = cvfs.findFile(disk.getCurrentWorkingDirectory(), "page");
+            assertEquals(40 + large.length() * 2, page.getSize());
+            assertTrue(disk.getCompressionRatio() > 2);
+            assertTrue(disk.getPhysicalContentBytes() < disk.getLogicalContentBytes() / 2);
+
+            // read twice, the second time from the cache.
+            assertEquals(large, ((Document) page).getContent());
+            assertEquals(large, ((Document) page).getContent());
+            assertEquals("short text", ((Document) cvfs.findFile(disk.getCurrentWorkingDirectory(), "small")).getContent());
+
+            cvfs.deleteFile("page");
+            assertEquals(1.0, disk.getCompressionRatio(), 0.0);
+            cvfs.undo();
+            assertEquals(large, ((Document) page).getContent());
+            assertTrue(disk.getCompressionRatio() > 2);
+        }
+
+        try {
+            cvfs.enableCompression(0);
+            fail("a threshold of 0 should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     /**
      * Test a case where 'undo' is not possible.
      */
@@ -427,6 +1035,682 @@ public class CVFSTest {
         assertEquals(500, cvfs.getVirtualDisk().getMaxSize());
     }
 
+    /**
+     * Storing back to a loaded image should keep the content already in it, and
+     * the tree, content, criteria and working directory should all be read back.
+     * @throws Exception if the image could not be written or read.
+     */
+    @Test
+    public void testStoreAndLoadDiskImage() throws Exception {
+        java.io.File image = java.io.File.createTempFile("cvfs", ".img");
+        try {
+            cvfs.newDisk(2000);
+            cvfs.newDirectory("web");
+            cvfs.changeDir("web");
+            cvfs.newDocument("index", "html", "<p>hello</p>");
+            cvfs.createSimpleCriterion("c1", "type", "equals", "\"html\"");
+            cvfs.store(image.getPath());
+            long imageSize = image.length();
+
+            cvfs.load(image.getPath());
+            assertEquals(2000, cvfs.getVirtualDisk().getMaxSize());
+            assertEquals("root:web", cvfs.getWorkingDirPath());
+            assertTrue(cvfs.getVirtualDisk().getCriteriaMap().containsKey("c1"));
+            Document index = (Document) cvfs.findFile(cvfs.getVirtualDisk().getCurrentWorkingDirectory(), "index");
+            assertEquals("<p>hello</p>", index.getContent());
+
+            cvfs.newDocument("about", "txt", "about us");
+            cvfs.store(image.getPath());
+            // the content is appended, and a new inode table after it, leaving the old one as it was.
+            long appended = imageSize + Integer.BYTES + "about us".length();
+            long tableStart = (appended + DiskImage.PAGE_SIZE - 1) / DiskImage.PAGE_SIZE * DiskImage.PAGE_SIZE;
+            assertEquals(tableStart + DiskImage.PAGE_SIZE, image.length());
+
+            cvfs.load(image.getPath());
+            assertEquals(2, cvfs.list().size());
+            Document about = (Document) cvfs.findFile(cvfs.getVirtualDisk().getCurrentWorkingDirectory(), "about");
+            assertEquals("about us", about.getContent());
+            assertEquals(4 * File.EMPTY_DIR_SIZE + 24 + 16, cvfs.getVirtualDisk().getUsedSize());
+        } finally {
+            image.delete();
+        }
+    }
+
+    /**
+     * A store cut short after writing its blocks, and partway through the header, should leave the
+     * image as the store before left it.
+     * @throws Exception if the image could not be written or read.
+     */
+    @Test
+    public void testStoreInPlaceSurvivesCrash() throws Exception {
+        java.io.File image = java.io.File.createTempFile("cvfs", ".img");
+        try {
+            cvfs.newDisk(2000);
+            cvfs.newDocument("first", "txt", "one");
+            cvfs.store(image.getPath());
+            long firstLength = image.length();
+
+            cvfs.newDocument("second", "txt", "two");
+            cvfs.store(image.getPath());
+            assertTrue(image.length() > firstLength);
+
+            // tear the new header, and lose what was appended for it.
+            try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(image, "rw")) {
+                file.seek(DiskImage.PAGE_SIZE + 16);
+                file.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+                file.setLength(firstLength);
+            }
+
+            CVFS loaded = new CVFS();
+            loaded.load(image.getPath());
+            Directory root = loaded.getVirtualDisk().getRootDirectory();
+            assertEquals(1, root.getFiles().size());
+            assertEquals("one", ((Document) root.getFile("first")).getContent());
+
+            // the next store goes on from the image that is left.
+            loaded.newDocument("third", "txt", "three");
+            loaded.store(image.getPath());
+            CVFS reloaded = new CVFS();
+            reloaded.load(image.getPath());
+            assertEquals(2, reloaded.getVirtualDisk().getRootDirectory().getFiles().size());
+        } finally {
+            image.delete();
+        }
+    }
+
+    /**
+     * A disk read lazily should read its directories only as they are reached, let go of those it
+     * no longer needs, and look the same as the disk read whole throughout.
+     * @throws Exception if the image could not be written or read.
+     */
+    @Test
+    public void testLazyLoading() throws Exception {
+        java.io.File image = java.io.File.createTempFile("cvfs", ".img");
+        try {
+            cvfs.newDisk(100000);
+            for (int d = 0; d < 4; d++) {
+                cvfs.newDirectory("dir" + d);
+                cvfs.changeDir("dir" + d);
+                for (int s = 0; s < 3; s++) {
+                    cvfs.newDirectory("sub" + s);
+                    cvfs.changeDir("sub" + s);
+                    cvfs.newDocument("doc", "txt", "in " + d + " " + s);
+                    cvfs.changeDir("..");
+                }
+                cvfs.changeDir("..");
+            }
+            cvfs.store(image.getPath());
+            String whole = describe(cvfs.rList());
+
+            CVFS lazy = new CVFS();
+            lazy.enableLazyLoading(3);
+            lazy.load(image.getPath());
+            VirtualDisk disk = lazy.getVirtualDisk();
+            assertEquals(1, disk.getLoadedDirectoryCount());
+            assertEquals(12, disk.getDocumentCount());
+            assertEquals(16, disk.getDirectoryCount());
+            assertEquals(cvfs.getVirtualDisk().getUsedSize(), disk.getUsedSize());
+
+            // a recursive listing reads everything, and then lets go of all but 3 directories.
+            assertEquals(whole, describe(lazy.rList()));
+            assertEquals(3, disk.getLoadedDirectoryCount());
+            assertEquals(whole, describe(lazy.rList()));
+
+            // the directories gone into, and changed, stay loaded.
+            lazy.changeDir("dir2");
+            lazy.changeDir("sub1");
+            Document doc = (Document) lazy.findFile(disk.getCurrentWorkingDirectory(), "doc");
+            assertEquals("in 2 1", doc.getContent());
+            lazy.changeDir("..");
+            lazy.changeDir("..");
+            lazy.changeDir("dir3");
+            lazy.deleteFile("sub0");
+            assertEquals(11, disk.getDocumentCount());
+            lazy.rList();
+            lazy.undo();
+            assertEquals(12, disk.getDocumentCount());
+            lazy.changeDir("..");
+            cvfs.changeDir("dir3");
+            cvfs.deleteFile("sub0");
+            cvfs.undo();
+            cvfs.changeDir("..");
+            assertEquals(describe(cvfs.rList()), describe(lazy.rList()));
+            lazy.changeDir("dir2");
+            lazy.changeDir("sub1");
+            assertSame(doc, lazy.findFile(disk.getCurrentWorkingDirectory(), "doc"));
+
+            // storing a disk read lazily writes a new image, while the disk goes on reading the old one.
+            lazy.changeDir("..");
+            lazy.changeDir("..");
+            lazy.changeDir("dir0");
+            lazy.newDocument("extra", "txt", "added");
+            lazy.store(image.getPath());
+            lazy.changeDir("..");
+            String changed = describe(lazy.rList());
+            assertTrue(changed.contains("1:extra"));
+
+            CVFS reloaded = new CVFS();
+            reloaded.load(image.getPath());
+            reloaded.changeDir("..");
+            assertEquals(changed, describe(reloaded.rList()));
+            assertEquals("added", ((Document) reloaded.findFile(
+                    (Directory) reloaded.findFile(reloaded.getVirtualDisk().getRootDirectory(), "dir0"), "extra")).getContent());
+        } finally {
+            image.delete();
+        }
+    }
+
+    /**
+     * Storing to an image that a disk still reads lazily should write a new file, even when the disk
+     * stored is another one, so that undoing back to the disk read lazily still finds its directories.
+     * @throws Exception if the image could not be written or read.
+     */
+    @Test
+    public void testStoreOverImageReadLazily() throws Exception {
+        java.io.File image = java.io.File.createTempFile("cvfs", ".img");
+        java.io.File control = java.io.File.createTempFile("cvfs", ".img");
+        try {
+            cvfs.newDisk(100000);
+            for (int d = 0; d < 3; d++) {
+                cvfs.newDirectory("dir" + d);
+                cvfs.changeDir("dir" + d);
+                cvfs.newDocument("doc", "txt", "in " + d);
+                cvfs.changeDir("..");
+            }
+            cvfs.store(image.getPath());
+            java.nio.file.Files.copy(image.toPath(), control.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            String whole = describe(cvfs.rList());
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 6000; i++) {
+                large.append((char) ('a' + i % 26));
+            }
+
+            // with nothing reading it, the image is updated in place.
+            CVFS plain = new CVFS();
+            plain.load(control.getPath());
+            plain.newDisk(100000);
+            plain.newDocument("large", "txt", large.toString());
+            Object controlKey = fileKey(control);
+            plain.store(control.getPath());
+            assertEquals(controlKey, fileKey(control));
+
+            // with a disk reading it lazily, it is replaced.
+            CVFS lazy = new CVFS();
+            lazy.enableLazyLoading(2);
+            lazy.load(image.getPath());
+            lazy.newDisk(100000);
+            lazy.newDocument("large", "txt", large.toString());
+            Object imageKey = fileKey(image);
+            lazy.store(image.getPath());
+            assertNotEquals(imageKey, fileKey(image));
+
+            lazy.undo();
+            lazy.undo();
+            assertEquals(whole, describe(lazy.rList()));
+            lazy.changeDir("dir1");
+            assertEquals("in 1", ((Document) lazy.findFile(lazy.getVirtualDisk().getCurrentWorkingDirectory(), "doc")).getContent());
+        } finally {
+            image.delete();
+            control.delete();
+        }
+    }
+
+    private static Object fileKey(java.io.File file) throws java.io.IOException {
+        return java.nio.file.Files.readAttributes(file.toPath(), java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Storing to the same image again should only write the changes as a delta, loading should apply
+     * the deltas, and compacting should fold them back into the image.
+     * @throws Exception if the image could not be written or read.
+     */
+    @Test
+    public void testDeltaStores() throws Exception {
+        java.io.File image = java.io.File.createTempFile("cvfs", ".img");
+        java.nio.file.Path path = image.toPath().toAbsolutePath();
+        try {
+            cvfs.enableDeltaStores(2);
+            cvfs.newDisk(100000);
+            cvfs.newDirectory("web");
+            cvfs.newDocument("readme", "txt", "the whole image");
+            cvfs.store(image.getPath());
+            assertFalse(DeltaImage.pathFor(path, 1).toFile().exists());
+
+            // the second store writes the changes only, next to the image.
+            long imageLength = image.length();
+            cvfs.changeDir("web");
+            cvfs.newDocument("index", "html", "<p>hello</p>");
+            cvfs.renameFile("index", "home");
+            cvfs.store(image.getPath());
+            assertTrue(DeltaImage.pathFor(path, 1).toFile().exists());
+            assertEquals(imageLength, image.length());
+
+            CVFS loaded = new CVFS();
+            loaded.load(image.getPath());
+            assertEquals(describe(cvfs.rList()), describe(loaded.rList()));
+            assertEquals(cvfs.getVirtualDisk().getUsedSize(), loaded.getVirtualDisk().getUsedSize());
+
+            // the second delta starts a compaction, which folds both into the image.
+            cvfs.newDocument("about", "html", "<p>about</p>");
+            cvfs.deleteFile("home");
+            cvfs.createSimpleCriterion("c1", "name", "contains", "\"ab\"");
+            cvfs.store(image.getPath());
+            assertEquals(2, cvfs.awaitCompaction());
+            assertFalse(DeltaImage.pathFor(path, 1).toFile().exists());
+            assertFalse(DeltaImage.pathFor(path, 2).toFile().exists());
+
+            loaded = new CVFS();
+            loaded.load(image.getPath());
+            assertEquals(describe(cvfs.rList()), describe(loaded.rList()));
+            assertTrue(loaded.getVirtualDisk().getCriteriaMap().containsKey("c1"));
+
+            // deltas go on chaining to the compacted image.
+            cvfs.changeDir("..");
+            cvfs.newDocument("notes", "txt", "after compaction");
+            cvfs.store(image.getPath());
+            assertTrue(DeltaImage.pathFor(path, 1).toFile().exists());
+
+            loaded = new CVFS();
+            loaded.load(image.getPath());
+            assertEquals(describe(cvfs.rList()), describe(loaded.rList()));
+            assertEquals(cvfs.getVirtualDisk().getUsedSize(), loaded.getVirtualDisk().getUsedSize());
+        } finally {
+            image.delete();
+            for (int sequence = 1; sequence <= 2; sequence++) {
+                java.nio.file.Files.deleteIfExists(DeltaImage.pathFor(path, sequence));
+            }
+        }
+    }
+
+    /**
+     * A store in the background should write the disk as it was when the store was made, while the
+     * changes made meanwhile stay in the write-ahead log.
+     * @throws Exception if the image could not be written or read.
+     */
+    @Test
+    public void testBackgroundStore() throws Exception {
+        java.io.File image = java.io.File.createTempFile("cvfs", ".img");
+        java.io.File log = new java.io.File(image.getPath() + ".wal");
+        try {
+            cvfs.enableWriteAheadLog(1);
+            cvfs.newDisk(100000);
+            cvfs.store(image.getPath());
+            for (int i = 0; i < 20; i++) {
+                cvfs.newDocument("doc" + i, "txt", "content " + i);
+            }
+            StoreProgress progress = cvfs.storeInBackground(image.getPath());
+            cvfs.newDocument("later", "txt", "after the store");
+            cvfs.deleteFile("doc0");
+
+            assertSame(progress, cvfs.awaitBackgroundStore());
+            assertTrue(progress.isDone());
+            assertNull(progress.getError());
+            assertEquals(21, progress.getFileCount());
+            assertEquals(21, progress.getFilesWritten());
+
+            // the image holds the disk as it was when the store started.
+            CVFS loaded = new CVFS();
+            loaded.load(image.getPath());
+            Directory root = loaded.getVirtualDisk().getRootDirectory();
+            assertNotNull(root.getFile("doc0"));
+            assertNull(root.getFile("later"));
+
+            // and the log the changes made since.
+            loaded = new CVFS();
+            loaded.enableWriteAheadLog(1);
+            loaded.load(image.getPath());
+            root = loaded.getVirtualDisk().getRootDirectory();
+            assertNull(root.getFile("doc0"));
+            assertEquals("after the store", ((Document) root.getFile("later")).getContent());
+            assertEquals(cvfs.getVirtualDisk().getUsedSize(), loaded.getVirtualDisk().getUsedSize());
+        } finally {
+            image.delete();
+            log.delete();
+        }
+    }
+
+    /**
+     * Changes made after a store should be recovered from the write-ahead log
+     * when the image is loaded again, as if the program had crashed.
+     * @throws Exception if the image or the log could not be written or read.
+     */
+    @Test
+    public void testWriteAheadLogRecovery() throws Exception {
+        java.io.File image = java.io.File.createTempFile("cvfs", ".img");
+        java.io.File log = new java.io.File(image.getPath() + ".wal");
+        try {
+            cvfs.enableWriteAheadLog(1);
+            cvfs.newDisk(2000);
+            cvfs.store(image.getPath());
+
+            cvfs.newDirectory("web");
+            cvfs.changeDir("web");
+            cvfs.newDocument("index", "html", "<p>hello</p>");
+            cvfs.renameFile("index", "home");
+            cvfs.newDocument("draft", "txt", "to be undone");
+            cvfs.undo();
+            cvfs.createSimpleCriterion("c1", "name", "contains", "\"ho\"");
+
+            CVFS recovered = new CVFS();
+            recovered.enableWriteAheadLog(1);
+            recovered.load(image.getPath());
+            Directory web = (Directory) recovered.findFile(recovered.getVirtualDisk().getRootDirectory(), "web");
+            assertNotNull(web);
+            assertEquals(1, web.getFiles().size());
+            assertEquals("<p>hello</p>", ((Document) web.getFile("home")).getContent());
+            assertTrue(recovered.getVirtualDisk().getCriteriaMap().containsKey("c1"));
+            assertEquals(cvfs.getVirtualDisk().getUsedSize(), recovered.getVirtualDisk().getUsedSize());
+
+            // storing again folds the log into the image.
+            recovered.store(image.getPath());
+            assertEquals(Long.BYTES, log.length());
+        } finally {
+            image.delete();
+            log.delete();
+        }
+    }
+
+    /**
+     * Test sessions working on the same disk from several threads.
+     */
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        cvfs.newDisk(100000);
+        int threads = 4;
+        int docsPerThread = 50;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final CVFS session = cvfs.openSession();
+            final String dirName = "dir" + t;
+            workers.add(new Thread(() -> {
+                session.newDirectory(dirName);
+                session.changeDir(dirName);
+                for (int i = 0; i < docsPerThread; i++) {
+                    session.newDocument("doc" + i, "txt", "content");
+                }
+                session.closeSession();
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // each session kept its own working directory, and the disk counted every file.
+        assertEquals("root", cvfs.getWorkingDirPath());
+        assertEquals(threads, cvfs.list().size());
+        long expected = 40 + threads * (40 + docsPerThread * (40 + 7 * 2));
+        assertEquals(expected, cvfs.getVirtualDisk().getUsedSize());
+        assertEquals(expected, cvfs.getVirtualDisk().getRootDirectory().getSize());
+    }
+
+    /**
+     * Test that sessions cannot both take the last space on the disk.
+     */
+    @Test
+    public void testSessionsShareDiskQuota() {
+        cvfs.newDisk(40 + 40);
+        CVFS other = cvfs.openSession();
+        cvfs.newDirectory("a");
+        try {
+            other.newDirectory("b");
+            fail("The disk should be full");
+        } catch (IllegalStateException e) {
+            assertEquals(80, other.getVirtualDisk().getUsedSize());
+        }
+        other.closeSession();
+    }
+
+    /**
+     * Test that undoing in one session fails cleanly when another session has taken the name or the
+     * space it needs, and can be undone once they are free again.
+     */
+    @Test
+    public void testUndoAfterOtherSessionChanges() {
+        cvfs.newDisk(1000);
+        Directory root = cvfs.getVirtualDisk().getRootDirectory();
+        CVFS other = cvfs.openSession();
+        cvfs.newDocument("x", "txt", "mine");
+        cvfs.deleteFile("x");
+        other.newDocument("x", "txt", "theirs");
+        long used = cvfs.getVirtualDisk().getUsedSize();
+        try {
+            cvfs.undo();
+            fail("The name is taken");
+        } catch (IllegalArgumentException e) {
+            assertEquals("theirs", ((Document) root.getFile("x")).getContent());
+            assertEquals(used, cvfs.getVirtualDisk().getUsedSize());
+        }
+
+        // the delete is still the next to undo.
+        other.deleteFile("x");
+        cvfs.undo();
+        assertEquals("mine", ((Document) root.getFile("x")).getContent());
+        cvfs.undo();
+        assertNull(root.getFile("x"));
+        other.closeSession();
+
+        // the same for space: root and one directory fill the disk.
+        cvfs.newDisk(40 + 40);
+        other = cvfs.openSession();
+        cvfs.newDirectory("a");
+        cvfs.deleteFile("a");
+        other.newDirectory("b");
+        try {
+            cvfs.undo();
+            fail("The disk should be full");
+        } catch (IllegalStateException e) {
+            assertNull(cvfs.getVirtualDisk().getRootDirectory().getFile("a"));
+        }
+        other.deleteFile("b");
+        cvfs.undo();
+        assertNotNull(cvfs.getVirtualDisk().getRootDirectory().getFile("a"));
+        assertEquals(80, cvfs.getVirtualDisk().getUsedSize());
+        other.closeSession();
+    }
+
+    /**
+     * Test that commands are split into words, and that document content and criterion values
+     * are taken as typed.
+     */
+    @Test
+    public void testCommandParsing() {
+        CommandController controller = new CommandController(cvfs);
+        Directory root = cvfs.getVirtualDisk().getRootDirectory();
+
+        // any number of spaces separate words, and are kept in the content.
+        controller.executeCommand("newDoc   d1  txt   two  spaces ");
+        assertEquals("two  spaces", ((Document) root.getFile("d1")).getContent());
+
+        // quoted content keeps its quotes, with words after them or not.
+        controller.executeCommand("newDoc d2 txt \"a b\"");
+        assertEquals("\"a b\"", ((Document) root.getFile("d2")).getContent());
+        controller.executeCommand("newDoc d3 txt \"a b\" c");
+        assertEquals("\"a b\" c", ((Document) root.getFile("d3")).getContent());
+        controller.executeCommand("newDoc d4 txt \"say \\\"hi\\\"\"");
+        assertEquals("\"say \\\"hi\\\"\"", ((Document) root.getFile("d4")).getContent());
+
+        // a quote that is not closed is part of an ordinary word.
+        controller.executeCommand("newDoc d5 txt say \"hi");
+        assertEquals("say \"hi", ((Document) root.getFile("d5")).getContent());
+        controller.executeCommand("newDir \"d6");
+        assertNull(root.getFile("\"d6"));
+
+        // a quoted word is taken without its quotes, and the words after it are split as usual.
+        controller.executeCommand("rename \"d1\" d7");
+        assertNull(root.getFile("d1"));
+        assertNotNull(root.getFile("d7"));
+
+        // criterion values keep the quotes they are checked for.
+        controller.executeCommand("newSimpleCri aa name contains \"ab\"");
+        controller.executeCommand("newSimpleCri bb type equals \"txt\"");
+        controller.executeCommand("newSimpleCri cc name contains ab");
+        Map<String, FileCriterion> criteria = cvfs.getVirtualDisk().getCriteriaMap();
+        assertTrue(criteria.containsKey("aa"));
+        assertTrue(criteria.containsKey("bb"));
+        assertFalse(criteria.containsKey("cc"));
+        assertEquals(5, cvfs.searchByCriterion("bb").size());
+    }
+
+    /**
+     * Test that operations are counted and timed, and that the gauges follow the disk.
+     */
+    @Test
+    public void testMetrics() {
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        OperationMetrics newDocument = registry.operation("cvfs.newDocument");
+        long calls = newDocument.getCount();
+        long errors = newDocument.getErrors();
+
+        cvfs.newDisk(1000);
+        cvfs.registerGauges(registry);
+        cvfs.newDirectory("dir1");
+        cvfs.newDocument("doc1", "txt", "hello");
+        try {
+            cvfs.newDocument("doc1", "txt", "again");
+            fail("The name is taken");
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+
+        assertEquals(calls + 2, newDocument.getCount());
+        assertEquals(errors + 1, newDocument.getErrors());
+        assertTrue(newDocument.getLatencies().getValueAtQuantile(0.99) >= newDocument.getLatencies().getValueAtQuantile(0.5));
+
+        Map<String, Long> gauges = registry.readGauges();
+        assertEquals(cvfs.getVirtualDisk().getUsedSize(), (long) gauges.get("disk.usedBytes"));
+        assertEquals(1, (long) gauges.get("disk.documents"));
+        assertEquals(1, (long) gauges.get("disk.directories"));
+        assertEquals(3, (long) gauges.get("history.undoDepth"));
+
+        // commands count as failed when they print an error rather than throw.
+        OperationMetrics deleteCommand = registry.operation("command.delete");
+        long deleteErrors = deleteCommand.getErrors();
+        CommandController controller = new CommandController(cvfs);
+        controller.executeCommand("delete missing");
+        assertEquals(deleteErrors + 1, deleteCommand.getErrors());
+        controller.executeCommand("delete doc1");
+        assertEquals(deleteErrors + 1, deleteCommand.getErrors());
+    }
+
+    /**
+     * Test that latencies are recorded to within the precision of their bucket.
+     */
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        long median = histogram.getValueAtQuantile(0.5);
+        assertTrue(median >= 500000 && median <= 500000 * 1.125);
+        long max = histogram.getMax();
+        assertTrue(max >= 1000000 && max <= 1000000 * 1.125);
+    }
+
+    /**
+     * Test the listing formats of the renderer.
+     */
+    @Test
+    public void testFileRenderer() {
+        cvfs.newDisk(1000);
+        cvfs.newDirectory("dir1");
+        cvfs.newDocument("doc1", "txt", "hello");
+        String newLine = System.lineSeparator();
+
+        StringWriter text = new StringWriter();
+        FileRenderer renderer = new FileRenderer(text);
+        renderer.begin(OutputFormat.TEXT, "--- List Files -----", false);
+        cvfs.walk((level, file) -> {
+            renderer.file(level + 1, file);
+            return true;
+        });
+        renderer.end("Total Size", true);
+        assertEquals("--- List Files -----" + newLine
+                + "    [Dir] Name: dir1, Size: 40 bytes" + newLine
+                + "    [Doc] Name: doc1, Type: txt, Size: 50 bytes" + newLine + newLine
+                + "Total Number of Files: 2" + newLine
+                + "Total Size: 90 bytes" + newLine + newLine, text.toString());
+
+        StringWriter tsv = new StringWriter();
+        FileRenderer tsvRenderer = new FileRenderer(tsv);
+        tsvRenderer.begin(OutputFormat.TSV, "--- List Files -----", true);
+        cvfs.list().forEach(file -> tsvRenderer.file(0, file));
+        tsvRenderer.end("Total Size", true);
+        assertEquals("0\tdir\tdir1\t\t40" + newLine + "0\tdoc\tdoc1\ttxt\t50" + newLine, tsv.toString());
+
+        StringWriter json = new StringWriter();
+        FileRenderer jsonRenderer = new FileRenderer(json);
+        jsonRenderer.begin(OutputFormat.JSON, "--- List Files -----", false);
+        jsonRenderer.file(3, cvfs.list().get(1));
+        jsonRenderer.end("Total Size", true);
+        assertEquals("{\"level\":3,\"kind\":\"doc\",\"name\":\"doc1\",\"type\":\"txt\",\"size\":50}" + newLine,
+                json.toString());
+    }
+
+    /**
+     * Test document types and the checks on names.
+     */
+    @Test
+    public void testDocumentTypeAndNames() {
+        cvfs.newDisk(1000);
+        cvfs.newDocument("doc1", "java", "code");
+        assertSame(DocumentType.JAVA, ((Document) cvfs.list().get(0)).getType());
+        assertNull(DocumentType.forName("Java"));
+
+        // a type criterion on a type no document can have matches nothing.
+        cvfs.createSimpleCriterion("t1", "type", "equals", "\"pdf\"");
+        assertTrue(cvfs.searchByCriterion("t1").isEmpty());
+
+        assertTrue(Names.isAlphanumeric("aZ09"));
+        assertFalse(Names.isAlphanumeric("a_b"));
+        assertFalse(Names.isAlphanumeric(""));
+        assertTrue(Names.isBlank(" \t"));
+        try {
+            cvfs.newDocument("doc2", "pdf", "x");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid document type: pdf. Only 'txt', 'html', 'java' and 'css' are allowed", e.getMessage());
+        }
+    }
+
+    /**
+     * Test names packed into longs, and lookups and name searches on them.
+     */
+    @Test
+    public void testPackedNames() {
+        long packed = Names.pack("aZ09");
+        assertEquals("aZ09", Names.unpack(packed));
+        assertEquals(4, Names.length(packed));
+        assertEquals(Names.NOT_PACKABLE, Names.pack("elevenchars"));
+        assertEquals(Names.NOT_PACKABLE, Names.pack("a-b"));
+        assertTrue(Names.pack("Zeta") < Names.pack("alpha"));
+        assertTrue(Names.pack("ab") < Names.pack("abc"));
+        assertTrue(Names.contains(Names.pack("abcdefghij"), Names.pack("hij"), 3));
+        assertFalse(Names.contains(Names.pack("abc"), Names.pack("bcd"), 3));
+
+        cvfs.newDisk(10000);
+        for (int i = 0; i < 50; i++) {
+            cvfs.newDocument("doc" + i, "txt", "");
+        }
+        Directory dir = cvfs.getVirtualDisk().getRootDirectory();
+        for (int i = 0; i < 50; i += 2) {
+            cvfs.deleteFile("doc" + i);
+        }
+        cvfs.renameFile("doc1", "first");
+        assertNull(dir.getFile("doc1"));
+        assertNull(dir.getFile("doc2"));
+        assertEquals("first", dir.getFile("first").getName());
+        assertEquals("doc49", dir.getFile(Names.pack("doc49")).getName());
+        assertNull(dir.getFile("not-a-name"));
+
+        cvfs.createSimpleCriterion("n1", "name", "contains", "\"oc4\"");
+        assertEquals(5, cvfs.searchByCriterion("n1").size());
+    }
+
     /**
      * Test fina all defined criteria.
      */